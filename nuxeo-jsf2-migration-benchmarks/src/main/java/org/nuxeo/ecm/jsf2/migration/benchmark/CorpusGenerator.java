@@ -0,0 +1,606 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.io.FileUtils;
+import org.nuxeo.ecm.jsf2.migration.enumeration.EnumPrefixes;
+import org.nuxeo.ecm.jsf2.migration.enumeration.EnumTypeMigration;
+import org.nuxeo.ecm.jsf2.migration.impl.TemplateCatalog;
+import org.nuxeo.ecm.jsf2.migration.report.ReportMessages;
+
+/**
+ * Generator of synthetic templates, to benchmark and load test the tool on
+ * large projects. The same seed and settings always give the same templates.
+ * The generator can write a project, with the templates in a
+ * {@code nuxeo.war} directory tree, and computes the number of occurrences of
+ * each type of migration the analyze of the project must report when no
+ * migration is done (the migration of a rule may create nodes matched by the
+ * next rules):
+ * <ul>
+ * <li>each occurrence of a rule is a fragment matching only this rule, the
+ * number of fragments of a rule in a template depends on the density of the
+ * rule,</li>
+ * <li>each template declares the namespaces used by the fragments and some
+ * other prefixes of {@link EnumPrefixes}, some templates declaring a wrong
+ * namespace,</li>
+ * <li>some templates are not well-formed,</li>
+ * <li>some templates have the path of a template of the Nuxeo Platform.</li>
+ * </ul>
+ *
+ * @since 6.0
+ */
+public class CorpusGenerator {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final EnumTypeMigration[] TYPES = EnumTypeMigration.values();
+
+    // Directory of the templates in a project
+    private static final String XHTML_ROOT = "src/main/resources/web/nuxeo.war";
+
+    // Number of sub-directories of each directory of the tree
+    private static final int DIRECTORIES_PER_LEVEL = 10;
+
+    // The files written with the project
+    public static final String EXPECTED_COUNTS = "expected-counts.properties";
+
+    public static final String EXPECTED_SUMMARY = "expected-summary.txt";
+
+    // The prefixes always declared, used by the fragments
+    private static final EnumPrefixes[] USED_PREFIXES = { EnumPrefixes.C,
+            EnumPrefixes.F, EnumPrefixes.H, EnumPrefixes.UI, EnumPrefixes.A4J,
+            EnumPrefixes.RICH };
+
+    // Fragments matching nothing, %d is replaced by the position of the
+    // fragment
+    private static final String[] PLAIN_FRAGMENTS = {
+            "<h:outputText value=\"#{messages['label.%d']}\" />",
+            "<h:panelGroup rendered=\"#{currentDocument.id != null}\">\n"
+                    + "  <h:outputLabel for=\"field%1$d\" value=\"Field %1$d\" />\n"
+                    + "  <h:inputText id=\"field%1$d\" value=\"#{bean.field%1$d}\" />\n"
+                    + "</h:panelGroup>",
+            "<c:if test=\"#{not empty bean.list%d}\">\n"
+                    + "  <ui:include src=\"/incl/list.xhtml\" />\n" + "</c:if>",
+            "<h:commandLink action=\"#{bean.action%d}\" value=\"Action\" />",
+            "<table class=\"dataOutput\">\n" + "  <tr><td>%d</td></tr>\n"
+                    + "</table>" };
+
+    private final long seed;
+
+    // The settings of the generator, the densities of the rules are the mean
+    // number of occurrences by template
+    private int depth = 2;
+
+    private int fileSize = 4096;
+
+    private double prefixRatio = 0.5;
+
+    private double wrongNamespaceRatio = 0.05;
+
+    private double malformedRatio;
+
+    private double overrideRatio;
+
+    private final double[] densities = new double[TYPES.length];
+
+    /**
+     * Expected results of the analyze of the templates generated.
+     */
+    public static class Expectation {
+
+        private int nbFiles;
+
+        // The number of occurrences of each type of migration, by ordinal
+        private final long[] occurrences = new long[TYPES.length];
+
+        public int getNumberOfFiles() {
+            return nbFiles;
+        }
+
+        public long getOccurrences(EnumTypeMigration type) {
+            return occurrences[type.ordinal()];
+        }
+
+        /**
+         * Write the counters, with the number of files and the number of
+         * occurrences of each type of migration.
+         */
+        public void writeCounts(File file) throws IOException {
+            PrintWriter writer = new PrintWriter(file, UTF_8.name());
+            try {
+                writer.print("files=" + nbFiles + "\n");
+                for (EnumTypeMigration type : TYPES) {
+                    writer.print(type.name() + "=" + occurrences[type.ordinal()]
+                            + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+        }
+
+        /**
+         * Write the summary expected in the report of the project, as written
+         * by the tool.
+         */
+        @SuppressWarnings("boxing")
+        public void writeSummary(File file) throws IOException {
+            ReportMessages messages = ReportMessages.getInstance();
+            PrintWriter writer = new PrintWriter(file,
+                    Charset.defaultCharset().name());
+            try {
+                writer.print("Summary\n");
+                writer.print("#######\n");
+                writer.print("Number of files analyzed : " + nbFiles + "\n");
+                for (EnumTypeMigration type : TYPES) {
+                    long occurence = occurrences[type.ordinal()];
+                    if (occurence > 0) {
+                        writer.print(" * [" + type.getSeverity() + "] ");
+                        writer.print(messages.formatSummarized(type,
+                                (int) occurence));
+                        writer.print('\n');
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * A generated template.
+     */
+    private static class Template {
+
+        final String path;
+
+        final byte[] content;
+
+        Template(String path, byte[] content) {
+            this.path = path;
+            this.content = content;
+        }
+    }
+
+    /**
+     * @param seed The seed of the random generator.
+     */
+    public CorpusGenerator(long seed) {
+        this.seed = seed;
+        for (EnumTypeMigration type : EnumTypeMigration.getTypesMigration()) {
+            if (type.getXPath() != null) {
+                densities[type.ordinal()] = 0.2;
+            }
+        }
+    }
+
+    /**
+     * Set the number of levels of directories in the directory nuxeo.war.
+     */
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * Set the minimum size of the templates, in bytes.
+     */
+    public void setFileSize(int fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Set the ratio of the prefixes of {@link EnumPrefixes} not used by the
+     * fragments which are declared by each template.
+     */
+    public void setPrefixRatio(double prefixRatio) {
+        this.prefixRatio = prefixRatio;
+    }
+
+    /**
+     * Set the ratio of the templates declaring a wrong namespace for a
+     * prefix.
+     */
+    public void setWrongNamespaceRatio(double wrongNamespaceRatio) {
+        this.wrongNamespaceRatio = wrongNamespaceRatio;
+    }
+
+    /**
+     * Set the ratio of the templates which are not well-formed.
+     */
+    public void setMalformedRatio(double malformedRatio) {
+        this.malformedRatio = malformedRatio;
+    }
+
+    /**
+     * Set the ratio of the templates having the path of a template of the
+     * Nuxeo Platform. Each template of the platform is overridden at most
+     * once.
+     */
+    public void setOverrideRatio(double overrideRatio) {
+        this.overrideRatio = overrideRatio;
+    }
+
+    /**
+     * Set the mean number of occurrences of a rule by template.
+     *
+     * @param type A rule with an XPath expression.
+     * @param density The mean number of occurrences.
+     */
+    public void setDensity(EnumTypeMigration type, double density) {
+        if (getRuleFragment(type) == null) {
+            throw new IllegalArgumentException(String.format(
+                    "The rule %s can not be generated", type.name()));
+        }
+        densities[type.ordinal()] = density;
+    }
+
+    /**
+     * Generate the content of templates.
+     *
+     * @param nbFiles The number of templates.
+     */
+    public List<byte[]> generate(int nbFiles) {
+        Random random = new Random(seed);
+        List<byte[]> templates = new ArrayList<byte[]>(nbFiles);
+        Expectation expectation = new Expectation();
+        for (int i = 0; i < nbFiles; i++) {
+            templates.add(generateTemplate(random, i,
+                    Collections.<String> emptyList(), expectation).content);
+        }
+        return templates;
+    }
+
+    /**
+     * Write a project with the templates, and the files of the expected
+     * results at the root of the project.
+     *
+     * @param project The directory of the project.
+     * @param nbFiles The number of templates.
+     * @param nuxeoVersion The version of the Nuxeo Platform whose templates
+     *            are overridden.
+     * @return The expected results of the analyze of the project.
+     */
+    public Expectation write(File project, int nbFiles, String nuxeoVersion)
+            throws IOException {
+        TemplateCatalog catalog = TemplateCatalog.get(nuxeoVersion);
+        Set<String> paths = new HashSet<String>();
+        paths.addAll(catalog.getTemplates().getTemplatesCompletePath());
+        paths.addAll(catalog.getCompatTemplates().getTemplatesCompletePath());
+        // Sorted so the templates chosen only depend on the seed
+        List<String> listOverrides = new ArrayList<String>(paths);
+        Collections.sort(listOverrides);
+
+        File root = new File(project, XHTML_ROOT);
+        Random random = new Random(seed);
+        Expectation expectation = new Expectation();
+        for (int i = 0; i < nbFiles; i++) {
+            Template template = generateTemplate(random, i, listOverrides,
+                    expectation);
+            File file = new File(root.getParentFile(), template.path);
+            FileUtils.writeByteArrayToFile(file, template.content);
+            if (catalog.getTemplates().containsPath(file)) {
+                expectation.occurrences[EnumTypeMigration.OVERRIDE_RULE.ordinal()]++;
+            }
+            if (catalog.getCompatTemplates().containsPath(file)) {
+                expectation.occurrences[EnumTypeMigration.OVERRIDE_COMPAT_RULE.ordinal()]++;
+            }
+        }
+        expectation.writeCounts(new File(project, EXPECTED_COUNTS));
+        expectation.writeSummary(new File(project, EXPECTED_SUMMARY));
+        return expectation;
+    }
+
+    /**
+     * Generate a template and add its expected results.
+     *
+     * @param listOverrides The paths of the templates of the platform not
+     *            overridden yet.
+     */
+    private Template generateTemplate(Random random, int index,
+            List<String> listOverrides, Expectation expectation) {
+        expectation.nbFiles++;
+        // The path of the file, from the parent of nuxeo.war
+        String path;
+        if (!listOverrides.isEmpty() && random.nextDouble() < overrideRatio) {
+            path = listOverrides.remove(random.nextInt(listOverrides.size()));
+        } else {
+            StringBuilder builder = new StringBuilder("nuxeo.war/");
+            for (int level = 0; level < depth; level++) {
+                builder.append("dir").append(
+                        random.nextInt(DIRECTORIES_PER_LEVEL)).append('/');
+            }
+            path = builder.append(String.format("page%07d.xhtml",
+                    Integer.valueOf(index))).toString();
+        }
+        boolean malformed = random.nextDouble() < malformedRatio;
+
+        // The namespaces
+        List<EnumPrefixes> listPrefixes = new ArrayList<EnumPrefixes>();
+        Collections.addAll(listPrefixes, USED_PREFIXES);
+        for (EnumPrefixes prefix : EnumPrefixes.values()) {
+            if (prefix != EnumPrefixes.UNKNOWN
+                    && !listPrefixes.contains(prefix)
+                    && random.nextDouble() < prefixRatio) {
+                listPrefixes.add(prefix);
+            }
+        }
+        EnumPrefixes wrongPrefix = null;
+        if (random.nextDouble() < wrongNamespaceRatio) {
+            wrongPrefix = listPrefixes.get(random.nextInt(listPrefixes.size()));
+        }
+        StringBuilder content = new StringBuilder();
+        content.append("<div xmlns=\"http://www.w3.org/1999/xhtml\"");
+        for (EnumPrefixes prefix : listPrefixes) {
+            content.append("\n  xmlns:").append(prefix.getPrefix()).append(
+                    "=\"").append(prefix.getNamespace());
+            if (prefix == wrongPrefix) {
+                content.append("/old");
+            }
+            content.append('"');
+        }
+        content.append(">\n");
+
+        // The fragments of the rules, then the plain fragments
+        List<String> listFragments = new ArrayList<String>();
+        long[] occurrences = new long[TYPES.length];
+        for (EnumTypeMigration type : TYPES) {
+            double density = densities[type.ordinal()];
+            int nbOccurrences = (int) density;
+            if (random.nextDouble() < density - nbOccurrences) {
+                nbOccurrences++;
+            }
+            for (int i = 0; i < nbOccurrences; i++) {
+                listFragments.add(getRuleFragment(type));
+            }
+            occurrences[type.ordinal()] = nbOccurrences;
+        }
+        int size = content.length();
+        for (String fragment : listFragments) {
+            size += fragment.length();
+        }
+        while (size < fileSize) {
+            String fragment = PLAIN_FRAGMENTS[random.nextInt(PLAIN_FRAGMENTS.length)];
+            listFragments.add(fragment);
+            size += fragment.length();
+        }
+        Collections.shuffle(listFragments, random);
+        for (int i = 0; i < listFragments.size(); i++) {
+            content.append("  ");
+            content.append(String.format(listFragments.get(i),
+                    Integer.valueOf(i)).replace("\n", "\n  "));
+            content.append('\n');
+        }
+        // A document which is not well-formed is only reported as such
+        content.append(malformed ? "</span>\n" : "</div>\n");
+
+        if (malformed) {
+            expectation.occurrences[EnumTypeMigration.ERROR_READING_DOCUMENT.ordinal()]++;
+        } else {
+            for (EnumTypeMigration type : TYPES) {
+                expectation.occurrences[type.ordinal()] += occurrences[type.ordinal()];
+            }
+            if (wrongPrefix != null) {
+                expectation.occurrences[EnumTypeMigration.NAMESPACE_RULE_1.ordinal()]++;
+            }
+        }
+        return new Template(path, content.toString().getBytes(UTF_8));
+    }
+
+    /**
+     * Get a fragment matching a rule once and not matching the other rules,
+     * %d is replaced by the position of the fragment.
+     *
+     * @return The fragment or null if the rule has no XPath expression.
+     */
+    private static String getRuleFragment(EnumTypeMigration type) {
+        switch (type) {
+        case A4J_FORM_RULE:
+            return "<a4j:form id=\"ajaxForm%d\" />";
+        case A4J_RERENDER_RULE:
+            return "<h:commandButton value=\"Save\" reRender=\"panel%d\" />";
+        case A4J_ACTIONPARAM_RULE:
+            return "<h:commandLink action=\"#{bean.select}\">\n"
+                    + "  <a4j:actionparam name=\"id\" value=\"%d\" assignTo=\"#{bean.id}\" />\n"
+                    + "</h:commandLink>";
+        case A4J_RICHTREERECURSIVE_RULE:
+            return "<rich:tree>\n"
+                    + "  <rich:recursiveTreeNodesAdaptor roots=\"#{tree.roots%d}\" var=\"node\" />\n"
+                    + "</rich:tree>";
+        case ATTRIBUTE_RICHTREENODEVAR_RULE:
+            return "<rich:tree>\n"
+                    + "  <rich:treeModelRecursiveAdaptor roots=\"#{tree.model%d}\" var=\"node\" />\n"
+                    + "</rich:tree>";
+        case A4J_AJAXLISTENER_RULE:
+            return "<a4j:region>\n"
+                    + "  <a4j:ajaxListener type=\"org.nuxeo.Listener%d\" />\n"
+                    + "</a4j:region>";
+        case ATTRIBUTE_AJAXSINGLE_RULE:
+            return "<h:selectBooleanCheckbox value=\"#{bean.check%d}\" ajaxSingle=\"true\" />";
+        case A4J_SUPPORT_RULE:
+            return "<h:inputText value=\"#{bean.input%d}\">\n"
+                    + "  <a4j:support event=\"onchange\" />\n"
+                    + "</h:inputText>";
+        case ATTRIBUTE_EVENT_CLICK_RULE:
+            return "<h:selectOneRadio value=\"#{bean.radio%d}\" event=\"onclick\" />";
+        case RICH_SUGGESTIONBOX_RULE:
+            return "<rich:suggestionbox for=\"field%d\" suggestionAction=\"#{bean.suggest}\" />";
+        case RICH_MODAL_PANEL_RULE:
+            return "<rich:modalPanel id=\"popup%d\" />";
+        case VALUE_SELECTACTIONS_RULE:
+            return "<h:selectOneListbox value=\"#{selectionActions.onClick}\" id=\"list%d\" />";
+        case TARGET_SELECTEDVALUE_RULE:
+            return "<f:setPropertyActionListener value=\"%d\" target=\"#{selectionActions.selectedValue}\" />";
+        case H_OUTPUT_TEXT_RULE:
+            return "<h:outputText rendered=\"#{bean.visible%d}\">\n"
+                    + "  <h:outputText value=\"child\" />\n" + "</h:outputText>";
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Command line flags
+     */
+    static class Flags {
+        final static Option FILES = new Option("n", "files", true,
+                "number of templates (default 1000)");
+
+        final static Option SEED = new Option("s", "seed", true,
+                "seed of the random generator (default 1)");
+
+        final static Option DEPTH = new Option("d", "depth", true,
+                "levels of directories in nuxeo.war (default 2)");
+
+        final static Option SIZE = new Option("z", "size", true,
+                "minimum size of the templates in bytes (default 4096)");
+
+        final static Option PREFIXES = new Option("p", "prefixes", true,
+                "ratio of the other prefixes declared (default 0.5)");
+
+        final static Option WRONG_NAMESPACES = new Option("w",
+                "wrong-namespaces", true,
+                "ratio of the templates with a wrong namespace (default 0.05)");
+
+        final static Option MALFORMED = new Option("e", "malformed", true,
+                "ratio of the templates not well-formed (default 0)");
+
+        final static Option OVERRIDES = new Option("o", "overrides", true,
+                "ratio of the templates overriding a Nuxeo template (default 0)");
+
+        final static Option DENSITY = new Option("r", "rule", true,
+                "mean occurrences of a rule by template, as RULE=density (default 0.2)");
+
+        final static Option NUXEO_VERSION = new Option("v", "nuxeo-version",
+                true, "version of the Nuxeo Platform whose templates are overridden (default "
+                        + TemplateCatalog.DEFAULT_VERSION + ")");
+    }
+
+    /**
+     * @param args The options and the directory of the project to write.
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption(Flags.FILES);
+        options.addOption(Flags.SEED);
+        options.addOption(Flags.DEPTH);
+        options.addOption(Flags.SIZE);
+        options.addOption(Flags.PREFIXES);
+        options.addOption(Flags.WRONG_NAMESPACES);
+        options.addOption(Flags.MALFORMED);
+        options.addOption(Flags.OVERRIDES);
+        options.addOption(Flags.DENSITY);
+        options.addOption(Flags.NUXEO_VERSION);
+
+        CommandLineParser parser = new PosixParser();
+        CorpusGenerator generator = null;
+        int nbFiles = 0;
+        String nuxeoVersion = null;
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, args);
+            if (cmd.getArgs().length != 1) {
+                throw new ParseException("Must specify project directory.");
+            }
+            nbFiles = (int) getNumber(cmd, Flags.FILES, 1000);
+            generator = new CorpusGenerator((long) getNumber(cmd, Flags.SEED,
+                    1));
+            generator.setDepth((int) getNumber(cmd, Flags.DEPTH, 2));
+            generator.setFileSize((int) getNumber(cmd, Flags.SIZE, 4096));
+            generator.setPrefixRatio(getNumber(cmd, Flags.PREFIXES, 0.5));
+            generator.setWrongNamespaceRatio(getNumber(cmd,
+                    Flags.WRONG_NAMESPACES, 0.05));
+            generator.setMalformedRatio(getNumber(cmd, Flags.MALFORMED, 0));
+            generator.setOverrideRatio(getNumber(cmd, Flags.OVERRIDES, 0));
+            String[] densities = cmd.getOptionValues(Flags.DENSITY.getOpt());
+            if (densities != null) {
+                for (String density : densities) {
+                    setDensity(generator, density);
+                }
+            }
+            nuxeoVersion = cmd.getOptionValue(Flags.NUXEO_VERSION.getOpt(),
+                    TemplateCatalog.DEFAULT_VERSION);
+            TemplateCatalog.get(nuxeoVersion);
+        } catch (ParseException | IllegalArgumentException e) {
+            HelpFormatter formatter = new HelpFormatter();
+            System.out.println(e.getMessage());
+            formatter.printHelp("java -cp target/benchmarks.jar "
+                    + CorpusGenerator.class.getName()
+                    + " <path to project>", options);
+            System.exit(-1);
+        }
+
+        File project = new File(cmd.getArgs()[0]);
+        long start = System.currentTimeMillis();
+        Expectation expectation = generator.write(project, nbFiles,
+                nuxeoVersion);
+        System.out.println(String.format(
+                "%d templates generated in %d ms, the expected results are in %s",
+                Integer.valueOf(expectation.getNumberOfFiles()),
+                Long.valueOf(System.currentTimeMillis() - start),
+                new File(project, EXPECTED_SUMMARY).getPath()));
+    }
+
+    private static double getNumber(CommandLine cmd, Option option,
+            double defaultValue) throws ParseException {
+        String value = cmd.getOptionValue(option.getOpt());
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new ParseException(String.format("Invalid value of %s : %s",
+                    option.getLongOpt(), value));
+        }
+    }
+
+    private static void setDensity(CorpusGenerator generator, String value)
+            throws ParseException {
+        int separator = value.indexOf('=');
+        if (separator < 0) {
+            throw new ParseException(String.format(
+                    "Invalid density of a rule : %s", value));
+        }
+        EnumTypeMigration type;
+        double density;
+        try {
+            type = EnumTypeMigration.valueOf(value.substring(0, separator));
+            density = Double.parseDouble(value.substring(separator + 1));
+        } catch (IllegalArgumentException e) {
+            throw new ParseException(String.format(
+                    "Invalid density of a rule : %s", value));
+        }
+        generator.setDensity(type, density);
+    }
+}
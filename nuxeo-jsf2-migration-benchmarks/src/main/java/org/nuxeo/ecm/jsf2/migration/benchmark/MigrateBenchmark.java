@@ -0,0 +1,111 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.Document;
+import org.dom4j.Node;
+import org.dom4j.io.SAXReader;
+import org.nuxeo.ecm.jsf2.migration.enumeration.EnumTypeMigration;
+import org.nuxeo.ecm.jsf2.migration.impl.ReaderFactory;
+import org.nuxeo.ecm.jsf2.migration.parser.RuleParser;
+import org.nuxeo.ecm.jsf2.migration.report.FileReport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the migration of the templates of a synthetic corpus by the parser
+ * of each rule migrating automatically. The documents are parsed and
+ * analyzed again before each invocation, as the migration changes them, so
+ * only the migration is measured.
+ *
+ * @since 6.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class MigrateBenchmark {
+
+    @Param({ "100" })
+    public int corpusSize;
+
+    @Param({ "1" })
+    public long seed;
+
+    @Param({ "A4J_RERENDER_RULE", "A4J_ACTIONPARAM_RULE",
+            "A4J_RICHTREERECURSIVE_RULE", "ATTRIBUTE_AJAXSINGLE_RULE",
+            "ATTRIBUTE_EVENT_CLICK_RULE", "RICH_MODAL_PANEL_RULE",
+            "NAMESPACE_RULE_1" })
+    public EnumTypeMigration rule;
+
+    private List<byte[]> templates;
+
+    private SAXReader reader;
+
+    private RuleParser parser;
+
+    private final File file = new File("template.xhtml");
+
+    private List<Document> documents;
+
+    private List<List<Node>> listNodes;
+
+    @Setup
+    public void setup() throws Exception {
+        templates = new CorpusGenerator(seed).generate(corpusSize);
+        reader = ReaderFactory.newSAXReader();
+        parser = rule.newParser(true);
+    }
+
+    @Setup(Level.Invocation)
+    public void analyze() throws Exception {
+        documents = new ArrayList<Document>(templates.size());
+        listNodes = new ArrayList<List<Node>>(templates.size());
+        for (byte[] template : templates) {
+            Document document = reader.read(new ByteArrayInputStream(
+                    template));
+            documents.add(document);
+            listNodes.add(parser.parse(document, new FileReport(file)));
+        }
+    }
+
+    @Benchmark
+    public List<Document> migrate() throws Exception {
+        for (int i = 0; i < documents.size(); i++) {
+            parser.migrate(documents.get(i), listNodes.get(i));
+        }
+        return documents;
+    }
+}
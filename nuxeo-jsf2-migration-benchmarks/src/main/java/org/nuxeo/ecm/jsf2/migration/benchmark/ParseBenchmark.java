@@ -0,0 +1,78 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.Document;
+import org.dom4j.io.SAXReader;
+import org.nuxeo.ecm.jsf2.migration.impl.ReaderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building the DOM of the templates of a synthetic corpus with the
+ * {@link SAXReader} used by the tool.
+ *
+ * @since 6.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ParseBenchmark {
+
+    @Param({ "100" })
+    public int corpusSize;
+
+    @Param({ "1" })
+    public long seed;
+
+    private List<byte[]> templates;
+
+    private SAXReader reader;
+
+    @Setup
+    public void setup() throws Exception {
+        templates = new CorpusGenerator(seed).generate(corpusSize);
+        reader = ReaderFactory.newSAXReader();
+    }
+
+    @Benchmark
+    public int parseCorpus() throws Exception {
+        int nbNodes = 0;
+        for (byte[] template : templates) {
+            Document document = reader.read(new ByteArrayInputStream(
+                    template));
+            nbNodes += document.getRootElement().nodeCount();
+        }
+        return nbNodes;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.nuxeo.ecm.jsf2.migration.api.MigrationService;
+import org.nuxeo.ecm.jsf2.migration.impl.MigrationServiceImpl;
+import org.nuxeo.ecm.jsf2.migration.impl.TemplateCatalog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the whole analyze of a project by
+ * {@link MigrationService#analyzeProject}, from the reading of the files to
+ * the writing of the report, on a synthetic corpus written in a temporary
+ * directory. The cache of the analyzes is not used.
+ *
+ * @since 6.0
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ProjectBenchmark {
+
+    @Param({ "1000" })
+    public int corpusSize;
+
+    @Param({ "1" })
+    public long seed;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    @Param({ "false", "true" })
+    public boolean migration;
+
+    private final MigrationService service = new MigrationServiceImpl();
+
+    private File directory;
+
+    private List<File> listFiles;
+
+    private File report;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("jsf2-project").toFile();
+        new CorpusGenerator(seed).write(directory, corpusSize,
+                TemplateCatalog.DEFAULT_VERSION);
+        listFiles = service.getAllXhtmlFiles(directory);
+        report = new File(directory, "report.txt");
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Benchmark
+    public void analyzeProject() throws Exception {
+        service.analyzeProject(report, listFiles, migration, false, threads,
+                false);
+    }
+}
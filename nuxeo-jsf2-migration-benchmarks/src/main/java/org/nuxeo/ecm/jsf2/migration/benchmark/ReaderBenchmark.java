@@ -0,0 +1,99 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.Document;
+import org.nuxeo.ecm.jsf2.migration.impl.ReaderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Cost of the parsing of a small template, when a new reader is created and
+ * configured for each file (as done before the introduction of
+ * {@link ReaderFactory}) and when the reader of the thread is reused.
+ *
+ * @since 6.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ReaderBenchmark {
+
+    private static final String TEMPLATE = "<div xmlns=\"http://www.w3.org/1999/xhtml\"\n"
+            + "  xmlns:h=\"http://java.sun.com/jsf/html\"\n"
+            + "  xmlns:a4j=\"http://richfaces.org/a4j\">\n"
+            + "  <h:form id=\"form\">\n"
+            + "    <a4j:commandButton value=\"Save\" reRender=\"panel\" />\n"
+            + "    <h:outputText value=\"#{label}\" />\n"
+            + "  </h:form>\n" + "</div>\n";
+
+    private byte[] content;
+
+    private ReaderFactory readerFactory;
+
+    private DefaultHandler handler;
+
+    @Setup
+    public void setup() throws Exception {
+        content = TEMPLATE.getBytes("UTF-8");
+        readerFactory = new ReaderFactory();
+        handler = new DefaultHandler();
+    }
+
+    @Benchmark
+    public Document newSAXReaderForEachFile() throws Exception {
+        return ReaderFactory.newSAXReader().read(
+                new ByteArrayInputStream(content));
+    }
+
+    @Benchmark
+    public Document reusedSAXReader() throws Exception {
+        return readerFactory.getSAXReader().read(
+                new ByteArrayInputStream(content));
+    }
+
+    @Benchmark
+    public void newXMLReaderForEachFile() throws Exception {
+        XMLReader reader = ReaderFactory.newXMLReader();
+        reader.setContentHandler(handler);
+        reader.parse(new InputSource(new ByteArrayInputStream(content)));
+    }
+
+    @Benchmark
+    public void reusedXMLReader() throws Exception {
+        XMLReader reader = readerFactory.getXMLReader();
+        reader.setContentHandler(handler);
+        reader.parse(new InputSource(new ByteArrayInputStream(content)));
+    }
+}
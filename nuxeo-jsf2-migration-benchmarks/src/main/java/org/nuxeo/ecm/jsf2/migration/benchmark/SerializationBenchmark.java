@@ -0,0 +1,103 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.dom4j.Document;
+import org.dom4j.io.SAXReader;
+import org.nuxeo.ecm.jsf2.migration.impl.MigrationServiceImpl;
+import org.nuxeo.ecm.jsf2.migration.impl.ReaderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the serialization of the migrated documents of a synthetic corpus
+ * by {@link MigrationServiceImpl#createFile}, the files being written in a
+ * temporary directory.
+ *
+ * @since 6.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class SerializationBenchmark {
+
+    @Param({ "100" })
+    public int corpusSize;
+
+    @Param({ "1" })
+    public long seed;
+
+    /**
+     * Service giving access to the serialization of the documents.
+     */
+    private static class Service extends MigrationServiceImpl {
+
+        void write(Document document, String filePath) throws Exception {
+            createFile(document, filePath, true);
+        }
+    }
+
+    private final Service service = new Service();
+
+    private File directory;
+
+    private List<Document> documents;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("jsf2-serialization").toFile();
+        SAXReader reader = ReaderFactory.newSAXReader();
+        documents = new ArrayList<Document>();
+        for (byte[] template : new CorpusGenerator(seed).generate(corpusSize)) {
+            documents.add(reader.read(new ByteArrayInputStream(template)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Benchmark
+    public void createFile() throws Exception {
+        for (int i = 0; i < documents.size(); i++) {
+            service.write(documents.get(i), new File(directory, "template"
+                    + i + ".xhtml.migrated").getPath());
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.dom4j.Document;
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.dom4j.Node;
+import org.jaxen.SimpleNamespaceContext;
+import org.jaxen.XPath;
+import org.jaxen.dom4j.Dom4jXPath;
+import org.nuxeo.ecm.jsf2.migration.enumeration.EnumPrefixes;
+import org.nuxeo.ecm.jsf2.migration.enumeration.EnumTypeMigration;
+import org.nuxeo.ecm.jsf2.migration.impl.ReaderFactory;
+import org.nuxeo.ecm.jsf2.migration.parser.CompiledXPath;
+import org.nuxeo.ecm.jsf2.migration.parser.DocumentMatcher;
+import org.nuxeo.ecm.jsf2.migration.parser.RulePattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the evaluation of the XPath expressions of all the rules for one
+ * file, when the expressions are compiled for every file (as done before the
+ * introduction of {@link CompiledXPath}), when they are compiled once, and
+ * when the simple ones are evaluated in a single walk by a
+ * {@link DocumentMatcher}. The file is a template of the synthetic corpus,
+ * see {@link CorpusGenerator}.
+ *
+ * @since 6.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class XPathBenchmark {
+
+    @Param({ "8192" })
+    public int fileSize;
+
+    @Param({ "1" })
+    public long seed;
+
+    private Document document;
+
+    private List<String> listXPaths;
+
+    private DocumentMatcher matcher;
+
+    // The expressions which can not be evaluated by the matcher
+    private List<String> listFallbackXPaths;
+
+    @Setup
+    public void setup() throws Exception {
+        // A well-formed template declaring the right namespaces
+        CorpusGenerator generator = new CorpusGenerator(seed);
+        generator.setFileSize(fileSize);
+        generator.setWrongNamespaceRatio(0);
+        byte[] template = generator.generate(1).get(0);
+        document = ReaderFactory.newSAXReader().read(
+                new ByteArrayInputStream(template));
+
+        listXPaths = new ArrayList<String>();
+        for (EnumTypeMigration rule : EnumTypeMigration.getTypesMigration()) {
+            if (rule.getXPath() != null) {
+                listXPaths.add(rule.getXPath());
+            }
+        }
+
+        List<RulePattern> patterns = new ArrayList<RulePattern>();
+        listFallbackXPaths = new ArrayList<String>();
+        for (String xpath : listXPaths) {
+            RulePattern pattern = RulePattern.compile(xpath);
+            if (pattern != null) {
+                patterns.add(pattern);
+            } else {
+                listFallbackXPaths.add(xpath);
+            }
+        }
+        matcher = new DocumentMatcher(
+                patterns.toArray(new RulePattern[patterns.size()]));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Benchmark
+    public int compileForEachFile() throws Exception {
+        int nbMatches = 0;
+        Element root = document.getRootElement();
+        for (String xpath : listXPaths) {
+            XPath xpathExpr = new Dom4jXPath(xpath);
+            Pattern pattern = Pattern.compile("/[a-zAZ0-9]+:[a-zAZ0-9]+");
+            Matcher matcher = pattern.matcher(xpath);
+            while (matcher.find()) {
+                String prefix = matcher.group().split(":")[0].substring(1);
+                SimpleNamespaceContext nsContext = new SimpleNamespaceContext();
+                nsContext.addNamespace(prefix, getNamespaceURI(root, prefix));
+                xpathExpr.setNamespaceContext(nsContext);
+            }
+            nbMatches += xpathExpr.selectNodes(document).size();
+        }
+        return nbMatches;
+    }
+
+    @Benchmark
+    public int compileOnce() throws Exception {
+        return evaluate(listXPaths);
+    }
+
+    @Benchmark
+    public int singleWalk() throws Exception {
+        int nbMatches = 0;
+        for (List<Node> matches : matcher.match(document, 0)) {
+            nbMatches += matches.size();
+        }
+        return nbMatches + evaluate(listFallbackXPaths);
+    }
+
+    private int evaluate(List<String> xpaths) throws Exception {
+        int nbMatches = 0;
+        Element root = document.getRootElement();
+        for (String xpath : xpaths) {
+            CompiledXPath compiledXPath = CompiledXPath.get(xpath);
+            List<String> prefixes = compiledXPath.getPrefixes();
+            String[] namespaceURIs = new String[prefixes.size()];
+            for (int i = 0; i < namespaceURIs.length; i++) {
+                namespaceURIs[i] = getNamespaceURI(root, prefixes.get(i));
+            }
+            nbMatches += compiledXPath.getXPath(namespaceURIs).selectNodes(
+                    document).size();
+        }
+        return nbMatches;
+    }
+
+    private static String getNamespaceURI(Element root, String prefix) {
+        Namespace namespace = root.getNamespaceForPrefix(prefix);
+        return namespace != null ? namespace.getURI()
+                : EnumPrefixes.getPrefix(prefix).getNamespace();
+    }
+}
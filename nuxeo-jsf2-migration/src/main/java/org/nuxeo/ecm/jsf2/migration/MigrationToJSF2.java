@@ -26,7 +26,10 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -37,7 +40,13 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 import org.apache.commons.io.FilenameUtils;
 import org.nuxeo.ecm.jsf2.migration.api.MigrationService;
+import org.nuxeo.ecm.jsf2.migration.enumeration.EnumOutputMode;
+import org.nuxeo.ecm.jsf2.migration.impl.MigrationOptions;
 import org.nuxeo.ecm.jsf2.migration.impl.MigrationServiceImpl;
+import org.nuxeo.ecm.jsf2.migration.impl.TemplateCatalog;
+import org.nuxeo.ecm.jsf2.migration.rules.CustomRule;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRules;
+import org.nuxeo.ecm.jsf2.migration.rules.RulePackReader;
 
 /**
  * Main class for the tool to help the migration to JSF 2.
@@ -46,6 +55,9 @@ import org.nuxeo.ecm.jsf2.migration.impl.MigrationServiceImpl;
  */
 public class MigrationToJSF2 {
 
+    // Name of the report of all the projects in recursive mode
+    private static final String ALL_PROJECTS_REPORT = "report-all-projects.txt";
+
     /**
      * Command line flags
      */
@@ -58,6 +70,31 @@ public class MigrationToJSF2 {
 
         final static Option RECURSIVE = new Option("r", "recursive", false,
             "recursive");
+
+        final static Option THREADS = new Option("t", "threads", true,
+            "number of threads used to analyze the files (default 1)");
+
+        final static Option CACHE = new Option("c", "cache", false,
+            "reuse the results of the previous analyze for the unchanged files (without migration)");
+
+        final static Option NUXEO_VERSION = new Option("n", "nuxeo-version", true,
+            "version of the Nuxeo Platform whose templates are checked for overrides (default "
+                + TemplateCatalog.DEFAULT_VERSION + ")");
+
+        final static Option METRICS = new Option("s", "metrics", false,
+            "measure the time spent in each phase and each rule, the metrics are added to the report and written in a JSON file");
+
+        final static Option SYNC = new Option("y", "sync", true,
+            "force the written files to the disk before replacing the files, N files at a time (default 0, not forced)");
+
+        final static Option PATCH = new Option("p", "patch", false,
+            "write the migrated files by changing only the migrated parts of the original files (the original files are not formatted)");
+
+        final static Option OUTPUT = new Option("o", "output", true,
+            "output of the migrated files: 'files' for a file .migrated next to each file (default), 'diff' for a unified diff or 'zip' for a zip of all the migrated files next to the report (with 'diff' and 'zip', the files are patched as with -p)");
+
+        final static Option RULES = new Option("u", "rules", true,
+            "rule packs applied in addition to the rules of the tool: XML files or directories of XML files, separated by commas");
     }
 
     /**
@@ -72,13 +109,30 @@ public class MigrationToJSF2 {
         options.addOption(Flags.MIGRATE);
         options.addOption(Flags.FORMAT);
         options.addOption(Flags.RECURSIVE);
+        options.addOption(Flags.THREADS);
+        options.addOption(Flags.CACHE);
+        options.addOption(Flags.NUXEO_VERSION);
+        options.addOption(Flags.METRICS);
+        options.addOption(Flags.SYNC);
+        options.addOption(Flags.PATCH);
+        options.addOption(Flags.OUTPUT);
+        options.addOption(Flags.RULES);
 
         CommandLine cmd = null;
+        MigrationOptions migrationOptions = new MigrationOptions();
+        int threads = 1;
         try {
             cmd = parser.parse(options, args);
             if (cmd.getArgs().length != 1) {
                 throw new ParseException("Must specify project directory.");
             }
+            threads = getNumberOfThreads(cmd);
+            migrationOptions.setMetrics(cmd.hasOption(Flags.METRICS.getOpt()));
+            migrationOptions.setPatchSource(cmd.hasOption(Flags.PATCH.getOpt()));
+            migrationOptions.setSyncBatchSize(getSyncBatchSize(cmd));
+            migrationOptions.setNuxeoVersion(getNuxeoVersion(cmd));
+            migrationOptions.setOutputMode(getOutputMode(cmd));
+            migrationOptions.setCustomRules(getCustomRules(cmd));
         } catch (ParseException e) {
             HelpFormatter formatter = new HelpFormatter();
             System.out.println(e.getMessage());
@@ -88,9 +142,10 @@ public class MigrationToJSF2 {
 
         // Get the parameters
         String path = cmd.getArgs()[0];
-        final boolean migration = cmd.hasOption(Flags.MIGRATE.getOpt());
-        final boolean format = cmd.hasOption(Flags.FORMAT.getOpt());
         boolean recursive = cmd.hasOption(Flags.RECURSIVE.getOpt());
+        boolean migration = cmd.hasOption(Flags.MIGRATE.getOpt());
+        boolean format = cmd.hasOption(Flags.FORMAT.getOpt());
+        boolean cache = cmd.hasOption(Flags.CACHE.getOpt());
 
         File file = new File(path);
 
@@ -109,50 +164,176 @@ public class MigrationToJSF2 {
                 System.out.println("The specified file is not xhtml file.");
                 return;
             }
-            processSingleXHTMLFile(file, migration, format);
+            processSingleXHTMLFile(file, migrationOptions, migration, format,
+                threads, cache);
         } else if (!recursive) {
             if (!isValidProjectDirectory(path)) {
                 System.out.println("The specified directory is not a valid project directory.");
                 return;
             }
-            processDirectory(file.getAbsolutePath(), migration, format);
+            processDirectory(file.getAbsolutePath(), migrationOptions,
+                migration, format, threads, cache);
         } else {
-            Path startingDir = Paths.get(path);
-            Files.walkFileTree(startingDir, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir,
-                    BasicFileAttributes attrs) throws IOException {
-                    return processDirectory(dir.toFile().getPath(),
-                        migration, format) ?
-                        FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            processRecursive(file.getAbsolutePath(), migrationOptions,
+                migration, format, threads, cache);
+        }
+    }
+
+    private static int getNumberOfThreads(CommandLine cmd) throws ParseException {
+        if (!cmd.hasOption(Flags.THREADS.getOpt())) {
+            return 1;
+        }
+        String value = cmd.getOptionValue(Flags.THREADS.getOpt());
+        try {
+            int threads = Integer.parseInt(value);
+            if (threads < 1) {
+                throw new ParseException("The number of threads must be at least 1.");
+            }
+            return threads;
+        } catch (NumberFormatException e) {
+            throw new ParseException(String.format("Invalid number of threads : %s", value));
+        }
+    }
+
+    private static int getSyncBatchSize(CommandLine cmd) throws ParseException {
+        if (!cmd.hasOption(Flags.SYNC.getOpt())) {
+            return 0;
+        }
+        String value = cmd.getOptionValue(Flags.SYNC.getOpt());
+        try {
+            int syncBatchSize = Integer.parseInt(value);
+            if (syncBatchSize < 0) {
+                throw new ParseException("The number of files forced together can not be negative.");
+            }
+            return syncBatchSize;
+        } catch (NumberFormatException e) {
+            throw new ParseException(String.format("Invalid number of files forced together : %s", value));
+        }
+    }
+
+    private static EnumOutputMode getOutputMode(CommandLine cmd) throws ParseException {
+        String value = cmd.getOptionValue(Flags.OUTPUT.getOpt(),
+            EnumOutputMode.FILES.getName());
+        EnumOutputMode mode = EnumOutputMode.getOutputMode(value);
+        if (mode == null) {
+            throw new ParseException(String.format("Invalid output : %s", value));
+        }
+        return mode;
+    }
+
+    private static List<CustomRule> getCustomRules(CommandLine cmd) throws ParseException {
+        if (!cmd.hasOption(Flags.RULES.getOpt())) {
+            return Collections.emptyList();
+        }
+        List<CustomRule> rules = new ArrayList<CustomRule>();
+        for (String value : cmd.getOptionValues(Flags.RULES.getOpt())) {
+            for (String path : value.split(",")) {
+                if (path.trim().isEmpty()) {
+                    continue;
                 }
-            });
+                try {
+                    rules.addAll(RulePackReader.read(new File(path.trim())));
+                } catch (IOException | IllegalArgumentException e) {
+                    throw new ParseException(e.getMessage());
+                }
+            }
+        }
+        // Check the names of the rules before the analyze
+        try {
+            new MigrationRules(rules);
+        } catch (IllegalArgumentException e) {
+            throw new ParseException(e.getMessage());
+        }
+        return rules;
+    }
+
+    private static String getNuxeoVersion(CommandLine cmd) throws ParseException {
+        String version = cmd.getOptionValue(Flags.NUXEO_VERSION.getOpt(),
+            TemplateCatalog.DEFAULT_VERSION);
+        try {
+            TemplateCatalog.get(version);
+        } catch (IllegalArgumentException e) {
+            throw new ParseException(e.getMessage());
         }
+        return version;
     }
 
-    private static boolean processDirectory(String directory, boolean migration, boolean format) {
+    private static void processDirectory(String directory, MigrationOptions options,
+            boolean migration, boolean format, int threads, boolean cache) {
         if (!isValidProjectDirectory(directory)) {
-            return false;
+            return;
         }
+        long start = System.currentTimeMillis();
+        MigrationService migrationService = new MigrationServiceImpl(options);
+
+        // The XHTML files of the project directory are analyzed while they
+        // are found
+        File report = new File(directory + "/report.txt");
         System.out.println(String.format("Analyzing %s", directory));
+        try {
+            migrationService.analyzeDirectory(report,
+                getXHTMLRootDirectory(directory), migration, format, threads,
+                cache);
+        } catch (IOException ex) {
+            System.out.println(String.format(
+                "Error while generating the report : %s", ex.getMessage()));
+        }
+
+        long timeElapsed = System.currentTimeMillis() - start;
+        System.out.println(String.format("The analyze is done in %d ms", timeElapsed));
+    }
+
+    /**
+     * Analyze all the project directories of a directory tree at the same
+     * time. Each project has its report, and the report of all the projects
+     * is generated in the root directory.
+     */
+    private static void processRecursive(String directory, MigrationOptions options,
+            boolean migration, boolean format, int threads, boolean cache)
+            throws IOException {
         long start = System.currentTimeMillis();
-        MigrationService migrationService = new MigrationServiceImpl();
+        // The projects are reported sorted by path
+        final Map<File, File> projects = new TreeMap<>();
+        Files.walkFileTree(Paths.get(directory), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir,
+                BasicFileAttributes attrs) throws IOException {
+                String projectDirectory = dir.toFile().getPath();
+                if (!isValidProjectDirectory(projectDirectory)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                System.out.println(String.format("Found %s", projectDirectory));
+                projects.put(getXHTMLRootDirectory(projectDirectory),
+                    new File(projectDirectory + "/report.txt"));
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+        });
 
-        // Parse all files in the project directory to get all the XHTML files
-        List<File> listXHTMLFiles = migrationService.getAllXhtmlFiles(getXHTMLRootDirectory(directory));
-        return processAnalyze(directory, migration, format, start,
-                listXHTMLFiles);
+        File report = new File(directory + "/" + ALL_PROJECTS_REPORT);
+        MigrationService migrationService = new MigrationServiceImpl(options);
+        System.out.println(String.format("Analyzing %d projects", projects.size()));
+        try {
+            migrationService.analyzeDirectories(report, projects, migration,
+                format, threads, cache);
+        } catch (IOException ex) {
+            System.out.println(String.format(
+                "Error while generating the report : %s", ex.getMessage()));
+        }
+
+        long timeElapsed = System.currentTimeMillis() - start;
+        System.out.println(String.format("The analyze of %d projects is done in %d ms",
+            projects.size(), timeElapsed));
     }
 
-    private static boolean processAnalyze(String directory, boolean migration,
-            boolean format, long start,
-            List<File> listXHTMLFiles) {
+    private static void processAnalyze(String directory,
+            MigrationOptions options, boolean migration, boolean format,
+            int threads, boolean cache, long start, List<File> listXHTMLFiles) {
         // Generate the report
         File report = new File(directory + "/report.txt");
-        MigrationService migrationService = new MigrationServiceImpl();
+        MigrationService migrationService = new MigrationServiceImpl(options);
         try {
             migrationService.analyzeProject(report, listXHTMLFiles, migration,
-                format);
+                format, threads, cache);
         } catch (IOException ex) {
             System.out.println(String.format(
                 "Error while generating the report : %s", ex.getMessage()));
@@ -160,12 +341,12 @@ public class MigrationToJSF2 {
 
         long timeElapsed = System.currentTimeMillis() - start;
         System.out.println(String.format("The analyze is done in %d ms", timeElapsed));
-
-        return true;
     }
 
-    private static boolean processSingleXHTMLFile(File file, boolean migration, boolean format) {
-        return processAnalyze(file.getParent(), migration, format, System.currentTimeMillis(), Arrays.asList(new File[] {file}));
+    private static void processSingleXHTMLFile(File file, MigrationOptions options,
+            boolean migration, boolean format, int threads, boolean cache) {
+        processAnalyze(file.getParent(), options, migration, format,
+            threads, cache, System.currentTimeMillis(), Arrays.asList(new File[] {file}));
     }
 
     private static File getXHTMLRootDirectory(String directory) {
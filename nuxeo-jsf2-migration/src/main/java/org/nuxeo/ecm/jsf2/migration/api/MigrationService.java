@@ -19,12 +19,13 @@ package org.nuxeo.ecm.jsf2.migration.api;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.dom4j.DocumentException;
 import org.jaxen.JaxenException;
-import org.nuxeo.ecm.jsf2.migration.enumeration.EnumTypeMigration;
 import org.nuxeo.ecm.jsf2.migration.report.FileReport;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRule;
 
 /**
  * API to help the migration to JSF 2.
@@ -37,7 +38,7 @@ public interface MigrationService {
      * Get all the XHTML files in the project folder.
      *
      * @param root The root of the directory to search.
-     * @return A list of XHTML files
+     * @return A list of XHTML files, sorted by path
      */
     public List<File> getAllXhtmlFiles(File root);
 
@@ -55,6 +56,92 @@ public interface MigrationService {
     public void analyzeProject(File report, List<File> listFiles,
             boolean doMigration, boolean format) throws IOException;
 
+    /**
+     * Analyze the project to generate the report and eventually do the
+     * migration automatically (if possible), spreading the analysis of the
+     * files over a pool of threads. The report lists the files in the order
+     * of the list whatever the number of threads used.
+     *
+     * @param report The report file which will contain the report.
+     * @param listFiles The list of files to analyze.
+     * @param doMigration Do the automatic migration if allowed by the rules.
+     * @param format Before migrating the file, do a format of the original
+     *            files in order to have the same format for the two files
+     * @param threads The number of threads used to analyze the files.
+     * @throws IOException
+     */
+    public void analyzeProject(File report, List<File> listFiles,
+            boolean doMigration, boolean format, int threads)
+            throws IOException;
+
+    /**
+     * Analyze the project to generate the report and eventually do the
+     * migration automatically (if possible), spreading the analysis of the
+     * files over a pool of threads.
+     * <p>
+     * If the cache is used and no migration is done, the results of the
+     * analyze are stored in a file next to the report, and the files whose
+     * content did not change since the previous analyze are not parsed again.
+     *
+     * @param report The report file which will contain the report.
+     * @param listFiles The list of files to analyze.
+     * @param doMigration Do the automatic migration if allowed by the rules.
+     * @param format Before migrating the file, do a format of the original
+     *            files in order to have the same format for the two files
+     * @param threads The number of threads used to analyze the files.
+     * @param useCache Reuse the results of the previous analyze for the
+     *            unchanged files.
+     * @throws IOException
+     */
+    public void analyzeProject(File report, List<File> listFiles,
+            boolean doMigration, boolean format, int threads, boolean useCache)
+            throws IOException;
+
+    /**
+     * Analyze all the XHTML files of a directory tree to generate the report
+     * and eventually do the migration automatically (if possible). The files
+     * are analyzed as soon as they are found, while the directories are still
+     * walked, and the report lists them sorted by path.
+     *
+     * @param report The report file which will contain the report.
+     * @param root The root of the directory tree containing the XHTML files.
+     * @param doMigration Do the automatic migration if allowed by the rules.
+     * @param format Before migrating the file, do a format of the original
+     *            files in order to have the same format for the two files
+     * @param threads The number of threads used to walk the directories and
+     *            to analyze the files.
+     * @param useCache Reuse the results of the previous analyze for the
+     *            unchanged files.
+     * @throws IOException
+     */
+    public void analyzeDirectory(File report, File root, boolean doMigration,
+            boolean format, int threads, boolean useCache) throws IOException;
+
+    /**
+     * Analyze the XHTML files of several projects at the same time, with the
+     * same pool of threads. A report is generated for each project, and a
+     * report of all the projects contains the summary of all the files and
+     * the summary of each project.
+     *
+     * @param report The report file which will contain the report of all
+     *            the projects.
+     * @param projects The report file of each project, by root of the
+     *            directory tree containing the XHTML files of the project.
+     *            The projects are reported in the order of the map.
+     * @param doMigration Do the automatic migration if allowed by the rules.
+     * @param format Before migrating the file, do a format of the original
+     *            files in order to have the same format for the two files
+     * @param threads The number of threads used to walk the directories and
+     *            to analyze the files.
+     * @param useCache Reuse the results of the previous analyze for the
+     *            unchanged files, the cache of each project is next to its
+     *            report.
+     * @throws IOException
+     */
+    public void analyzeDirectories(File report, Map<File, File> projects,
+            boolean doMigration, boolean format, int threads, boolean useCache)
+            throws IOException;
+
     /**
      * Analyze an XHTML file for the action to be done for the migration.
      *
@@ -82,7 +169,7 @@ public interface MigrationService {
      * @return A FileReport object containing the action to be done.
      */
     public FileReport analyzeFileForRules(File file, FileReport fileReport,
-            List<EnumTypeMigration> listRules, boolean doMigration,
+            List<? extends MigrationRule> listRules, boolean doMigration,
             boolean format) throws JaxenException, DocumentException;
 
     /**
@@ -0,0 +1,71 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.enumeration;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Enumeration of the ways to output the migrated files.
+ *
+ * @since 6.0
+ */
+public enum EnumOutputMode {
+
+    // A file '.migrated' next to each migrated file
+    FILES("files", null),
+    // A unified diff of all the migrated files, next to the report
+    DIFF("diff", ".patch"),
+    // A zip of all the migrated files, next to the report
+    ZIP("zip", ".zip");
+
+    private String name;
+
+    private String extension;
+
+    /**
+     * @param name The name of the mode on the command line.
+     * @param extension The extension of the file containing all the migrated
+     *            files, null if the files are written one by one.
+     */
+    private EnumOutputMode(String name, String extension) {
+        this.name = name;
+        this.extension = extension;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Get a mode from its name.
+     *
+     * @return The mode or null if there is no mode with the name.
+     */
+    public static EnumOutputMode getOutputMode(String name) {
+        for (EnumOutputMode mode : values()) {
+            if (StringUtils.equalsIgnoreCase(name, mode.name)) {
+                return mode;
+            }
+        }
+
+        return null;
+    }
+}
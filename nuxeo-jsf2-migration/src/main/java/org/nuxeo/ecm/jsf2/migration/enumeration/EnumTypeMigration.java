@@ -27,13 +27,16 @@ import org.nuxeo.ecm.jsf2.migration.parser.GenericParser;
 import org.nuxeo.ecm.jsf2.migration.parser.NamespaceParser;
 import org.nuxeo.ecm.jsf2.migration.parser.ReRenderParser;
 import org.nuxeo.ecm.jsf2.migration.parser.RuleParser;
+import org.nuxeo.ecm.jsf2.migration.report.ReportMessages;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRule;
 
 /**
- * Enumeration of the type of migration.
+ * Enumeration of the type of migration. Other rules can be defined by rule
+ * packs, see {@link org.nuxeo.ecm.jsf2.migration.rules.RulePackReader}.
  *
  * @since 5.9.6
  */
-public enum EnumTypeMigration {
+public enum EnumTypeMigration implements MigrationRule {
 
     // Rule checking the presence of <a4j:form> elements
     A4J_FORM_RULE("//a4j:form", "a4j.ajax.rule1.message", Severity.ERROR,
@@ -104,10 +107,6 @@ public enum EnumTypeMigration {
     OVERRIDE_COMPAT_RULE(null, "override.compat.rule", Severity.ERROR, null,
             false);
 
-    private enum Severity {
-        INFO, WARNING, ERROR
-    };
-
     private static final Log log = LogFactory.getLog(EnumTypeMigration.class);
 
     // XPath used to get the elements to check
@@ -123,9 +122,6 @@ public enum EnumTypeMigration {
     // The parser used to analyze and migrate the file
     private Class parser;
 
-    // The instance of the parser
-    private RuleParser instance;
-
     // The migration can it be done by the parser?
     private boolean migrationAuto;
 
@@ -155,50 +151,54 @@ public enum EnumTypeMigration {
         this.newValue = newValue;
     }
 
+    @Override
     public String getXPath() {
         return xpath;
     }
 
+    @Override
     public String getKeyMessage() {
         return keyMessage;
     }
 
+    @Override
     public Severity getSeverity() {
         return severityMessage;
     }
 
+    @Override
     public boolean isMigrationAuto() {
         return migrationAuto;
     }
 
+    @Override
     public String getNewValue() {
         return newValue;
     }
 
-    public RuleParser getInstance(boolean doMigration) {
-        try {
-            initParser(doMigration);
-        } catch (Exception ex) {
-            log.error(ex.getMessage());
-        }
-        return instance;
+    @Override
+    public String formatSummarized(Object... arguments) {
+        return ReportMessages.getInstance().formatSummarized(this, arguments);
     }
 
-    /**
-     * Init the parser.
-     *
-     * @param listPrefixes The list of prefixes defined in the contribution.
-     * @throws Exception
-     */
-    public void initParser(boolean doMigration) throws Exception {
-        if (instance == null) {
-            instance = (RuleParser) parser.newInstance();
-        }
-        instance.init(this, doMigration);
+    @Override
+    public String formatDetailed(Object... arguments) {
+        return ReportMessages.getInstance().formatDetailed(this, arguments);
     }
 
-    public void resetInstance() {
-        instance = null;
+    @Override
+    public RuleParser newParser(boolean doMigration) {
+        if (parser == null) {
+            return null;
+        }
+        try {
+            RuleParser newInstance = (RuleParser) parser.newInstance();
+            newInstance.init(this, doMigration);
+            return newInstance;
+        } catch (Exception ex) {
+            log.error(ex.getMessage());
+            return null;
+        }
     }
 
     /**
@@ -0,0 +1,509 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.jsf2.migration.report.AnalysisCache;
+import org.nuxeo.ecm.jsf2.migration.report.AnalysisMetrics;
+import org.nuxeo.ecm.jsf2.migration.report.AnalysisMetrics.Phase;
+import org.nuxeo.ecm.jsf2.migration.report.FileReport;
+import org.nuxeo.ecm.jsf2.migration.report.ReportWriter;
+
+/**
+ * Analyze the files of a project in overlapping stages linked by bounded
+ * queues:
+ * <ol>
+ * <li>discover the files,</li>
+ * <li>read the content of the files,</li>
+ * <li>parse the files and apply the rules,</li>
+ * <li>write the migrated files, or add their changes to the file of all the
+ * changes (see {@link ChangeWriter}),</li>
+ * <li>add the reports of the files to the report.</li>
+ * </ol>
+ * The reading of a file is done while other files are analyzed, and a stage
+ * waits when the next one is late, so only a few files per thread are held
+ * in memory whatever the size of the project.
+ * <p>
+ * Several projects can be analyzed in the same run: their files go through
+ * the same stages and threads, and the report of each file is added to the
+ * report of its project.
+ * <p>
+ * A pipeline is used for one run.
+ *
+ * @since 6.0
+ */
+public class AnalysisPipeline {
+
+    private static Log logger = LogFactory.getLog(AnalysisPipeline.class);
+
+    // Number of files waiting between two stages, per analyzing thread
+    private static final int QUEUE_CAPACITY_PER_THREAD = 4;
+
+    // Marks the end of the files of a queue
+    private static final Item END = new Item(null, -1, null);
+
+    /**
+     * A project analyzed by the pipeline.
+     */
+    public static class Project {
+
+        private final File root;
+
+        private final ReportWriter reportWriter;
+
+        private final AnalysisCache cache;
+
+        // Position of the project in the report of all the projects
+        int position;
+
+        /**
+         * @param root The root of the directory tree containing the XHTML
+         *            files of the project.
+         * @param reportWriter The writer of the report of the project, the
+         *            files are written sorted by path.
+         * @param cache The results of the previous analyze of the project,
+         *            null if the files are all analyzed.
+         */
+        public Project(File root, ReportWriter reportWriter,
+                AnalysisCache cache) {
+            this.root = root;
+            this.reportWriter = reportWriter;
+            this.cache = cache;
+        }
+    }
+
+    /**
+     * A file going through the stages.
+     */
+    private static class Item {
+
+        final Project project;
+
+        // Position of the file in the list of files, 0 if the files are
+        // discovered
+        final int index;
+
+        final File file;
+
+        byte[] content;
+
+        String readError;
+
+        FileReport fileReport;
+
+        List<OutputDocument> listOutputs;
+
+        // The size of the content and the time spent by the stages on the
+        // file, for the metrics
+        long size;
+
+        long nanos;
+
+        Item(Project project, int index, File file) {
+            this.project = project;
+            this.index = index;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Processing done by a stage on each file.
+     */
+    private interface Processor {
+
+        void process(Item item) throws Exception;
+    }
+
+    private final MigrationServiceImpl service;
+
+    private final boolean doMigration;
+
+    private final boolean format;
+
+    private final int threads;
+
+    private final AnalysisMetrics metrics;
+
+    // The writer of the changes of the migrated files, null if the files are
+    // written one by one
+    private final ChangeWriter changeWriter;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    // The error cancelling the run, null while the run goes on
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    // The queues between the stages
+    private final BlockingQueue<Item> discovered;
+
+    private final BlockingQueue<Item> read;
+
+    private final BlockingQueue<Item> analyzed;
+
+    private final BlockingQueue<Item> written;
+
+    /**
+     * @param service The service analyzing the files.
+     * @param doMigration Do the automatic migration if allowed by the rules.
+     * @param format Format the original files before the migration.
+     * @param threads The number of threads used to read and analyze the
+     *            files.
+     */
+    public AnalysisPipeline(MigrationServiceImpl service, boolean doMigration,
+            boolean format, int threads) {
+        this(service, doMigration, format, threads, AnalysisMetrics.DISABLED);
+    }
+
+    /**
+     * @param service The service analyzing the files.
+     * @param doMigration Do the automatic migration if allowed by the rules.
+     * @param format Format the original files before the migration.
+     * @param threads The number of threads used to read and analyze the
+     *            files.
+     * @param metrics The metrics of the run, the time spent by each stage on
+     *            a file is added to the time of the file.
+     */
+    public AnalysisPipeline(MigrationServiceImpl service, boolean doMigration,
+            boolean format, int threads, AnalysisMetrics metrics) {
+        this(service, doMigration, format, threads, metrics, null);
+    }
+
+    /**
+     * @param service The service analyzing the files.
+     * @param doMigration Do the automatic migration if allowed by the rules.
+     * @param format Format the original files before the migration.
+     * @param threads The number of threads used to read and analyze the
+     *            files.
+     * @param metrics The metrics of the run.
+     * @param changeWriter The writer of the changes of the migrated files,
+     *            null if the files are written one by one. The changes are
+     *            added by the single thread writing the files.
+     */
+    public AnalysisPipeline(MigrationServiceImpl service, boolean doMigration,
+            boolean format, int threads, AnalysisMetrics metrics,
+            ChangeWriter changeWriter) {
+        this.service = service;
+        this.metrics = metrics;
+        this.changeWriter = changeWriter;
+        this.doMigration = doMigration;
+        this.format = format;
+        this.threads = Math.max(1, threads);
+        int capacity = QUEUE_CAPACITY_PER_THREAD * this.threads;
+        discovered = new ArrayBlockingQueue<Item>(capacity);
+        read = new ArrayBlockingQueue<Item>(capacity);
+        analyzed = new ArrayBlockingQueue<Item>(capacity);
+        written = new ArrayBlockingQueue<Item>(capacity);
+    }
+
+    /**
+     * Analyze a list of files.
+     *
+     * @param reportWriter The writer of the report, the files are written in
+     *            the order of the list.
+     * @param cache The results of the previous analyze, null if the files
+     *            are all analyzed.
+     */
+    public void run(final List<File> listFiles, ReportWriter reportWriter,
+            AnalysisCache cache) throws IOException {
+        final Project project = new Project(null, reportWriter, cache);
+        run(new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                for (int i = 0; i < listFiles.size(); i++) {
+                    discovered.put(new Item(project, i, listFiles.get(i)));
+                }
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Analyze the XHTML files of a directory tree, the files are analyzed
+     * while the directories are walked.
+     *
+     * @param reportWriter The writer of the report, the files are written
+     *            sorted by path.
+     * @param cache The results of the previous analyze, null if the files
+     *            are all analyzed.
+     */
+    public void run(File root, ReportWriter reportWriter, AnalysisCache cache)
+            throws IOException {
+        run(Collections.singletonList(new Project(root, reportWriter, cache)),
+                null);
+    }
+
+    /**
+     * Analyze the XHTML files of several projects at the same time. The
+     * directories of the projects are walked one after the other, and the
+     * files of all the projects are analyzed by the same threads.
+     *
+     * @param listProjects The projects to analyze.
+     * @param summaryWriter The writer of the report of all the projects, null
+     *            if there is none. The files are written in the order of the
+     *            projects, then sorted by path.
+     */
+    public void run(final List<Project> listProjects,
+            ReportWriter summaryWriter) throws IOException {
+        for (int i = 0; i < listProjects.size(); i++) {
+            listProjects.get(i).position = i;
+        }
+        run(new Callable<Void>() {
+            @Override
+            public Void call() {
+                XhtmlFileFinder finder = new XhtmlFileFinder(threads);
+                for (final Project project : listProjects) {
+                    finder.find(project.root, new XhtmlFileFinder.Listener() {
+                        @Override
+                        public void fileFound(File file) {
+                            try {
+                                discovered.put(new Item(project, 0, file));
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                                throw new CancellationException(
+                                        "The analyze was interrupted");
+                            }
+                        }
+                    });
+                }
+                return null;
+            }
+        }, summaryWriter);
+    }
+
+    private void run(final Callable<Void> discovery,
+            final ReportWriter summaryWriter) throws IOException {
+        try {
+            // Discover the files
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    try {
+                        discovery.call();
+                    } catch (InterruptedException ex) {
+                        throw ex;
+                    } catch (Exception ex) {
+                        logger.error(String.format(
+                                "Error while searching the files : %s",
+                                ex.getMessage()));
+                    } catch (Throwable t) {
+                        cancel(t);
+                    } finally {
+                        // The files found are analyzed whatever happens,
+                        // unless the run is cancelled
+                        if (failure.get() == null) {
+                            discovered.put(END);
+                        }
+                    }
+                    return null;
+                }
+            });
+            // Read the files
+            startStage(threads, discovered, read, new Processor() {
+                @Override
+                public void process(Item item) {
+                    long start = metrics.time();
+                    try {
+                        item.content = FileUtils.readFileToByteArray(item.file);
+                        item.size = item.content.length;
+                    } catch (IOException ex) {
+                        item.readError = ex.getMessage();
+                    }
+                    item.nanos += metrics.addPhase(Phase.READ, start) - start;
+                }
+            });
+            // Analyze the files
+            startStage(threads, read, analyzed, new Processor() {
+                @Override
+                public void process(Item item) throws IOException {
+                    long start = metrics.time();
+                    analyze(item);
+                    item.nanos += metrics.time() - start;
+                }
+            });
+            // Write the migrated files
+            startStage(1, analyzed, written, new Processor() {
+                @Override
+                public void process(Item item) {
+                    if (item.listOutputs != null) {
+                        long start = metrics.time();
+                        service.writeOutputs(item.file, item.listOutputs,
+                                metrics, changeWriter);
+                        item.listOutputs = null;
+                        item.nanos += metrics.time() - start;
+                    }
+                }
+            });
+            // Add the reports of the files to the reports
+            Future<Void> result = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException, IOException {
+                    for (Item item = written.take(); item != END; item = written.take()) {
+                        metrics.addFile(item.file, item.size, item.nanos);
+                        if (item.fileReport != null) {
+                            item.project.reportWriter.addFileReport(
+                                    item.index, item.fileReport);
+                            if (summaryWriter != null) {
+                                summaryWriter.addFileReport(
+                                        item.project.position,
+                                        item.fileReport);
+                            }
+                        }
+                    }
+                    return null;
+                }
+            });
+            result.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The analyze was interrupted");
+        } catch (ExecutionException ex) {
+            throw newError(ex.getCause());
+        } catch (RejectedExecutionException ex) {
+            // A stage failed before all the stages were started
+            throw newError(ex);
+        } finally {
+            cancel(new CancellationException("The analyze is finished"));
+        }
+    }
+
+    /**
+     * Create the error of a failed run. The error of a stage is the cause of
+     * the interruption of the others.
+     */
+    private IOException newError(Throwable ex) {
+        Throwable cause = failure.get() != null ? failure.get() : ex;
+        return new IOException(cause.getMessage() != null ? cause.getMessage()
+                : cause.toString(), cause);
+    }
+
+    /**
+     * Cancel the run: the threads of the stages are interrupted and stop
+     * without marking the end of their queues.
+     *
+     * @param cause The error cancelling the run.
+     */
+    private void cancel(Throwable cause) {
+        failure.compareAndSet(null, cause);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Start the threads of a stage. Each thread takes the files from the
+     * input queue, processes them and gives them to the next stage. The last
+     * thread to end marks the end of the output queue.
+     */
+    private void startStage(int nbThreads, final BlockingQueue<Item> input,
+            final BlockingQueue<Item> output, final Processor processor) {
+        final AtomicInteger running = new AtomicInteger(nbThreads);
+        for (int i = 0; i < nbThreads; i++) {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    try {
+                        for (Item item = input.take(); item != END; item = input.take()) {
+                            try {
+                                processor.process(item);
+                            } catch (Exception ex) {
+                                addError(item, ex);
+                            }
+                            output.put(item);
+                        }
+                    } catch (InterruptedException ex) {
+                        throw ex;
+                    } catch (Throwable t) {
+                        // An Error can leave the analyzed files in any
+                        // state, the run fails
+                        cancel(t);
+                    } finally {
+                        // Let the other threads of the stage see the end,
+                        // and the next stage once all the threads ended,
+                        // unless the run is cancelled
+                        if (failure.get() == null) {
+                            input.put(END);
+                            if (running.decrementAndGet() == 0) {
+                                output.put(END);
+                            }
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Report the error of the processing of a file in the report of the
+     * file, so the file is not missing from the report.
+     */
+    private void addError(Item item, Exception ex) {
+        String message = ex.getMessage() != null ? ex.getMessage()
+                : ex.toString();
+        logger.error(String.format("Error while analyzing file '%s' : %s",
+                item.file.getName(), message));
+        item.listOutputs = null;
+        if (item.fileReport == null) {
+            item.fileReport = service.newFileReport(item.file, true);
+        }
+        service.addReadingError(item.fileReport, message);
+    }
+
+    private void analyze(Item item) throws IOException {
+        AnalysisCache cache = item.project.cache;
+        String hash = null;
+        if (cache != null && item.content != null) {
+            hash = AnalysisCache.hash(item.content);
+            item.fileReport = cache.get(item.file, hash);
+            if (item.fileReport != null) {
+                item.content = null;
+                return;
+            }
+        }
+        FileReport fileReport = service.newFileReport(item.file, true);
+        if (item.content == null) {
+            service.addReadingError(fileReport, item.readError);
+        } else {
+            item.listOutputs = service.analyzeContentForRules(item.file,
+                    item.content, fileReport, service.getRules(), doMigration,
+                    format, metrics);
+            // The content is not needed by the next stages
+            item.content = null;
+            if (hash != null) {
+                cache.put(item.file, hash, fileReport);
+            }
+        }
+        item.fileReport = fileReport;
+    }
+}
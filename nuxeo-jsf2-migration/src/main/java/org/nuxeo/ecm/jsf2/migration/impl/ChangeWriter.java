@@ -0,0 +1,204 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.nuxeo.ecm.jsf2.migration.enumeration.EnumOutputMode;
+
+/**
+ * Writer of the changes of all the migrated files of a run to a single file,
+ * instead of a file '.migrated' next to each migrated file. The changes are
+ * streamed to the file as the files are migrated, in the order they are
+ * added.
+ * <p>
+ * As the files written by {@link OutputFileWriter}, the file is written to a
+ * temporary file which replaces the file at {@link #finish()}, so a run which
+ * fails leaves the file of the previous run unchanged.
+ * <p>
+ * The methods can be called by several threads, the pipeline adds the
+ * changes from its single writing thread.
+ *
+ * @since 6.0
+ */
+public abstract class ChangeWriter implements Closeable {
+
+    // Size of the buffer between the changes and the file
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path target;
+
+    private final Path temp;
+
+    // The directory the paths of the migrated files are relative to
+    private final Path baseDirectory;
+
+    // True if the file is forced to the disk before replacing the file
+    private final boolean sync;
+
+    private final FileChannel channel;
+
+    protected final OutputStream out;
+
+    private boolean finished;
+
+    /**
+     * @param output The file to write.
+     * @param baseDirectory The directory the paths of the migrated files are
+     *            relative to in the file.
+     * @param sync True if the file is forced to the disk before replacing the
+     *            file.
+     */
+    protected ChangeWriter(File output, File baseDirectory, boolean sync)
+            throws IOException {
+        target = output.toPath().toAbsolutePath();
+        this.baseDirectory = baseDirectory.toPath().toAbsolutePath().normalize();
+        this.sync = sync;
+        temp = OutputFileWriter.createTempFile(target);
+        channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        out = new BufferedOutputStream(Channels.newOutputStream(channel),
+                BUFFER_SIZE);
+    }
+
+    /**
+     * Create the writer of a mode writing the changes to a single file.
+     *
+     * @param mode The mode of output.
+     * @param output The file to write.
+     * @param baseDirectory The directory the paths of the migrated files are
+     *            relative to in the file.
+     * @param sync True if the file is forced to the disk before replacing the
+     *            file.
+     * @throws IllegalArgumentException If the mode writes the files one by
+     *             one.
+     */
+    public static ChangeWriter create(EnumOutputMode mode, File output,
+            File baseDirectory, boolean sync) throws IOException {
+        switch (mode) {
+        case DIFF:
+            return new DiffChangeWriter(output, baseDirectory, sync);
+        case ZIP:
+            return new ZipChangeWriter(output, baseDirectory, sync);
+        default:
+            throw new IllegalArgumentException(String.format(
+                    "The output mode '%s' does not write a single file",
+                    mode.getName()));
+        }
+    }
+
+    /**
+     * Returns true if a file is in the base directory, only the changes of
+     * these files can be added.
+     */
+    public boolean contains(File file) {
+        return file.toPath().toAbsolutePath().normalize().startsWith(
+                baseDirectory);
+    }
+
+    /**
+     * Add the change of a migrated file.
+     *
+     * @param file The original file, in the base directory.
+     * @param original The content of the original file.
+     * @param migrated The content of the migrated file.
+     * @throws IllegalArgumentException If the file is not in the base
+     *             directory.
+     */
+    public synchronized void addChange(File file, byte[] original,
+            byte[] migrated) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("The changes are already written");
+        }
+        writeChange(getPath(file), original, migrated);
+    }
+
+    /**
+     * Write the change of a migrated file.
+     *
+     * @param path The path of the file relative to the base directory, with
+     *            '/' as separator.
+     */
+    protected abstract void writeChange(String path, byte[] original,
+            byte[] migrated) throws IOException;
+
+    /**
+     * Write the end of the file after the last change.
+     */
+    protected void writeEnd() throws IOException {
+    }
+
+    /**
+     * Complete the file and replace the file of the previous run.
+     */
+    public synchronized void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        writeEnd();
+        out.flush();
+        if (sync) {
+            channel.force(true);
+        }
+        out.close();
+        OutputFileWriter.move(temp, target);
+        finished = true;
+        if (sync) {
+            OutputFileWriter.forceDirectory(target.getParent());
+        }
+    }
+
+    /**
+     * Release the file, the temporary file is deleted if the file was not
+     * completed by {@link #finish()}.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!finished) {
+            finished = true;
+            try {
+                out.close();
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    public File getFile() {
+        return target.toFile();
+    }
+
+    private String getPath(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        if (!path.startsWith(baseDirectory)) {
+            // The change could not be applied from the base directory
+            throw new IllegalArgumentException(String.format(
+                    "The file '%s' is not in the directory '%s'", path,
+                    baseDirectory));
+        }
+        return baseDirectory.relativize(path).toString().replace(
+                File.separatorChar, '/');
+    }
+}
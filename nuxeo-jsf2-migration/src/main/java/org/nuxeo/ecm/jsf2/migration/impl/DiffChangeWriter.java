@@ -0,0 +1,125 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.nuxeo.ecm.jsf2.migration.impl.LineDiff.Change;
+
+/**
+ * Write the changes of the migrated files as a unified diff, which can be
+ * applied from the base directory with <code>git apply</code> or
+ * <code>patch -p1</code>. The lines are written as bytes, so the patch keeps
+ * the encoding and the ends of line of each file.
+ *
+ * @since 6.0
+ */
+public class DiffChangeWriter extends ChangeWriter {
+
+    // Number of unchanged lines written around the changed lines
+    private static final int CONTEXT = 3;
+
+    private static final String NO_NEWLINE = "\\ No newline at end of file\n";
+
+    /**
+     * @see ChangeWriter#ChangeWriter(File, File, boolean)
+     */
+    public DiffChangeWriter(File output, File baseDirectory, boolean sync)
+            throws IOException {
+        super(output, baseDirectory, sync);
+    }
+
+    @Override
+    protected void writeChange(String path, byte[] original, byte[] migrated)
+            throws IOException {
+        List<String> originalLines = LineDiff.split(original);
+        List<String> migratedLines = LineDiff.split(migrated);
+        List<Change> changes = LineDiff.diff(originalLines, migratedLines);
+        if (changes.isEmpty()) {
+            return;
+        }
+        write("--- a/" + path + "\n");
+        write("+++ b/" + path + "\n");
+
+        // The changes separated by less than two contexts are in the same
+        // hunk
+        int first = 0;
+        for (int i = 1; i <= changes.size(); i++) {
+            if (i == changes.size()
+                    || changes.get(i).getOriginalStart()
+                            - changes.get(i - 1).getOriginalEnd() > 2 * CONTEXT) {
+                writeHunk(changes.subList(first, i), originalLines,
+                        migratedLines);
+                first = i;
+            }
+        }
+    }
+
+    private void writeHunk(List<Change> changes, List<String> originalLines,
+            List<String> migratedLines) throws IOException {
+        Change first = changes.get(0);
+        Change last = changes.get(changes.size() - 1);
+        int originalStart = Math.max(0, first.getOriginalStart() - CONTEXT);
+        int originalEnd = Math.min(originalLines.size(), last.getOriginalEnd()
+                + CONTEXT);
+        // The lines of context are the same in both versions
+        int migratedStart = first.getRevisedStart()
+                - (first.getOriginalStart() - originalStart);
+        int migratedEnd = last.getRevisedEnd()
+                + (originalEnd - last.getOriginalEnd());
+        write("@@ -" + getRange(originalStart, originalEnd) + " +"
+                + getRange(migratedStart, migratedEnd) + " @@\n");
+
+        int line = originalStart;
+        for (Change change : changes) {
+            for (; line < change.getOriginalStart(); line++) {
+                writeLine(' ', originalLines.get(line));
+            }
+            for (; line < change.getOriginalEnd(); line++) {
+                writeLine('-', originalLines.get(line));
+            }
+            for (int i = change.getRevisedStart(); i < change.getRevisedEnd(); i++) {
+                writeLine('+', migratedLines.get(i));
+            }
+        }
+        for (; line < originalEnd; line++) {
+            writeLine(' ', originalLines.get(line));
+        }
+    }
+
+    /**
+     * Get the range of lines of a hunk: the first line, starting at 1, and
+     * the number of lines. An empty range starts at the line before it.
+     */
+    private static String getRange(int start, int end) {
+        return (end > start ? start + 1 : start) + "," + (end - start);
+    }
+
+    private void writeLine(char prefix, String line) throws IOException {
+        out.write(prefix);
+        write(line);
+        if (!line.endsWith("\n")) {
+            write("\n" + NO_NEWLINE);
+        }
+    }
+
+    private void write(String text) throws IOException {
+        out.write(text.getBytes(LineDiff.BYTES));
+    }
+}
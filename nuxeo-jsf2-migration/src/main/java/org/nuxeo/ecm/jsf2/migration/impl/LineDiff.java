@@ -0,0 +1,230 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.impl;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Difference between the lines of two versions of a file, computed with the
+ * algorithm of Myers ("An O(ND) Difference Algorithm and Its Variations").
+ * <p>
+ * The lines are compared as bytes, whatever the encoding of the file: each
+ * byte is kept as a char of ISO-8859-1, and each line keeps its end of line,
+ * so a changed end of line is a changed line.
+ *
+ * @since 6.0
+ */
+public class LineDiff {
+
+    // Charset mapping each byte to the char of the same value
+    public static final Charset BYTES = Charset.forName("ISO-8859-1");
+
+    // Above this number of changed lines, the lines between the first and
+    // the last changed lines are all replaced, to bound the memory used
+    private static final int MAX_DISTANCE = 2000;
+
+    /**
+     * Lines of the original version replaced by lines of the new version.
+     * The ranges are indexes of lines, the end excluded.
+     */
+    public static class Change {
+
+        private final int originalStart;
+
+        private final int originalEnd;
+
+        private final int revisedStart;
+
+        private final int revisedEnd;
+
+        public Change(int originalStart, int originalEnd, int revisedStart,
+                int revisedEnd) {
+            this.originalStart = originalStart;
+            this.originalEnd = originalEnd;
+            this.revisedStart = revisedStart;
+            this.revisedEnd = revisedEnd;
+        }
+
+        public int getOriginalStart() {
+            return originalStart;
+        }
+
+        public int getOriginalEnd() {
+            return originalEnd;
+        }
+
+        public int getRevisedStart() {
+            return revisedStart;
+        }
+
+        public int getRevisedEnd() {
+            return revisedEnd;
+        }
+    }
+
+    private LineDiff() {
+    }
+
+    /**
+     * Split a content in lines, each line ending with its '\n' except the
+     * last one if the content does not end with a '\n'.
+     */
+    public static List<String> split(byte[] content) {
+        String text = new String(content, BYTES);
+        List<String> lines = new ArrayList<String>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            end = end < 0 ? text.length() : end + 1;
+            lines.add(text.substring(start, end));
+            start = end;
+        }
+        return lines;
+    }
+
+    /**
+     * Compute the changes turning the original lines into the revised lines.
+     *
+     * @return The changes sorted by position, empty if the lines are the
+     *         same.
+     */
+    public static List<Change> diff(List<String> original, List<String> revised) {
+        int n = original.size();
+        int m = revised.size();
+        // The common first and last lines are not part of the search
+        int prefix = 0;
+        while (prefix < n && prefix < m
+                && original.get(prefix).equals(revised.get(prefix))) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < n - prefix && suffix < m - prefix
+                && original.get(n - 1 - suffix).equals(
+                        revised.get(m - 1 - suffix))) {
+            suffix++;
+        }
+
+        boolean[] removed = new boolean[n];
+        boolean[] added = new boolean[m];
+        if (!search(original.subList(prefix, n - suffix),
+                revised.subList(prefix, m - suffix), removed, added, prefix)) {
+            for (int i = prefix; i < n - suffix; i++) {
+                removed[i] = true;
+            }
+            for (int j = prefix; j < m - suffix; j++) {
+                added[j] = true;
+            }
+        }
+
+        // The lines neither removed nor added are the same in both versions
+        List<Change> changes = new ArrayList<Change>();
+        int i = 0;
+        int j = 0;
+        while (i < n || j < m) {
+            int originalStart = i;
+            int revisedStart = j;
+            while (i < n && removed[i]) {
+                i++;
+            }
+            while (j < m && added[j]) {
+                j++;
+            }
+            if (i > originalStart || j > revisedStart) {
+                changes.add(new Change(originalStart, i, revisedStart, j));
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Search the shortest edit script between two lists of lines, and mark
+     * the lines removed from the first one and added to the second one.
+     *
+     * @param offset The position of the lists in the whole lists.
+     * @return False if the lists have too many differences to be compared.
+     */
+    private static boolean search(List<String> a, List<String> b,
+            boolean[] removed, boolean[] added, int offset) {
+        int n = a.size();
+        int m = b.size();
+        int max = Math.min(n + m, MAX_DISTANCE);
+        // The furthest position on each diagonal k = x - y, at index k + max
+        // + 1, and its value before each step to follow the path back
+        int[] v = new int[2 * max + 3];
+        List<int[]> trace = new ArrayList<int[]>();
+        for (int d = 0; d <= max; d++) {
+            int[] snapshot = new int[2 * d + 3];
+            System.arraycopy(v, max - d, snapshot, 0, snapshot.length);
+            trace.add(snapshot);
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d
+                        || (k != d && v[k - 1 + max + 1] < v[k + 1 + max + 1])) {
+                    x = v[k + 1 + max + 1];
+                } else {
+                    x = v[k - 1 + max + 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a.get(x).equals(b.get(y))) {
+                    x++;
+                    y++;
+                }
+                v[k + max + 1] = x;
+                if (x >= n && y >= m) {
+                    backtrack(trace, d, n, m, removed, added, offset);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void backtrack(List<int[]> trace, int distance, int x,
+            int y, boolean[] removed, boolean[] added, int offset) {
+        for (int d = distance; d > 0; d--) {
+            // The values of the step d - 1, at index k + d + 1
+            int[] previous = trace.get(d);
+            int k = x - y;
+            int previousK;
+            if (k == -d
+                    || (k != d && previous[k - 1 + d + 1] < previous[k + 1 + d + 1])) {
+                previousK = k + 1;
+            } else {
+                previousK = k - 1;
+            }
+            int previousX = previous[previousK + d + 1];
+            int previousY = previousX - previousK;
+            // Skip the common lines, then mark the line removed or added
+            while (x > previousX && y > previousY) {
+                x--;
+                y--;
+            }
+            if (x == previousX) {
+                added[offset + previousY] = true;
+            } else {
+                removed[offset + previousX] = true;
+            }
+            x = previousX;
+            y = previousY;
+        }
+    }
+}
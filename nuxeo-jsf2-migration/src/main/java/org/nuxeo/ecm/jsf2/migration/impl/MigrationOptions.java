@@ -0,0 +1,141 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.impl;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.nuxeo.ecm.jsf2.migration.enumeration.EnumOutputMode;
+import org.nuxeo.ecm.jsf2.migration.parser.DocumentPatch;
+import org.nuxeo.ecm.jsf2.migration.report.AnalysisMetrics;
+import org.nuxeo.ecm.jsf2.migration.rules.CustomRule;
+
+/**
+ * Options of a run of the migration tool: the configuration of the
+ * {@link MigrationServiceImpl}. The options are set once, from the command
+ * line for instance, and then given to the service. The options of each
+ * analyze, such as the migration or the number of threads, are given to the
+ * methods of the service.
+ *
+ * @since 6.0
+ */
+public class MigrationOptions {
+
+    // The version of the Nuxeo Platform whose templates are checked for
+    // overrides
+    private String nuxeoVersion = TemplateCatalog.DEFAULT_VERSION;
+
+    // True if the time spent in each phase and each rule is measured
+    private boolean metrics;
+
+    // The number of written files forced to the disk together, 0 if they are
+    // not forced
+    private int syncBatchSize;
+
+    // True if the migrated files are written by patching their source
+    private boolean patchSource;
+
+    // The way the migrated files are written
+    private EnumOutputMode outputMode = EnumOutputMode.FILES;
+
+    // The rules of the rule packs applied after the rules of the tool
+    private List<CustomRule> customRules = Collections.emptyList();
+
+    public String getNuxeoVersion() {
+        return nuxeoVersion;
+    }
+
+    /**
+     * @param nuxeoVersion The version of the Nuxeo Platform whose templates
+     *            are checked for overrides
+     *            ({@link TemplateCatalog#DEFAULT_VERSION} by default).
+     */
+    public void setNuxeoVersion(String nuxeoVersion) {
+        this.nuxeoVersion = nuxeoVersion;
+    }
+
+    public boolean isMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics True if the time spent in each phase and each rule is
+     *            measured, the metrics are then written in the report (see
+     *            {@link AnalysisMetrics}).
+     */
+    public void setMetrics(boolean metrics) {
+        this.metrics = metrics;
+    }
+
+    public int getSyncBatchSize() {
+        return syncBatchSize;
+    }
+
+    /**
+     * @param syncBatchSize The number of written files forced to the disk
+     *            together, 0 if they are not forced (see
+     *            {@link OutputFileWriter}).
+     */
+    public void setSyncBatchSize(int syncBatchSize) {
+        this.syncBatchSize = syncBatchSize;
+    }
+
+    public boolean isPatchSource() {
+        return patchSource;
+    }
+
+    /**
+     * @param patchSource True if the migrated files are written by replacing
+     *            only the migrated parts of the source of the files, false if
+     *            they are written from the migrated DOM (see
+     *            {@link DocumentPatch}). The original files are then never
+     *            formatted.
+     */
+    public void setPatchSource(boolean patchSource) {
+        this.patchSource = patchSource;
+    }
+
+    public EnumOutputMode getOutputMode() {
+        return outputMode;
+    }
+
+    /**
+     * @param outputMode The way the migrated files are written. Except for
+     *            {@link EnumOutputMode#FILES}, the changes of all the files of
+     *            a run are written to a single file next to the report (see
+     *            {@link ChangeWriter}), the migrated files are written by
+     *            patching their source as with {@link #setPatchSource} and
+     *            the original files are never formatted. The files analyzed
+     *            one by one, and the files outside of the directory of the
+     *            report, are always written next to the original files.
+     */
+    public void setOutputMode(EnumOutputMode outputMode) {
+        this.outputMode = outputMode;
+    }
+
+    public List<CustomRule> getCustomRules() {
+        return customRules;
+    }
+
+    /**
+     * @param customRules The rules of the rule packs applied after the rules
+     *            applied by default.
+     */
+    public void setCustomRules(List<CustomRule> customRules) {
+        this.customRules = customRules;
+    }
+}
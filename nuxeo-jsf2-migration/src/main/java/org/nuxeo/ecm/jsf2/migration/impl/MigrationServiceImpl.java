@@ -16,36 +16,51 @@
  */
 package org.nuxeo.ecm.jsf2.migration.impl;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.text.MessageFormat;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Properties;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
-import org.dom4j.io.OutputFormat;
 import org.dom4j.io.SAXReader;
-import org.dom4j.io.XMLWriter;
 import org.jaxen.JaxenException;
 import org.nuxeo.ecm.jsf2.migration.api.MigrationService;
+import org.nuxeo.ecm.jsf2.migration.enumeration.EnumOutputMode;
 import org.nuxeo.ecm.jsf2.migration.enumeration.EnumTypeMigration;
-import org.nuxeo.ecm.jsf2.migration.parser.RuleParser;
+import org.nuxeo.ecm.jsf2.migration.parser.DocumentPatch;
+import org.nuxeo.ecm.jsf2.migration.parser.LocatingDocumentFactory;
+import org.nuxeo.ecm.jsf2.migration.parser.RuleEngine;
+import org.nuxeo.ecm.jsf2.migration.parser.RulePlan;
+import org.nuxeo.ecm.jsf2.migration.parser.StreamingMatcher;
+import org.nuxeo.ecm.jsf2.migration.report.AnalysisCache;
+import org.nuxeo.ecm.jsf2.migration.report.AnalysisMetrics;
+import org.nuxeo.ecm.jsf2.migration.report.AnalysisMetrics.Phase;
 import org.nuxeo.ecm.jsf2.migration.report.FileReport;
+import org.nuxeo.ecm.jsf2.migration.report.ReportWriter;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRule;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRules;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
 
 /**
  * Implementation of the services to help the migration to JSF 2.
@@ -56,170 +71,364 @@ public class MigrationServiceImpl implements MigrationService {
 
     private static Log logger = LogFactory.getLog(MigrationServiceImpl.class);
 
-    private static final String FILE_EXTENSION = "xhtml";
+    // The readers used to parse the files, reused by each thread
+    private final ReaderFactory readerFactory = new ReaderFactory();
+
+    // The rule engines, by list of rules, used to analyze the files
+    private final ConcurrentMap<List<MigrationRule>, RuleEngine> ruleEngines = new ConcurrentHashMap<List<MigrationRule>, RuleEngine>();
+
+    // The rule engines, by list of rules, used to analyze and migrate the
+    // files
+    private final ConcurrentMap<List<MigrationRule>, RuleEngine> migrationRuleEngines = new ConcurrentHashMap<List<MigrationRule>, RuleEngine>();
+
+    // The templates of the Nuxeo Platform which can be overridden
+    private final TemplateCatalog templateCatalog;
 
-    private static final String NOTHING_MESSAGE = "file.migration.nothing.message";
+    // True if the time spent in each phase and each rule is measured
+    private final boolean metrics;
 
-    private static final String SUFFIX_DETAILED_MESSAGE = ".detailed";
+    // The writer of the migrated files and of the formatted original files
+    private final OutputFileWriter outputWriter;
 
-    private static final String SUFFIX_SUMMARIZED_MESSAGE = ".summarized";
+    // True if the migrated files are written by patching their source
+    private final boolean patchSource;
 
-    protected static Set<String> nuxeoTemplates;
+    // The way the migrated files are written
+    private final EnumOutputMode outputMode;
 
-    protected static Set<String> nuxeoTemplatesCompletePath;
+    // The rules known by the service, with their ordinal in the reports
+    private final MigrationRules migrationRules;
+
+    // The rules applied to the files
+    private final List<MigrationRule> rules;
+
+    /**
+     * Create a service with the default options: checking the templates of
+     * the default version of the Nuxeo Platform, with the rules of the tool.
+     */
+    public MigrationServiceImpl() {
+        this(new MigrationOptions());
+    }
+
+    /**
+     * Create a service configured by the options of a run, the options of
+     * the analyze itself are given to each analyze.
+     *
+     * @param options The options of the run.
+     * @throws IllegalArgumentException If there are no templates for the
+     *             version of the Nuxeo Platform or if a rule of the rule
+     *             packs has the name of another rule.
+     */
+    public MigrationServiceImpl(MigrationOptions options) {
+        templateCatalog = TemplateCatalog.get(options.getNuxeoVersion());
+        metrics = options.isMetrics();
+        outputWriter = new OutputFileWriter(options.getSyncBatchSize());
+        outputMode = options.getOutputMode();
+        // The changes written to a single file are the migrations only, not
+        // the whole files written from their DOM
+        patchSource = options.isPatchSource()
+                || outputMode != EnumOutputMode.FILES;
+        migrationRules = new MigrationRules(options.getCustomRules());
+        rules = migrationRules.getAppliedRules();
+    }
 
-    protected static Set<String> nuxeoCompatTemplates;
+    /**
+     * Get the rules known by the service, the reports of the files are
+     * created for these rules.
+     */
+    public MigrationRules getMigrationRules() {
+        return migrationRules;
+    }
 
-    protected static Set<String> nuxeoCompatTemplatesCompletePath;
+    /**
+     * Get the rules applied to the files: the rules applied by default and
+     * the rules given to the service.
+     */
+    public List<MigrationRule> getRules() {
+        return rules;
+    }
 
     @Override
     public List<File> getAllXhtmlFiles(File root) {
-        List<File> listFiles = new ArrayList<File>();
+        return new XhtmlFileFinder(1).findAll(root);
+    }
 
-        // Parse all files in the directory
-        for (File children : root.listFiles()) {
-            if (children.isDirectory()) {
-                listFiles.addAll(getAllXhtmlFiles(children));
-            }
-            if (children.isFile()) {
-                String extension = FilenameUtils.getExtension(children.getName());
-                if (FILE_EXTENSION.equals(extension)) {
-                    listFiles.add(children);
-                }
-            }
-        }
+    @Override
+    public void analyzeProject(File report, List<File> listFiles,
+            boolean doMigration, boolean format) throws IOException {
+        analyzeProject(report, listFiles, doMigration, format, 1);
+    }
 
-        return listFiles;
+    @Override
+    public void analyzeProject(File report, List<File> listFiles,
+            boolean doMigration, boolean format, int threads)
+            throws IOException {
+        analyzeProject(report, listFiles, doMigration, format, threads, false);
     }
 
     @Override
     public void analyzeProject(File report, List<File> listFiles,
-            boolean doMigration, boolean format) throws IOException {
-        // If the file does not exist, it is created
-        if (!report.exists()) {
-            report.createNewFile();
-        }
+            boolean doMigration, boolean format, int threads, boolean useCache)
+            throws IOException {
+        analyzeProject(report, listFiles, null, doMigration, format, threads,
+                useCache);
+    }
 
-        PrintWriter printWriter = new PrintWriter(report);
-        printWriter.append("##############################\n");
-        printWriter.append("# Migration report for JSF 2 #\n");
-        printWriter.append("##############################\n\n");
+    @Override
+    public void analyzeDirectory(File report, File root, boolean doMigration,
+            boolean format, int threads, boolean useCache) throws IOException {
+        analyzeProject(report, null, root, doMigration, format, threads,
+                useCache);
+    }
 
-        List<FileReport> listReports = new ArrayList<FileReport>();
-        for (File file : listFiles) {
+    /**
+     * Analyze the files of a project and write its report.
+     *
+     * @param report The report to write.
+     * @param listFiles The files to analyze, null to analyze the XHTML files
+     *            of the directory tree.
+     * @param root The root of the directory tree, when there is no list of
+     *            files.
+     * @see #analyzeProject(File, List, boolean, boolean, int, boolean)
+     * @see #analyzeDirectory(File, File, boolean, boolean, int, boolean)
+     */
+    private void analyzeProject(File report, List<File> listFiles, File root,
+            boolean doMigration, boolean format, int threads, boolean useCache)
+            throws IOException {
+        AnalysisCache cache = loadCache(report, doMigration, useCache);
+
+        ReportWriter reportWriter = new ReportWriter(report, migrationRules);
+        ChangeWriter changeWriter = null;
+        try {
+            reportWriter.setMetrics(new AnalysisMetrics(metrics,
+                    migrationRules));
+            changeWriter = newChangeWriter(report, doMigration);
             try {
-                listReports.add(analyzeFile(file, true, doMigration, format));
-            } catch (DocumentException ex) {
-                System.out.println(String.format(
-                        "Error while reading file %s.", file.getName()));
-                System.out.println(ex.getMessage());
-            } catch (JaxenException jex) {
-                System.out.println(String.format(
-                        "Error while parsing file %s.", file.getName()));
-                System.out.println(jex.getMessage());
+                if (listFiles != null) {
+                    analyzeFiles(listFiles, doMigration, format, threads,
+                            cache, reportWriter, changeWriter);
+                } else {
+                    analyzeFiles(root, doMigration, format, threads, cache,
+                            reportWriter, changeWriter);
+                }
+            } finally {
+                flushOutputs();
             }
+            reportWriter.getMetrics().stop();
+            if (changeWriter != null) {
+                changeWriter.finish();
+            }
+            reportWriter.finish();
+        } finally {
+            if (changeWriter != null) {
+                changeWriter.close();
+            }
+            reportWriter.close();
         }
 
-        // Generate the content report
-        generateReport(listReports, printWriter);
+        if (cache != null) {
+            cache.save();
+        }
+    }
 
-        printWriter.close();
+    @Override
+    public void analyzeDirectories(File report, Map<File, File> projects,
+            boolean doMigration, boolean format, int threads, boolean useCache)
+            throws IOException {
+        List<AnalysisPipeline.Project> listProjects = new ArrayList<AnalysisPipeline.Project>();
+        List<AnalysisCache> listCaches = new ArrayList<AnalysisCache>();
+        List<ReportWriter> listWriters = new ArrayList<ReportWriter>();
+        ReportWriter summaryWriter = new ReportWriter(report, migrationRules,
+                false);
+        // The metrics are those of the whole run, they are only written in
+        // the report of all the projects
+        AnalysisMetrics analysisMetrics = new AnalysisMetrics(metrics,
+                migrationRules);
+        summaryWriter.setMetrics(analysisMetrics);
+        ChangeWriter changeWriter = null;
+        try {
+            // The changes of all the projects are written next to the report
+            // of all the projects
+            changeWriter = newChangeWriter(report, doMigration);
+            for (Map.Entry<File, File> project : projects.entrySet()) {
+                AnalysisCache cache = loadCache(project.getValue(),
+                        doMigration, useCache);
+                ReportWriter reportWriter = new ReportWriter(
+                        project.getValue(), migrationRules);
+                listWriters.add(reportWriter);
+                if (cache != null) {
+                    listCaches.add(cache);
+                }
+                summaryWriter.addProject(project.getKey().getPath(),
+                        reportWriter);
+                listProjects.add(new AnalysisPipeline.Project(
+                        project.getKey(), reportWriter, cache));
+            }
+
+            AnalysisPipeline pipeline = new AnalysisPipeline(this,
+                    doMigration, format, threads, analysisMetrics,
+                    changeWriter);
+            try {
+                pipeline.run(listProjects, summaryWriter);
+            } finally {
+                flushOutputs();
+            }
+            analysisMetrics.stop();
+            if (changeWriter != null) {
+                changeWriter.finish();
+            }
+            for (ReportWriter reportWriter : listWriters) {
+                reportWriter.finish();
+            }
+            summaryWriter.finish();
+        } finally {
+            if (changeWriter != null) {
+                changeWriter.close();
+            }
+            for (ReportWriter reportWriter : listWriters) {
+                reportWriter.close();
+            }
+            summaryWriter.close();
+        }
+
+        for (AnalysisCache cache : listCaches) {
+            cache.save();
+        }
     }
 
     /**
-     * Method to generate the final report.
+     * Create the writer of the changes of a run, if they are written to a
+     * single file. The file is named as the report, with the extension of the
+     * output mode, and the paths of the files are relative to the directory
+     * of the report.
      *
-     * @param listResults List of result of analyze of each file.
-     * @param report The text output stream of the report to complete.
+     * @return The writer or null if the migrated files are written one by
+     *         one.
      */
-    private void generateReport(List<FileReport> listResults, PrintWriter report)
+    protected ChangeWriter newChangeWriter(File report, boolean doMigration)
             throws IOException {
-        // Load the file containing the messages to display in the report
-        Properties reportProp = new Properties();
-        InputStream is = this.getClass().getClassLoader().getResourceAsStream(
-                "report.properties");
-        reportProp.load(is);
+        if (!doMigration || outputMode == EnumOutputMode.FILES) {
+            return null;
+        }
+        File directory = report.getAbsoluteFile().getParentFile();
+        return ChangeWriter.create(outputMode, new File(directory,
+                FilenameUtils.getBaseName(report.getName())
+                        + outputMode.getExtension()), directory,
+                outputWriter.getSyncBatchSize() > 0);
+    }
 
-        generateSummaryReport(listResults, report, reportProp);
+    /**
+     * Load the cache of the previous analyze if it is used.
+     *
+     * @return The cache or null if the files are all analyzed.
+     */
+    protected AnalysisCache loadCache(File report, boolean doMigration,
+            boolean useCache) {
+        // The cache is only used to generate a report, the migration needs
+        // to parse the files
+        if (!useCache || doMigration) {
+            return null;
+        }
+        String toolVersion = getToolVersion();
+        if (toolVersion == null) {
+            // The results of another version of the tool could be reused
+            logger.warn("The version of the tool is unknown, the cache is not used");
+            return null;
+        }
+        // The overrides reported depend on the version of the templates
+        return AnalysisCache.load(
+                getCacheFile(report),
+                AnalysisCache.getVersion(toolVersion + "/"
+                        + templateCatalog.getVersion(), rules),
+                migrationRules);
+    }
 
-        generateDetailedReport(listResults, report, reportProp);
+    /**
+     * Get the file of the cache of the analyze, next to the report.
+     */
+    protected File getCacheFile(File report) {
+        return new File(report.getAbsoluteFile().getParentFile(),
+                FilenameUtils.getBaseName(report.getName()) + ".cache");
     }
 
     /**
-     * Generate the summary part of the report.
+     * Get the version of the tool, from the manifest of the jar. Without
+     * manifest, the version is the hash of the classes of the tool, so the
+     * results of the previous builds are not reused.
      *
-     * @param listResults List of result of analyze of each file.
-     * @param report The text output stream of the report to complete.
-     * @param reportProp Properties file containing the message to display.
-     * @throws IOException
+     * @return The version or null if it is unknown.
      */
-    @SuppressWarnings("boxing")
-    private void generateSummaryReport(List<FileReport> listResults,
-            PrintWriter report, Properties reportProp) throws IOException {
-
-        report.append("Summary\n");
-        report.append("#######\n");
-        report.append("Number of files analyzed : " + listResults.size() + "\n");
-
-        for (EnumTypeMigration type : EnumTypeMigration.values()) {
-            int occurence = 0;
-            for (FileReport fileReport : listResults) {
-                if (fileReport.getListMigrations().containsKey(type)) {
-                    occurence += fileReport.getListMigrations().get(type);
-                }
-            }
+    protected String getToolVersion() {
+        String version = MigrationServiceImpl.class.getPackage().getImplementationVersion();
+        return version != null ? version : ClassesVersion.VERSION;
+    }
 
-            // If the type of migration is present, it's added to the report
-            if (occurence > 0) {
-                report.append(" * [" + type.getSeverity() + "] ");
-                String key = type.getKeyMessage() + SUFFIX_SUMMARIZED_MESSAGE;
-                report.append(MessageFormat.format(reportProp.getProperty(key),
-                        occurence));
-                report.append('\n');
-            }
-        }
+    /**
+     * The version of the classes of the tool, computed once when needed.
+     */
+    private static class ClassesVersion {
+
+        static final String VERSION;
 
-        report.append("\n");
+        static {
+            String hash = AnalysisCache.hashClasses(MigrationServiceImpl.class);
+            VERSION = hash != null ? "dev-" + hash : null;
+        }
     }
 
     /**
-     * Generate the summary part of the report.
+     * Analyze the files, the reading, the analyze and the writing of the
+     * files are done in parallel (see {@link AnalysisPipeline}). The reports
+     * are added to the report writer as soon as the files are analyzed, and
+     * are written in the order of the list of files.
      *
-     * @param listResults List of result of analyze of each file.
-     * @param report The text output stream of the report to complete.
-     * @param reportProp Properties file containing the message to display.
-     * @throws IOException
+     * @param listFiles The list of files to analyze.
+     * @param doMigration Do the automatic migration if allowed by the rules.
+     * @param format Format the original files before the migration.
+     * @param threads The number of threads used to analyze the files.
+     * @param cache The results of the previous analyze, null if the files
+     *            are all analyzed.
+     * @param reportWriter The writer of the report.
+     * @param changeWriter The writer of the changes of the migrated files to
+     *            a single file, null if the migrated files are written one by
+     *            one.
+     * @throws IOException If the analysis is interrupted.
      */
-    private void generateDetailedReport(List<FileReport> listResults,
-            PrintWriter report, Properties reportProp) throws IOException {
-        report.append("Details\n");
-        report.append("#######");
-        for (FileReport result : listResults) {
-            report.append('\n');
-            // Create a section for the file
-            report.append(result.getAttachedFile().getName());
-            report.append("\n-----------------------\n");
-
-            // If nothing was reported, display a generic message
-            if (result.getListMigrations().size() == 0) {
-                report.append(reportProp.getProperty(NOTHING_MESSAGE));
-                report.append('\n');
-            }
+    protected void analyzeFiles(List<File> listFiles, boolean doMigration,
+            boolean format, int threads, AnalysisCache cache,
+            ReportWriter reportWriter, ChangeWriter changeWriter)
+            throws IOException {
+        AnalysisPipeline pipeline = new AnalysisPipeline(this, doMigration,
+                format, threads, reportWriter.getMetrics(), changeWriter);
+        pipeline.run(listFiles, reportWriter, cache);
+    }
 
-            // Get the actions to do for the migration
-            for (EnumTypeMigration type : result.getListMigrations().keySet()) {
-                List<String> listParams = result.getListParams().get(type);
-                String key = type.getKeyMessage() + SUFFIX_DETAILED_MESSAGE;
-                if (!reportProp.containsKey(key)) {
-                    key = type.getKeyMessage() + SUFFIX_SUMMARIZED_MESSAGE;
-                }
-                String messageReport = MessageFormat.format(
-                        reportProp.getProperty(key), listParams.toArray());
-                report.append("[" + type.getSeverity() + "] ");
-                report.append(messageReport);
-                report.append('\n');
-            }
-        }
+    /**
+     * Analyze the XHTML files of a directory tree. The files are analyzed as
+     * soon as they are found, while the directories are still walked. The
+     * reports are added to the report writer as soon as the files are
+     * analyzed, and are written sorted by path of the files.
+     *
+     * @param root The root of the directory tree.
+     * @param doMigration Do the automatic migration if allowed by the rules.
+     * @param format Format the original files before the migration.
+     * @param threads The number of threads used to walk the directories and
+     *            to analyze the files.
+     * @param cache The results of the previous analyze, null if the files
+     *            are all analyzed.
+     * @param reportWriter The writer of the report.
+     * @param changeWriter The writer of the changes of the migrated files to
+     *            a single file, null if the migrated files are written one by
+     *            one.
+     * @throws IOException If the analysis is interrupted.
+     */
+    protected void analyzeFiles(File root, boolean doMigration,
+            boolean format, int threads, AnalysisCache cache,
+            ReportWriter reportWriter, ChangeWriter changeWriter)
+            throws IOException {
+        AnalysisPipeline pipeline = new AnalysisPipeline(this, doMigration,
+                format, threads, reportWriter.getMetrics(), changeWriter);
+        pipeline.run(root, reportWriter, cache);
     }
 
     @Override
@@ -227,74 +436,215 @@ public class MigrationServiceImpl implements MigrationService {
             boolean doMigration, boolean format) throws JaxenException,
             DocumentException {
 
-        FileReport fileReport = new FileReport(file);
+        FileReport fileReport = newFileReport(file, completePath);
+
+        return analyzeFileForRules(file, fileReport, rules, doMigration,
+                format);
+    }
+
+    /**
+     * Create the report of a file, with the check of the overridden
+     * templates.
+     */
+    protected FileReport newFileReport(File file, boolean completePath) {
+        FileReport fileReport = new FileReport(file, migrationRules);
 
         // Check if the file overrides a Nuxeo template
         analyzeOverriddenFile(fileReport, file, completePath,
-                getNuxeoTemplates(), getNuxeoTemplatesCompletePath(),
+                templateCatalog.getTemplates(),
                 EnumTypeMigration.OVERRIDE_RULE);
         analyzeOverriddenFile(fileReport, file, completePath,
-                getNuxeoCompatTemplates(),
-                getNuxeoCompatTemplatesCompletePath(),
+                templateCatalog.getCompatTemplates(),
                 EnumTypeMigration.OVERRIDE_COMPAT_RULE);
 
-        return analyzeFileForRules(file, fileReport,
-                EnumTypeMigration.getTypesMigration(), doMigration, format);
+        return fileReport;
     }
 
     @Override
     public FileReport analyzeFileForRules(File file, FileReport fileReport,
-            List<EnumTypeMigration> listRules, boolean doMigration,
+            List<? extends MigrationRule> listRules, boolean doMigration,
             boolean format) throws JaxenException, DocumentException {
+        return analyzeFileForRules(file, fileReport, listRules, doMigration,
+                format, AnalysisMetrics.DISABLED);
+    }
 
-        SAXReader reader = new SAXReader();
-
+    /**
+     * Analyze a file, measuring the time spent in each phase.
+     *
+     * @param metrics The metrics of the run.
+     * @see #analyzeFileForRules(File, FileReport, List, boolean, boolean)
+     */
+    protected FileReport analyzeFileForRules(File file,
+            FileReport fileReport, List<? extends MigrationRule> listRules,
+            boolean doMigration, boolean format, AnalysisMetrics metrics) {
+        long start = metrics.time();
+        byte[] content;
         try {
+            content = FileUtils.readFileToByteArray(file);
+        } catch (IOException ex) {
+            addReadingError(fileReport, ex.getMessage());
+            return fileReport;
+        }
+        metrics.addPhase(Phase.READ, start);
 
-            reader.setFeature("http://xml.org/sax/features/validation", false);
-            reader.setFeature(
-                    "http://apache.org/xml/features/nonvalidating/load-dtd-grammar",
-                    false);
-            reader.setFeature(
-                    "http://apache.org/xml/features/nonvalidating/load-external-dtd",
-                    false);
-
-            Document xhtmlDoc = reader.read(file);
-            Document xhtmlOriginal = (Document) xhtmlDoc.clone();
-
-            for (EnumTypeMigration type : listRules) {
-                RuleParser parser = type.getInstance(doMigration);
-                if (parser != null) {
-                    parser.parse(xhtmlDoc, fileReport);
-                    if (doMigration) {
-                        // If the automatic migration is activated, the parser
-                        // tries to do the migration too
-                        parser.migrate(xhtmlDoc);
-                    }
-                }
-                // reset the instance of the parser
-                type.resetInstance();
+        // The files analyzed one by one are always written next to the
+        // original files
+        writeOutputs(file, analyzeContentForRules(file, content, fileReport,
+                listRules, doMigration, format, metrics), metrics, null);
+        // The files are complete when the analyze of the file returns
+        flushOutputs();
+
+        metrics.addFile(file, content.length, metrics.time() - start);
+        return fileReport;
+    }
+
+    /**
+     * Analyze the content of a file. The documents to write are returned
+     * instead of being written, so the writing can be done by another thread.
+     *
+     * @param file The file analyzed.
+     * @param content The content of the file.
+     * @param fileReport The FileReport to fill.
+     * @param listRules The list of rules to execute.
+     * @param doMigration Automatically do the migration if possible.
+     * @param format Format the original file if it is migrated.
+     * @return The documents to write, empty if there is no migration.
+     */
+    protected List<OutputDocument> analyzeContentForRules(File file,
+            byte[] content, FileReport fileReport,
+            List<? extends MigrationRule> listRules, boolean doMigration,
+            boolean format) {
+        return analyzeContentForRules(file, content, fileReport, listRules,
+                doMigration, format, AnalysisMetrics.DISABLED);
+    }
+
+    /**
+     * Analyze the content of a file, measuring the time spent in each phase.
+     *
+     * @param metrics The metrics of the run.
+     * @see #analyzeContentForRules(File, byte[], FileReport, List, boolean,
+     *      boolean)
+     */
+    protected List<OutputDocument> analyzeContentForRules(File file,
+            byte[] content, FileReport fileReport,
+            List<? extends MigrationRule> listRules, boolean doMigration,
+            boolean format, AnalysisMetrics metrics) {
+        RuleEngine ruleEngine = getRuleEngine(listRules, doMigration);
+        long start = metrics.time();
+        // Only the rules which may select a node of the document are applied
+        RulePlan plan = ruleEngine.plan(content);
+        start = metrics.addPhase(Phase.FILTER, start);
+        if (ruleEngine.isStreamable() || !plan.mayMatch()) {
+            // Only a report is needed or no rule can match the document
+            // except the check of the namespaces, the document is analyzed
+            // without building its DOM. The rules are evaluated while the
+            // document is parsed.
+            analyzeStreamForRules(file, content, fileReport, ruleEngine, plan,
+                    metrics);
+            start = metrics.addPhase(Phase.PARSE, start);
+            // A migrated file is only created if something is reported, and
+            // nothing can be migrated in a document which can not be read
+            if (!doMigration || fileReport.getNbMigrations() == 0
+                    || fileReport.getNbOccurrences(EnumTypeMigration.ERROR_READING_DOCUMENT) > 0) {
+                return Collections.emptyList();
+            }
+        }
+
+        List<OutputDocument> listOutputs = new ArrayList<OutputDocument>();
+        try {
+            boolean patching = patchSource && doMigration;
+            SAXReader reader = patching ? readerFactory.getLocatingSAXReader()
+                    : readerFactory.getSAXReader();
+            Document xhtmlDoc = reader.read(newInputSource(file,
+                    new ByteArrayInputStream(content)));
+            start = metrics.addPhase(Phase.PARSE, start);
+            DocumentPatch patch = null;
+            if (patching) {
+                patch = DocumentPatch.create(content,
+                        ((LocatingDocumentFactory) reader.getDocumentFactory()).getEncoding());
             }
 
-            if (doMigration && fileReport.getListMigrations().size() > 0) {
-                if (format) {
+            // If the automatic migration is activated, the parsers try to do
+            // the migration too
+            ruleEngine.apply(xhtmlDoc, fileReport, metrics, patch, plan);
+
+            if (doMigration && fileReport.getNbMigrations() > 0) {
+                start = metrics.time();
+                byte[] patched = patch != null ? patch.apply() : null;
+                metrics.addPhase(Phase.MIGRATION, start);
+                // The original content is kept when the changes are written
+                // to a single file
+                boolean single = outputMode != EnumOutputMode.FILES;
+                OutputDocument migrated;
+                if (patched != null) {
+                    // Only the migrated parts of the source are changed, the
+                    // original file does not need to be formatted
+                    migrated = new OutputDocument(patched,
+                            file.getAbsolutePath() + ".migrated", true);
+                    migrated.setSource(single ? content : null);
+                    listOutputs.add(migrated);
+                    return listOutputs;
+                }
+                if (patching) {
+                    logger.debug(String.format(
+                            "The source of the file '%s' can not be patched, the migrated DOM is written",
+                            file.getName()));
+                }
+                if (format && !single) {
                     // Format the input file to allow the user to do a diff
-                    // easily
-                    createFile(xhtmlOriginal, file.getAbsolutePath(), false);
+                    // easily. Instead of a copy of the DOM, the original
+                    // document is parsed again from the content.
+                    Document xhtmlOriginal = reader.read(newInputSource(file,
+                            new ByteArrayInputStream(content)));
+                    listOutputs.add(new OutputDocument(xhtmlOriginal,
+                            file.getAbsolutePath(), false));
                 }
                 // Create a new file with the migrations
-                createFile(xhtmlDoc, file.getAbsolutePath() + ".migrated", true);
+                migrated = new OutputDocument(xhtmlDoc, file.getAbsolutePath()
+                        + ".migrated", true);
+                migrated.setSource(single ? content : null);
+                listOutputs.add(migrated);
             }
         } catch (DocumentException docEx) {
             // A parsing exception occured, the error is loaded in the
             // FileReport.
-            List<String> params = new ArrayList<String>();
-            params.add(docEx.getMessage());
-            fileReport.getListParams().put(
-                    EnumTypeMigration.ERROR_READING_DOCUMENT, params);
-            fileReport.getListMigrations().put(
-                    EnumTypeMigration.ERROR_READING_DOCUMENT,
-                    Integer.valueOf(1));
+            addReadingError(fileReport, docEx.getMessage());
+        } catch (Exception ex) {
+            logger.error(String.format("Error while analyzing file '%s' : %s",
+                    file.getName(), ex.getMessage()));
+        }
+
+        return listOutputs;
+    }
+
+    /**
+     * Analyze a file read as a stream by a SAX parser, without building its
+     * DOM, evaluating only the rules of a plan. The rules must not do any
+     * migration.
+     *
+     * @param file The file to analyze.
+     * @param content The content of the file.
+     * @param fileReport The FileReport to fill.
+     * @param ruleEngine The rules to apply.
+     * @param plan The rules which may select a node of the file.
+     * @param metrics The metrics of the run, measuring the time spent
+     *            evaluating each rule.
+     * @return The FileReport.
+     * @see RuleEngine#isStreamable()
+     * @see RuleEngine#plan(byte[])
+     */
+    protected FileReport analyzeStreamForRules(File file, byte[] content,
+            FileReport fileReport, RuleEngine ruleEngine, RulePlan plan,
+            AnalysisMetrics metrics) {
+        StreamingMatcher handler = ruleEngine.newStreamingMatcher(plan,
+                metrics);
+        try {
+            parseStream(file, new ByteArrayInputStream(content), handler);
+            ruleEngine.apply(handler, fileReport, metrics);
+        } catch (DocumentException docEx) {
+            // A parsing exception occured, the error is loaded in the
+            // FileReport.
+            addReadingError(fileReport, docEx.getMessage());
         } catch (Exception ex) {
             logger.error(String.format("Error while analyzing file '%s' : %s",
                     file.getName(), ex.getMessage()));
@@ -304,30 +654,174 @@ public class MigrationServiceImpl implements MigrationService {
     }
 
     /**
-     * Create a file containing the migration done in the Document.
+     * Add to the report of a file the error preventing to read it.
+     */
+    protected void addReadingError(FileReport fileReport, String message) {
+        List<String> params = new ArrayList<String>();
+        params.add(message);
+        fileReport.putMigration(EnumTypeMigration.ERROR_READING_DOCUMENT, 1,
+                params);
+    }
+
+    /**
+     * Write the documents resulting of the analyze of a file, or add the
+     * change of the migrated file to the changes of the run.
+     *
+     * @param metrics The metrics of the run, measuring the time spent to
+     *            write each document.
+     * @param changeWriter The writer of the changes of the run, null if the
+     *            documents are written to their files. The migrated files
+     *            outside of its base directory are written to their files.
+     */
+    protected void writeOutputs(File file, List<OutputDocument> listOutputs,
+            AnalysisMetrics metrics, ChangeWriter changeWriter) {
+        boolean toChanges = changeWriter != null
+                && changeWriter.contains(file);
+        if (changeWriter != null && !toChanges) {
+            logger.warn(String.format(
+                    "The file '%s' is not in the directory of the report, the migrated file is written next to it",
+                    file.getPath()));
+        }
+        for (OutputDocument output : listOutputs) {
+            long start = metrics.time();
+            try {
+                if (toChanges) {
+                    if (output.isNewFile()) {
+                        addChange(file, output, changeWriter);
+                    }
+                } else if (output.getContent() != null) {
+                    createFile(output.getContent(), output.getFilePath(),
+                            output.isNewFile());
+                } else {
+                    createFile(output.getDocument(), output.getFilePath(),
+                            output.isNewFile());
+                }
+            } catch (Exception ex) {
+                logger.error(String.format(
+                        "Error while analyzing file '%s' : %s",
+                        file.getName(), ex.getMessage()));
+            }
+            metrics.addPhase(Phase.SERIALIZATION, start);
+        }
+    }
+
+    /**
+     * Add the change of a migrated file to the changes of the run.
+     *
+     * @param file The original file.
+     * @param output The migrated file.
+     * @param changeWriter The writer of the changes of the run.
+     */
+    protected void addChange(File file, OutputDocument output,
+            ChangeWriter changeWriter) throws IOException {
+        byte[] migrated = output.getContent() != null ? output.getContent()
+                : outputWriter.serialize(output.getDocument());
+        byte[] original = output.getSource() != null ? output.getSource()
+                : FileUtils.readFileToByteArray(file);
+        changeWriter.addChange(file, original, migrated);
+    }
+
+    /**
+     * Write the files waiting to be forced to the disk by the writer of the
+     * migrated files, at the end of a run.
+     */
+    protected void flushOutputs() {
+        try {
+            outputWriter.flush();
+        } catch (IOException ex) {
+            logger.error(String.format("Error while writing the files : %s",
+                    ex.getMessage()));
+        }
+    }
+
+    /**
+     * Read the content of a file with a SAX parser configured as the
+     * {@link SAXReader} used to build the DOM, the errors are reported with
+     * the same messages.
+     */
+    protected void parseStream(File file, InputStream in,
+            ContentHandler handler) throws DocumentException, IOException {
+        try {
+            XMLReader xmlReader = readerFactory.getXMLReader();
+            xmlReader.setContentHandler(handler);
+            xmlReader.parse(newInputSource(file, in));
+        } catch (SAXParseException e) {
+            String errorSystemId = e.getSystemId() != null ? e.getSystemId()
+                    : "";
+            throw new DocumentException("Error on line " + e.getLineNumber()
+                    + " of document " + errorSystemId + " : "
+                    + e.getMessage(), e);
+        } catch (SAXException e) {
+            throw new DocumentException(e.getMessage(), e);
+        } catch (ParserConfigurationException e) {
+            throw new DocumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the engine applying the rules. The engine is created at the first
+     * call for a list of rules and then shared by the files analyzed.
+     *
+     * @param listRules The list of rules to execute.
+     * @param doMigration Automatically do the migration if possible.
+     */
+    protected RuleEngine getRuleEngine(
+            List<? extends MigrationRule> listRules, boolean doMigration) {
+        ConcurrentMap<List<MigrationRule>, RuleEngine> engines = doMigration ? migrationRuleEngines
+                : ruleEngines;
+        RuleEngine engine = engines.get(listRules);
+        if (engine == null) {
+            List<MigrationRule> key = new ArrayList<MigrationRule>(listRules);
+            engine = new RuleEngine(key, doMigration);
+            RuleEngine existing = engines.putIfAbsent(key, engine);
+            if (existing != null) {
+                engine = existing;
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Create the source to parse a file from its content, with the same
+     * system id as the one set by {@link SAXReader#read(File)} so the errors
+     * are reported with the same messages.
+     */
+    protected InputSource newInputSource(File file, InputStream in) {
+        String path = file.getAbsolutePath().replace('\\', '/');
+        InputSource source = new InputSource(in);
+        source.setSystemId(path.startsWith("/") ? "file://" + path
+                : "file:///" + path);
+        return source;
+    }
+
+    /**
+     * Create a file containing the migration done in the Document. The file
+     * is written in UTF-8 to a temporary file which then replaces the file,
+     * so an existing file is never left truncated (see
+     * {@link OutputFileWriter}).
      *
      * @param input
      * @param filePath
+     * @param createNewFile True for the migrated file, false for the
+     *            formatted original file.
      * @throws Exception
      */
     protected void createFile(Document input, String filePath,
             boolean createNewFile) throws Exception {
+        outputWriter.write(input, new File(filePath));
+    }
 
-        // Create file
-        File fileMigrated = new File(filePath);
-        if (createNewFile) {
-            fileMigrated.createNewFile();
-        }
-        PrintWriter printWriter = new PrintWriter(fileMigrated);
-        OutputFormat format = new OutputFormat();
-        format.setIndentSize(2);
-        format.setNewlines(true);
-        format.setTrimText(true);
-        XMLWriter writer = new XMLWriter(printWriter,
-                format);
-        writer.write(input);
-
-        printWriter.close();
+    /**
+     * Create a file with the content of the patched source of a file.
+     *
+     * @param content The content of the file.
+     * @param filePath The path of the file.
+     * @param createNewFile True for the migrated file.
+     * @see #createFile(Document, String, boolean)
+     */
+    protected void createFile(byte[] content, String filePath,
+            boolean createNewFile) throws Exception {
+        outputWriter.write(content, new File(filePath));
     }
 
     @Override
@@ -356,66 +850,26 @@ public class MigrationServiceImpl implements MigrationService {
     }
 
     public Set<String> getNuxeoTemplates() {
-        initListTemplates();
-        return nuxeoTemplates;
+        return templateCatalog.getTemplates().getTemplates();
     }
 
     public Set<String> getNuxeoTemplatesCompletePath() {
-        initListTemplates();
-        return nuxeoTemplatesCompletePath;
+        return templateCatalog.getTemplates().getTemplatesCompletePath();
     }
 
     public Set<String> getNuxeoCompatTemplates() {
-        initListTemplates();
-        return nuxeoCompatTemplates;
+        return templateCatalog.getCompatTemplates().getTemplates();
     }
 
     public Set<String> getNuxeoCompatTemplatesCompletePath() {
-        initListTemplates();
-        return nuxeoCompatTemplatesCompletePath;
+        return templateCatalog.getCompatTemplates().getTemplatesCompletePath();
     }
 
     /**
-     * Init the list of templates in the platform.
+     * Get the templates of the Nuxeo Platform checked for overrides.
      */
-    protected void initListTemplates() {
-        if (nuxeoTemplates == null) {
-            nuxeoTemplates = new HashSet<>();
-            nuxeoTemplatesCompletePath = new HashSet<>();
-            initTemplates("listTemplatesNuxeoPlatform.txt", nuxeoTemplates,
-                    nuxeoTemplatesCompletePath);
-        }
-        if (nuxeoCompatTemplates == null) {
-            nuxeoCompatTemplates = new HashSet<>();
-            nuxeoCompatTemplatesCompletePath = new HashSet<>();
-            initTemplates("listCompatTemplatesNuxeoPlatform.txt",
-                    nuxeoCompatTemplates, nuxeoCompatTemplatesCompletePath);
-        }
-    }
-
-    protected void initTemplates(String filename, Set<String> templates,
-            Set<String> templatesCompletePath) {
-        InputStream is = this.getClass().getClassLoader().getResourceAsStream(
-                filename);
-        if (is == null) {
-            logger.error(String.format("File not found at '%s'", filename));
-            return;
-        }
-        InputStreamReader in = new InputStreamReader(is);
-        BufferedReader buff = new BufferedReader(in);
-        String line = null;
-        try {
-            while ((line = buff.readLine()) != null) {
-                // Add the entire row
-                templatesCompletePath.add(line);
-                // Add just the name of the file
-                String[] splitLine = StringUtils.split(line, '/');
-                templates.add(splitLine[splitLine.length - 1]);
-            }
-        } catch (IOException e) {
-            logger.error(String.format("Error while reading file '%s': %s",
-                    filename, e.getMessage()), e);
-        }
+    public TemplateCatalog getTemplateCatalog() {
+        return templateCatalog;
     }
 
     /**
@@ -423,23 +877,22 @@ public class MigrationServiceImpl implements MigrationService {
      *
      * @param fileReport The FileReport to fill.
      * @param file The file which is been analyzed.
+     * @param templates The index of the templates of reference.
      */
     protected void analyzeOverriddenFile(FileReport fileReport, File file,
-            boolean completePath, Set<String> templates,
-            Set<String> templatesCompletePath, EnumTypeMigration rule) {
+            boolean completePath, TemplateIndex templates,
+            EnumTypeMigration rule) {
         // Check if the file is an override of a Nuxeo template
         boolean found = false;
         if (completePath) {
-            found = checkOverriddenTemplate(file, templatesCompletePath,
-                    completePath);
+            found = templates.containsPath(file);
         } else {
-            found = checkOverriddenTemplate(file, templates, completePath);
+            found = templates.containsName(file);
         }
         if (found) {
-            fileReport.getListMigrations().put(rule, Integer.valueOf(1));
             List<String> params = new ArrayList<String>();
             params.add(file.getName());
-            fileReport.getListParams().put(rule, params);
+            fileReport.putMigration(rule, 1, params);
         }
     }
 }
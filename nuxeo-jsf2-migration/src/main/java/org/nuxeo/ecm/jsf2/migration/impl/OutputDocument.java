@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.impl;
+
+import org.dom4j.Document;
+
+/**
+ * Document to write after the analyze of a file: the migrated file or the
+ * formatted original file. The document is either a DOM to write or the
+ * content of the file, when the source of the file is patched.
+ * <p>
+ * The content of the original file is kept with the migrated file when the
+ * changes are written to a single file (see {@link ChangeWriter}).
+ *
+ * @since 6.0
+ */
+public class OutputDocument {
+
+    private final Document document;
+
+    private final byte[] content;
+
+    private final String filePath;
+
+    private final boolean newFile;
+
+    // The content of the original file, null if it is not needed
+    private byte[] source;
+
+    /**
+     * @param document The document to write.
+     * @param filePath The path of the file to write.
+     * @param newFile True if the file has to be created.
+     */
+    public OutputDocument(Document document, String filePath, boolean newFile) {
+        this.document = document;
+        this.content = null;
+        this.filePath = filePath;
+        this.newFile = newFile;
+    }
+
+    /**
+     * @param content The content of the file to write.
+     * @param filePath The path of the file to write.
+     * @param newFile True if the file has to be created.
+     */
+    public OutputDocument(byte[] content, String filePath, boolean newFile) {
+        this.document = null;
+        this.content = content;
+        this.filePath = filePath;
+        this.newFile = newFile;
+    }
+
+    /**
+     * Get the DOM to write, null if the content is given.
+     */
+    public Document getDocument() {
+        return document;
+    }
+
+    /**
+     * Get the content to write, null if the DOM is given.
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public boolean isNewFile() {
+        return newFile;
+    }
+
+    /**
+     * Get the content of the original file, null if it is not kept.
+     */
+    public byte[] getSource() {
+        return source;
+    }
+
+    public void setSource(byte[] source) {
+        this.source = source;
+    }
+}
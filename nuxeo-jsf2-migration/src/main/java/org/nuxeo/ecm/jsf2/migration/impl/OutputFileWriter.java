@@ -0,0 +1,328 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dom4j.Document;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.XMLWriter;
+
+/**
+ * Write the migrated files and the formatted original files. A file is never
+ * written in place: the document is written in UTF-8 to a temporary file in
+ * the same directory, then the temporary file is moved over the file, with
+ * an atomic move when the file system supports it. A run interrupted while
+ * a file is written leaves the file unchanged.
+ * <p>
+ * The files can also be forced to the disk before being moved, so a crash of
+ * the system does not leave empty files. The files are then forced by
+ * batches: the temporary files are kept until the batch is full or until
+ * {@link #flush()} is called, so the disk writes can overlap.
+ * <p>
+ * The methods can be called by several threads.
+ *
+ * @since 6.0
+ */
+public class OutputFileWriter {
+
+    private static Log logger = LogFactory.getLog(OutputFileWriter.class);
+
+    // Size of the buffer between the serialization and the file
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Number of files forced to the disk together, 0 if they are not forced
+    private final int syncBatchSize;
+
+    // The temporary files waiting to be forced and moved, with their target
+    private final List<Path[]> pending = new ArrayList<Path[]>();
+
+    /**
+     * Writing of the content of a file to the channel of its temporary file.
+     */
+    private interface Serializer {
+
+        void write(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Create a writer which does not force the files to the disk.
+     */
+    public OutputFileWriter() {
+        this(0);
+    }
+
+    /**
+     * @param syncBatchSize The number of files forced to the disk together
+     *            before being moved, 1 to force each file as soon as it is
+     *            written, 0 if the files are not forced.
+     */
+    public OutputFileWriter(int syncBatchSize) {
+        if (syncBatchSize < 0) {
+            throw new IllegalArgumentException(
+                    "The number of files forced together can not be negative");
+        }
+        this.syncBatchSize = syncBatchSize;
+    }
+
+    public int getSyncBatchSize() {
+        return syncBatchSize;
+    }
+
+    /**
+     * Write a document to a file. If the files are forced to the disk by
+     * batches, the file may only be replaced at the next {@link #flush()}.
+     *
+     * @param document The document to write.
+     * @param file The file to create or to replace.
+     */
+    public void write(final Document document, File file) throws IOException {
+        write(file, new Serializer() {
+            @Override
+            public void write(FileChannel channel) throws IOException {
+                OutputStream out = new BufferedOutputStream(
+                        Channels.newOutputStream(channel), BUFFER_SIZE);
+                XMLWriter writer = new XMLWriter(out, newOutputFormat());
+                writer.write(document);
+                writer.flush();
+                out.flush();
+            }
+        });
+    }
+
+    /**
+     * Write the content of a file, already serialized. If the files are
+     * forced to the disk by batches, the file may only be replaced at the next
+     * {@link #flush()}.
+     *
+     * @param content The content to write.
+     * @param file The file to create or to replace.
+     */
+    public void write(final byte[] content, File file) throws IOException {
+        write(file, new Serializer() {
+            @Override
+            public void write(FileChannel channel) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        });
+    }
+
+    /**
+     * Serialize a document as it is written in the files.
+     *
+     * @param document The document to serialize.
+     * @return The content of the file of the document.
+     */
+    public byte[] serialize(Document document) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLWriter writer = new XMLWriter(out, newOutputFormat());
+        writer.write(document);
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    private void write(File file, Serializer serializer) throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        Path temp = createTempFile(target);
+        try {
+            FileChannel channel = FileChannel.open(temp,
+                    StandardOpenOption.WRITE);
+            try {
+                serializer.write(channel);
+                if (syncBatchSize == 1) {
+                    channel.force(true);
+                }
+            } finally {
+                channel.close();
+            }
+            copyPermissions(target, temp);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(temp);
+            throw ex;
+        }
+
+        if (syncBatchSize <= 1) {
+            move(temp, target);
+            if (syncBatchSize == 1) {
+                forceDirectory(target.getParent());
+            }
+            return;
+        }
+        boolean full;
+        synchronized (pending) {
+            pending.add(new Path[] { temp, target });
+            full = pending.size() >= syncBatchSize;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Force to the disk and move the files waiting for the end of their
+     * batch. All the files are handled even if some fail, the error of the
+     * first one is then thrown.
+     */
+    public void flush() throws IOException {
+        List<Path[]> batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<Path[]>(pending);
+            pending.clear();
+        }
+        IOException error = null;
+        List<Path[]> forced = new ArrayList<Path[]>();
+        for (Path[] paths : batch) {
+            try {
+                force(paths[0], false);
+                forced.add(paths);
+            } catch (IOException ex) {
+                error = error == null ? ex : error;
+                Files.deleteIfExists(paths[0]);
+            }
+        }
+        Set<Path> directories = new LinkedHashSet<Path>();
+        for (Path[] paths : forced) {
+            try {
+                move(paths[0], paths[1]);
+                directories.add(paths[1].getParent());
+            } catch (IOException ex) {
+                error = error == null ? ex : error;
+                Files.deleteIfExists(paths[0]);
+            }
+        }
+        for (Path directory : directories) {
+            forceDirectory(directory);
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Create the format of the written files.
+     */
+    protected OutputFormat newOutputFormat() {
+        OutputFormat format = new OutputFormat();
+        format.setIndentSize(2);
+        format.setNewlines(true);
+        format.setTrimText(true);
+        format.setEncoding(ENCODING);
+        return format;
+    }
+
+    /**
+     * Create an empty temporary file next to a file, hidden and without the
+     * extension of the XHTML files so it is not analyzed by another run.
+     */
+    static Path createTempFile(Path target) throws IOException {
+        while (true) {
+            Path temp = target.resolveSibling("."
+                    + target.getFileName()
+                    + "."
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 1)
+                    + TEMP_SUFFIX);
+            try {
+                // Unlike Files.createTempFile, the file is created with the
+                // default permissions
+                Files.newByteChannel(temp, StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE).close();
+                return temp;
+            } catch (FileAlreadyExistsException ex) {
+                // Try another name
+            }
+        }
+    }
+
+    /**
+     * Keep the permissions of a replaced file.
+     */
+    private static void copyPermissions(Path target, Path temp) {
+        try {
+            if (Files.exists(target)) {
+                Files.setPosixFilePermissions(temp,
+                        Files.getPosixFilePermissions(target));
+            }
+        } catch (UnsupportedOperationException | IOException ex) {
+            // The file system has no POSIX permissions
+        }
+    }
+
+    static void move(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Force the moves done in a directory to the disk, where the directories
+     * can be opened.
+     */
+    static void forceDirectory(Path directory) {
+        try {
+            force(directory, true);
+        } catch (IOException ex) {
+            logger.debug(String.format(
+                    "The directory '%s' can not be forced : %s", directory,
+                    ex.getMessage()));
+        }
+    }
+
+    private static void force(Path path, boolean directory)
+            throws IOException {
+        FileChannel channel = directory ? FileChannel.open(path,
+                StandardOpenOption.READ) : FileChannel.open(path,
+                StandardOpenOption.WRITE);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.impl;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.dom4j.io.SAXReader;
+import org.nuxeo.ecm.jsf2.migration.parser.LocatingDocumentFactory;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Readers used to parse the XHTML files. Creating and configuring a parser
+ * costs more than parsing a small template, so the readers are created once
+ * per thread and reused for all the files analyzed by the thread.
+ * <p>
+ * The DTD are neither loaded nor validated.
+ *
+ * @since 6.0
+ */
+public class ReaderFactory {
+
+    private static final String FEATURE_VALIDATION = "http://xml.org/sax/features/validation";
+
+    private static final String FEATURE_LOAD_DTD_GRAMMAR = "http://apache.org/xml/features/nonvalidating/load-dtd-grammar";
+
+    private static final String FEATURE_LOAD_EXTERNAL_DTD = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+
+    private final ThreadLocal<SAXReader> saxReaders = new ThreadLocal<SAXReader>();
+
+    private final ThreadLocal<SAXReader> locatingReaders = new ThreadLocal<SAXReader>();
+
+    private final ThreadLocal<XMLReader> xmlReaders = new ThreadLocal<XMLReader>();
+
+    /**
+     * Get the reader building the DOM of the files for the current thread.
+     */
+    public SAXReader getSAXReader() throws SAXException {
+        SAXReader reader = saxReaders.get();
+        if (reader == null) {
+            reader = newSAXReader();
+            saxReaders.set(reader);
+        } else {
+            // The default resolver is bound to the location of the document
+            // read, a new one is created for the next document
+            reader.setEntityResolver(null);
+        }
+        return reader;
+    }
+
+    /**
+     * Get the reader building the DOM of the files with the position of the
+     * elements in their source, for the current thread. The factory of the
+     * reader is a {@link LocatingDocumentFactory}.
+     */
+    public SAXReader getLocatingSAXReader() throws SAXException {
+        SAXReader reader = locatingReaders.get();
+        if (reader == null) {
+            reader = newSAXReader();
+            LocatingDocumentFactory factory = new LocatingDocumentFactory();
+            reader.setDocumentFactory(factory);
+            reader.setXMLFilter(factory.getFilter());
+            locatingReaders.set(reader);
+        } else {
+            reader.setEntityResolver(null);
+        }
+        return reader;
+    }
+
+    /**
+     * Get the SAX parser reading the files as a stream for the current
+     * thread. The content handler must be set before each parsing.
+     */
+    public XMLReader getXMLReader() throws SAXException,
+            ParserConfigurationException {
+        XMLReader reader = xmlReaders.get();
+        if (reader == null) {
+            reader = newXMLReader();
+            xmlReaders.set(reader);
+        }
+        return reader;
+    }
+
+    /**
+     * Create a new reader building the DOM of the files.
+     */
+    public static SAXReader newSAXReader() throws SAXException {
+        SAXReader reader = new SAXReader();
+        reader.setFeature(FEATURE_VALIDATION, false);
+        reader.setFeature(FEATURE_LOAD_DTD_GRAMMAR, false);
+        reader.setFeature(FEATURE_LOAD_EXTERNAL_DTD, false);
+        return reader;
+    }
+
+    /**
+     * Create a new SAX parser configured as the reader building the DOM.
+     */
+    public static XMLReader newXMLReader() throws SAXException,
+            ParserConfigurationException {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setValidating(false);
+        factory.setFeature(FEATURE_LOAD_DTD_GRAMMAR, false);
+        factory.setFeature(FEATURE_LOAD_EXTERNAL_DTD, false);
+        return factory.newSAXParser().getXMLReader();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.impl;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Templates of a version of the Nuxeo Platform, which can be overridden by
+ * the templates of a project. The templates of each version are in the
+ * directory templates/&lt;version&gt; of the classpath:
+ * <ul>
+ * <li>listTemplatesNuxeoPlatform: the templates of the platform,</li>
+ * <li>listCompatTemplatesNuxeoPlatform: the templates of the compatibility
+ * module.</li>
+ * </ul>
+ * The catalog of a version is loaded once, on its first use, and shared by
+ * all the analyzes of the JVM.
+ *
+ * @since 6.0
+ */
+public class TemplateCatalog {
+
+    // Version of the Nuxeo Platform used by default
+    public static final String DEFAULT_VERSION = "6.0";
+
+    private static final String DIRECTORY = "templates/";
+
+    private static final String TEMPLATES = "listTemplatesNuxeoPlatform";
+
+    private static final String COMPAT_TEMPLATES = "listCompatTemplatesNuxeoPlatform";
+
+    // The catalogs loaded, by version
+    private static final ConcurrentMap<String, TemplateCatalog> catalogs = new ConcurrentHashMap<String, TemplateCatalog>();
+
+    private final String version;
+
+    private final TemplateIndex templates;
+
+    private final TemplateIndex compatTemplates;
+
+    private TemplateCatalog(String version, TemplateIndex templates,
+            TemplateIndex compatTemplates) {
+        this.version = version;
+        this.templates = templates;
+        this.compatTemplates = compatTemplates;
+    }
+
+    /**
+     * Get the catalog of a version of the Nuxeo Platform.
+     *
+     * @param version The version of the platform, for instance 6.0.
+     * @throws IllegalArgumentException If there is no catalog for the
+     *             version or it can not be read.
+     */
+    public static TemplateCatalog get(String version) {
+        TemplateCatalog catalog = catalogs.get(version);
+        if (catalog == null) {
+            // Two threads may load the same catalog, only one is kept
+            catalog = load(version);
+            TemplateCatalog previous = catalogs.putIfAbsent(version, catalog);
+            if (previous != null) {
+                catalog = previous;
+            }
+        }
+        return catalog;
+    }
+
+    private static TemplateCatalog load(String version) {
+        String directory = DIRECTORY + version + "/";
+        try {
+            TemplateIndex templates = TemplateIndex.load(directory
+                    + TEMPLATES);
+            if (templates == null) {
+                throw new IllegalArgumentException(String.format(
+                        "No templates for the version %s of the Nuxeo Platform",
+                        version));
+            }
+            TemplateIndex compatTemplates = TemplateIndex.load(directory
+                    + COMPAT_TEMPLATES);
+            if (compatTemplates == null) {
+                compatTemplates = TemplateIndex.empty();
+            }
+            return new TemplateCatalog(version, templates, compatTemplates);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException(String.format(
+                    "Error while reading the templates of the version %s : %s",
+                    version, ex.getMessage()), ex);
+        }
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the templates of the platform.
+     */
+    public TemplateIndex getTemplates() {
+        return templates;
+    }
+
+    /**
+     * Get the templates of the compatibility module.
+     */
+    public TemplateIndex getCompatTemplates() {
+        return compatTemplates;
+    }
+}
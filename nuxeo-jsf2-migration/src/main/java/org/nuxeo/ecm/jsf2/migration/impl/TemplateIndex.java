@@ -0,0 +1,408 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.impl;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Index of the templates of the Nuxeo Platform, to check if a file of a
+ * project overrides one of them.
+ * <p>
+ * The key of a template is the list of the segments of its path, starting
+ * from the name of the file up to the directory nuxeo.war, separated by a
+ * null byte. The keys are encoded in UTF-8 and sorted, so the templates with
+ * the same last segments are next to each other. A file is checked by
+ * narrowing the range of the keys with the name of the file, then with the
+ * name of each parent while they match a template, so most of the files are
+ * checked with a single binary search on their name and no path is built.
+ * <p>
+ * The index is stored in a binary file generated at build time by
+ * {@link TemplateIndexGenerator}:
+ * <ul>
+ * <li>the magic number and the version of the format,</li>
+ * <li>the number of keys,</li>
+ * <li>the offsets of the start of the keys in the data, and the end of the
+ * data,</li>
+ * <li>the data of the keys.</li>
+ * </ul>
+ * The file is mapped in memory when it is not in a jar. When only the text
+ * file is available (one path from nuxeo.war per line), the index is built
+ * in memory at the loading.
+ * <p>
+ * An index is read-only and can be used by several threads.
+ *
+ * @since 6.0
+ */
+public class TemplateIndex {
+
+    private static Log logger = LogFactory.getLog(TemplateIndex.class);
+
+    // Extension of the binary index
+    public static final String INDEX_EXTENSION = "idx";
+
+    // Extension of the text list
+    public static final String TEXT_EXTENSION = "txt";
+
+    private static final int MAGIC = 0x4E585449;
+
+    private static final int FORMAT_VERSION = 1;
+
+    // Size of the header: magic, version and number of keys
+    private static final int HEADER_SIZE = 12;
+
+    private static final String ROOT_DIRECTORY = "nuxeo.war";
+
+    private static final String ROOT_PREFIX = ROOT_DIRECTORY + "/";
+
+    private static final byte SEPARATOR = 0;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Order of the keys, by unsigned bytes
+    private static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] key1, byte[] key2) {
+            int length = Math.min(key1.length, key2.length);
+            for (int i = 0; i < length; i++) {
+                int b1 = key1[i] & 0xFF;
+                int b2 = key2[i] & 0xFF;
+                if (b1 != b2) {
+                    return b1 - b2;
+                }
+            }
+            return key1.length - key2.length;
+        }
+    };
+
+    private final ByteBuffer buffer;
+
+    private final int nbKeys;
+
+    // Position of the data of the keys in the buffer
+    private final int dataStart;
+
+    private TemplateIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an index of templates");
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException(String.format(
+                    "Unsupported version of index of templates : %d",
+                    Integer.valueOf(buffer.getInt(4))));
+        }
+        nbKeys = buffer.getInt(8);
+        dataStart = HEADER_SIZE + 4 * (nbKeys + 1);
+        if (nbKeys < 0 || buffer.limit() < dataStart
+                || buffer.limit() < dataStart + buffer.getInt(dataStart - 4)) {
+            throw new IOException("Truncated index of templates");
+        }
+    }
+
+    /**
+     * Load an index from the classpath. The binary index is used if present,
+     * else the text list.
+     *
+     * @param name The name of the resource, without the extension.
+     * @return The index or null if there is no resource.
+     */
+    public static TemplateIndex load(String name) throws IOException {
+        ClassLoader classLoader = TemplateIndex.class.getClassLoader();
+        URL index = classLoader.getResource(name + "." + INDEX_EXTENSION);
+        if (index != null) {
+            return new TemplateIndex(readIndex(index));
+        }
+        URL text = classLoader.getResource(name + "." + TEXT_EXTENSION);
+        if (text != null) {
+            InputStream in = text.openStream();
+            try {
+                return build(readPaths(in));
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get an index without templates.
+     */
+    public static TemplateIndex empty() {
+        try {
+            return build(Collections.<String> emptyList());
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static TemplateIndex build(Collection<String> paths)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(paths, out);
+        return new TemplateIndex(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    private static ByteBuffer readIndex(URL index) throws IOException {
+        if ("file".equals(index.getProtocol())) {
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(Paths.get(index.toURI()),
+                        StandardOpenOption.READ);
+            } catch (URISyntaxException ex) {
+                throw new IOException(ex);
+            }
+            try {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size());
+            } finally {
+                channel.close();
+            }
+        }
+        InputStream in = index.openStream();
+        try {
+            return ByteBuffer.wrap(IOUtils.toByteArray(in));
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Read the paths of a text list, one path from nuxeo.war per line.
+     */
+    public static List<String> readPaths(InputStream in) throws IOException {
+        List<String> paths = new ArrayList<String>();
+        BufferedReader buff = new BufferedReader(new InputStreamReader(in,
+                UTF_8));
+        String line = null;
+        while ((line = buff.readLine()) != null) {
+            if (!StringUtils.isBlank(line)) {
+                paths.add(line.trim());
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Write the binary index of a list of paths.
+     *
+     * @param paths The paths of the templates, from nuxeo.war. The other
+     *            paths are ignored.
+     * @param out The output stream of the index.
+     */
+    public static void write(Collection<String> paths, OutputStream out)
+            throws IOException {
+        TreeSet<byte[]> keys = new TreeSet<byte[]>(KEY_ORDER);
+        for (String path : paths) {
+            if (!path.startsWith(ROOT_PREFIX)) {
+                logger.warn(String.format(
+                        "The template '%s' is not in %s, it is ignored", path,
+                        ROOT_DIRECTORY));
+                continue;
+            }
+            String[] segments = StringUtils.split(
+                    path.substring(ROOT_PREFIX.length()), '/');
+            ByteArrayOutputStream key = new ByteArrayOutputStream();
+            for (int i = segments.length - 1; i >= 0; i--) {
+                key.write(segments[i].getBytes(UTF_8));
+                if (i > 0) {
+                    key.write(SEPARATOR);
+                }
+            }
+            keys.add(key.toByteArray());
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        data.writeInt(keys.size());
+        int offset = 0;
+        for (byte[] key : keys) {
+            data.writeInt(offset);
+            offset += key.length;
+        }
+        data.writeInt(offset);
+        for (byte[] key : keys) {
+            data.write(key);
+        }
+        data.flush();
+    }
+
+    private int keyStart(int index) {
+        return dataStart + buffer.getInt(HEADER_SIZE + 4 * index);
+    }
+
+    private int keyEnd(int index) {
+        return dataStart + buffer.getInt(HEADER_SIZE + 4 * (index + 1));
+    }
+
+    /**
+     * Compare the segment of a key starting at an offset with a segment. A
+     * key shorter than the offset is lower.
+     */
+    private int compare(int index, int offset, byte[] segment) {
+        int start = keyStart(index) + offset;
+        int end = keyEnd(index);
+        if (start > end) {
+            return -1;
+        }
+        for (int i = 0; i < segment.length; i++) {
+            if (start + i >= end) {
+                return -1;
+            }
+            int b = buffer.get(start + i) & 0xFF;
+            int s = segment[i] & 0xFF;
+            if (b != s) {
+                return b < s ? -1 : 1;
+            }
+        }
+        int next = start + segment.length;
+        return next == end || buffer.get(next) == SEPARATOR ? 0 : 1;
+    }
+
+    /**
+     * Get the first key of a range whose segment at an offset is not lower
+     * than a segment, or greater if strict.
+     */
+    private int search(int low, int high, int offset, byte[] segment,
+            boolean strict) {
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int cmp = compare(middle, offset, segment);
+            if (cmp < 0 || (strict && cmp == 0)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Check if a file has the name of a template.
+     */
+    public boolean containsName(File file) {
+        byte[] name = file.getName().getBytes(UTF_8);
+        int low = search(0, nbKeys, 0, name, false);
+        return low < nbKeys && compare(low, 0, name) == 0;
+    }
+
+    /**
+     * Check if a file has the path of a template. The path of the file is
+     * the path from its parent directory named nuxeo.war.
+     */
+    public boolean containsPath(File file) {
+        byte[] segment = file.getName().getBytes(UTF_8);
+        int low = search(0, nbKeys, 0, segment, false);
+        int high = search(low, nbKeys, 0, segment, true);
+        if (low == high) {
+            return false;
+        }
+        int offset = segment.length + 1;
+        File parent = file.getParentFile();
+        if (parent != null && parent.exists()) {
+            // The root of the file system has an empty name
+            while (parent != null && !ROOT_DIRECTORY.equals(parent.getName())
+                    && !parent.getName().isEmpty()) {
+                segment = parent.getName().getBytes(UTF_8);
+                low = search(low, high, offset, segment, false);
+                high = search(low, high, offset, segment, true);
+                if (low == high) {
+                    return false;
+                }
+                offset += segment.length + 1;
+                parent = parent.getParentFile();
+            }
+        }
+        // The key of the template is the shortest of the range
+        return keyEnd(low) - keyStart(low) == offset - 1;
+    }
+
+    /**
+     * Get the number of templates of the index.
+     */
+    public int size() {
+        return nbKeys;
+    }
+
+    /**
+     * Get the names of the files of the templates. The set is built at each
+     * call.
+     */
+    public Set<String> getTemplates() {
+        Set<String> templates = new HashSet<String>();
+        for (String[] segments : getSegments()) {
+            templates.add(segments[0]);
+        }
+        return templates;
+    }
+
+    /**
+     * Get the paths of the templates, from the directory nuxeo.war. The set
+     * is built at each call.
+     */
+    public Set<String> getTemplatesCompletePath() {
+        Set<String> templates = new HashSet<String>();
+        for (String[] segments : getSegments()) {
+            StringBuilder path = new StringBuilder(ROOT_DIRECTORY);
+            for (int i = segments.length - 1; i >= 0; i--) {
+                path.append('/').append(segments[i]);
+            }
+            templates.add(path.toString());
+        }
+        return templates;
+    }
+
+    private List<String[]> getSegments() {
+        List<String[]> listSegments = new ArrayList<String[]>(nbKeys);
+        for (int i = 0; i < nbKeys; i++) {
+            byte[] key = new byte[keyEnd(i) - keyStart(i)];
+            ByteBuffer data = buffer.duplicate();
+            data.position(keyStart(i));
+            data.get(key);
+            listSegments.add(StringUtils.splitPreserveAllTokens(new String(
+                    key, UTF_8), (char) SEPARATOR));
+        }
+        return listSegments;
+    }
+}
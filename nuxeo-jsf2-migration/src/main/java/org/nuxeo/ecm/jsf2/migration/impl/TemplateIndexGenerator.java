@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Generate the binary indexes of the templates (see {@link TemplateIndex})
+ * from the text lists, called at build time. Each text list of the
+ * directories given is converted to a binary index next to it.
+ *
+ * @since 6.0
+ */
+public class TemplateIndexGenerator {
+
+    /**
+     * @param args The directories containing the text lists.
+     */
+    public static void main(String[] args) throws IOException {
+        for (String directory : args) {
+            Collection<File> files = FileUtils.listFiles(new File(directory),
+                    new String[] { TemplateIndex.TEXT_EXTENSION }, true);
+            for (File file : files) {
+                generate(file, new File(file.getParentFile(),
+                        FilenameUtils.getBaseName(file.getName()) + "."
+                                + TemplateIndex.INDEX_EXTENSION));
+            }
+        }
+    }
+
+    /**
+     * Generate the binary index of a text list.
+     *
+     * @param textFile The text list, one path from nuxeo.war per line.
+     * @param indexFile The binary index to write.
+     */
+    public static void generate(File textFile, File indexFile)
+            throws IOException {
+        List<String> paths;
+        InputStream in = new FileInputStream(textFile);
+        try {
+            paths = TemplateIndex.readPaths(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                indexFile));
+        try {
+            TemplateIndex.write(paths, out);
+        } finally {
+            out.close();
+        }
+        System.out.println(String.format("Generated %s (%d paths)",
+                indexFile, Integer.valueOf(paths.size())));
+    }
+}
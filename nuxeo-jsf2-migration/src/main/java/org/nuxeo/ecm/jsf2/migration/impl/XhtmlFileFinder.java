@@ -0,0 +1,165 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Find the XHTML files of a directory tree. Each directory is listed once
+ * and the attributes of each entry are read once, the subdirectories can be
+ * walked in parallel.
+ * <p>
+ * The files are given to a listener as soon as they are found, so they can
+ * be analyzed before the end of the walk. The listener can be called by
+ * several threads at the same time and the files are not given in a
+ * particular order.
+ *
+ * @since 6.0
+ */
+public class XhtmlFileFinder {
+
+    private static Log logger = LogFactory.getLog(XhtmlFileFinder.class);
+
+    private static final String FILE_EXTENSION = "xhtml";
+
+    /**
+     * Listener of the files found.
+     */
+    public interface Listener {
+
+        /**
+         * Called for each XHTML file found, possibly by several threads at
+         * the same time.
+         */
+        void fileFound(File file);
+    }
+
+    private final int parallelism;
+
+    /**
+     * @param parallelism The number of threads walking the directories.
+     */
+    public XhtmlFileFinder(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Walk a directory tree and give the XHTML files found to a listener.
+     * The directories which can not be read are logged and skipped.
+     *
+     * @param root The root of the directory tree.
+     * @param listener The listener of the files found.
+     */
+    public void find(File root, Listener listener) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new WalkTask(root.toPath(), listener));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Get all the XHTML files of a directory tree.
+     *
+     * @param root The root of the directory tree.
+     * @return The files, sorted by path.
+     */
+    public List<File> findAll(File root) {
+        final ConcurrentLinkedQueue<File> files = new ConcurrentLinkedQueue<File>();
+        find(root, new Listener() {
+            @Override
+            public void fileFound(File file) {
+                files.add(file);
+            }
+        });
+        List<File> listFiles = new ArrayList<File>(files);
+        Collections.sort(listFiles);
+        return listFiles;
+    }
+
+    /**
+     * Task listing a directory, the subdirectories are walked by subtasks.
+     */
+    @SuppressWarnings("serial")
+    private static class WalkTask extends RecursiveAction {
+
+        private final Path directory;
+
+        private final Listener listener;
+
+        WalkTask(Path directory, Listener listener) {
+            this.directory = directory;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void compute() {
+            List<WalkTask> subtasks = new ArrayList<WalkTask>();
+            try {
+                DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+                try {
+                    for (Path entry : stream) {
+                        BasicFileAttributes attributes;
+                        try {
+                            attributes = Files.readAttributes(entry,
+                                    BasicFileAttributes.class);
+                        } catch (IOException ex) {
+                            // Broken link, the other entries are read
+                            logger.warn(String.format(
+                                    "Can not read '%s' : %s", entry,
+                                    ex.getMessage()));
+                            continue;
+                        }
+                        if (attributes.isDirectory()) {
+                            WalkTask subtask = new WalkTask(entry, listener);
+                            subtask.fork();
+                            subtasks.add(subtask);
+                        } else if (attributes.isRegularFile()
+                                && FILE_EXTENSION.equals(FilenameUtils.getExtension(entry.getFileName().toString()))) {
+                            listener.fileFound(entry.toFile());
+                        }
+                    }
+                } finally {
+                    stream.close();
+                }
+            } catch (IOException ex) {
+                logger.error(String.format(
+                        "Error while reading directory '%s' : %s", directory,
+                        ex.getMessage()));
+            }
+            for (WalkTask subtask : subtasks) {
+                subtask.join();
+            }
+        }
+    }
+}
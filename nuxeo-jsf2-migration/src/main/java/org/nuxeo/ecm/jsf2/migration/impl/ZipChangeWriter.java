@@ -0,0 +1,56 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Write the migrated files to a zip, each file under the path of the
+ * original file relative to the base directory, so the zip can be extracted
+ * over the base directory.
+ *
+ * @since 6.0
+ */
+public class ZipChangeWriter extends ChangeWriter {
+
+    private final ZipOutputStream zip;
+
+    /**
+     * @see ChangeWriter#ChangeWriter(File, File, boolean)
+     */
+    public ZipChangeWriter(File output, File baseDirectory, boolean sync)
+            throws IOException {
+        super(output, baseDirectory, sync);
+        zip = new ZipOutputStream(out);
+    }
+
+    @Override
+    protected void writeChange(String path, byte[] original, byte[] migrated)
+            throws IOException {
+        zip.putNextEntry(new ZipEntry(path));
+        zip.write(migrated);
+        zip.closeEntry();
+    }
+
+    @Override
+    protected void writeEnd() throws IOException {
+        zip.finish();
+    }
+}
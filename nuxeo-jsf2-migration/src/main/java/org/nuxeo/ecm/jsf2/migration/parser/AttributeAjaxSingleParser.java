@@ -16,6 +16,8 @@
  */
 package org.nuxeo.ecm.jsf2.migration.parser;
 
+import java.util.List;
+
 import org.dom4j.Attribute;
 import org.dom4j.Document;
 import org.dom4j.Element;
@@ -30,7 +32,8 @@ import org.dom4j.tree.DefaultAttribute;
 public class AttributeAjaxSingleParser extends GenericParser {
 
     @Override
-    public void migrate(Document input) throws Exception {
+    public void migrate(Document input, List<Node> listElementsToMigrate)
+            throws Exception {
         // Migrate the elements matching the rule
         if (rule.isMigrationAuto()) {
             for (Node node : listElementsToMigrate) {
@@ -44,4 +47,17 @@ public class AttributeAjaxSingleParser extends GenericParser {
             }
         }
     }
+
+    @Override
+    public void patch(Document input, List<Node> listElementsToMigrate,
+            DocumentPatch patch) {
+        if (rule.isMigrationAuto()) {
+            for (Node node : listElementsToMigrate) {
+                Element element = (Element) node;
+                Attribute attrAS = element.attribute("ajaxSingle");
+                patch.replaceAttribute(element, attrAS.getQualifiedName(),
+                        "execute", "@this");
+            }
+        }
+    }
 }
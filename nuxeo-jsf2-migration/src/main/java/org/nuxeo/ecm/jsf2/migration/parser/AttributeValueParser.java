@@ -16,9 +16,12 @@
  */
 package org.nuxeo.ecm.jsf2.migration.parser;
 
+import java.util.List;
+
+import org.dom4j.Attribute;
 import org.dom4j.Document;
+import org.dom4j.Element;
 import org.dom4j.Node;
-import org.dom4j.tree.DefaultAttribute;
 
 /**
  * Parser for the migration of the value of an attribute.
@@ -28,14 +31,50 @@ import org.dom4j.tree.DefaultAttribute;
 public class AttributeValueParser extends GenericParser {
 
     @Override
-    public void migrate(Document input) throws Exception {
+    public void migrate(Document input, List<Node> listElementsToMigrate)
+            throws Exception {
         // Migrate the elements matching the rule
         if (rule.isMigrationAuto()) {
             for (Node node : listElementsToMigrate) {
-                DefaultAttribute attribute = (DefaultAttribute) node;
+                Attribute attribute = getAttribute(node);
                 // Change the value of the attribute
                 attribute.setValue(rule.getNewValue());
             }
         }
     }
+
+    @Override
+    public void patch(Document input, List<Node> listElementsToMigrate,
+            DocumentPatch patch) {
+        if (rule.isMigrationAuto()) {
+            for (Node node : listElementsToMigrate) {
+                Attribute attribute = getAttribute(node);
+                patch.setAttributeValue(attribute.getParent(),
+                        attribute.getQualifiedName(), rule.getNewValue());
+            }
+        }
+    }
+
+    /**
+     * Get the attribute to migrate from a node selected by the rule: the
+     * attribute itself, or the element having the attribute checked by the
+     * XPath expression, as in "//*[@event='onclick']".
+     */
+    protected Attribute getAttribute(Node node) {
+        if (node instanceof Attribute) {
+            return (Attribute) node;
+        }
+        Element element = (Element) node;
+        if (pattern != null) {
+            for (RulePattern.Predicate predicate : pattern.getPredicates()) {
+                if (!predicate.absent && !predicate.children
+                        && predicate.value != null) {
+                    return RulePattern.getAttribute(element,
+                            predicate.attributeName);
+                }
+            }
+        }
+        throw new IllegalStateException("The attribute to migrate of the rule "
+                + rule + " is unknown");
+    }
 }
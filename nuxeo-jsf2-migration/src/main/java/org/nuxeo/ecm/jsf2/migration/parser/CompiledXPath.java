@@ -0,0 +1,146 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.jaxen.JaxenException;
+import org.jaxen.SimpleNamespaceContext;
+import org.jaxen.XPath;
+import org.jaxen.dom4j.Dom4jXPath;
+
+/**
+ * XPath expression of a rule, with the prefixes it uses. The expression is
+ * compiled once for each binding of its prefixes to namespaces, and the
+ * compiled expressions are shared by all the parsers and threads.
+ *
+ * @since 6.0
+ */
+public final class CompiledXPath {
+
+    private static final Pattern PATTERN_PREFIX = Pattern.compile("/[a-zA-Z0-9]+:([a-zA-Z0-9]+|\\*)");
+
+    private static final ConcurrentMap<String, CompiledXPath> cache = new ConcurrentHashMap<String, CompiledXPath>();
+
+    private final String xpath;
+
+    private final List<String> listPrefixes;
+
+    // The compiled expressions by list of namespace URIs bound to the
+    // prefixes
+    private final ConcurrentMap<List<String>, XPath> xpathByBinding = new ConcurrentHashMap<List<String>, XPath>();
+
+    private CompiledXPath(String xpath) {
+        this.xpath = xpath;
+        listPrefixes = Collections.unmodifiableList(getPrefixes(xpath));
+    }
+
+    /**
+     * Get the compiled form of an XPath expression.
+     *
+     * @param xpath The XPath expression.
+     */
+    public static CompiledXPath get(String xpath) {
+        CompiledXPath compiledXPath = cache.get(xpath);
+        if (compiledXPath == null) {
+            compiledXPath = new CompiledXPath(xpath);
+            CompiledXPath existing = cache.putIfAbsent(xpath, compiledXPath);
+            if (existing != null) {
+                compiledXPath = existing;
+            }
+        }
+        return compiledXPath;
+    }
+
+    public String getXPath() {
+        return xpath;
+    }
+
+    /**
+     * Get the prefixes used in the XPath expression.
+     */
+    public List<String> getPrefixes() {
+        return listPrefixes;
+    }
+
+    /**
+     * Get the XPath expression compiled with the namespaces bound to its
+     * prefixes. The returned expression must not be modified as it is shared.
+     *
+     * @param namespaceURIs The URI of the namespace bound to each prefix
+     *            returned by {@link #getPrefixes()}, in the same order, or
+     *            null when the prefix is not bound.
+     */
+    public XPath getXPath(String... namespaceURIs) throws JaxenException {
+        List<String> binding = Arrays.asList(namespaceURIs);
+        XPath xpathExpr = xpathByBinding.get(binding);
+        if (xpathExpr == null) {
+            xpathExpr = compile(namespaceURIs);
+            XPath existing = xpathByBinding.putIfAbsent(binding, xpathExpr);
+            if (existing != null) {
+                xpathExpr = existing;
+            }
+        }
+        return xpathExpr;
+    }
+
+    private XPath compile(String[] namespaceURIs) throws JaxenException {
+        XPath xpathExpr = new Dom4jXPath(xpath);
+        SimpleNamespaceContext nsContext = new SimpleNamespaceContext();
+        for (int i = 0; i < listPrefixes.size(); i++) {
+            if (namespaceURIs[i] != null) {
+                nsContext.addNamespace(listPrefixes.get(i), namespaceURIs[i]);
+            }
+        }
+        xpathExpr.setNamespaceContext(nsContext);
+        // Fully initialize the expression before sharing it
+        xpathExpr.getNamespaceContext();
+        return xpathExpr;
+    }
+
+    /**
+     * If prefixes are defined in the XPath expression, they are returned.
+     *
+     * @param xpath XPath to check
+     * @return The list of prefixes.
+     */
+    static List<String> getPrefixes(String xpath) {
+        List<String> listPrefixes = new ArrayList<String>();
+
+        if (!StringUtils.isEmpty(xpath)) {
+            Matcher matcher = PATTERN_PREFIX.matcher(xpath);
+            while (matcher.find()) {
+                String prefix = matcher.group();
+                // Get only the left part to get the prefix
+                prefix = prefix.split(":")[0];
+                // Remove the first character which is '/'
+                prefix = prefix.substring(1);
+                listPrefixes.add(prefix);
+            }
+        }
+
+        return listPrefixes;
+    }
+}
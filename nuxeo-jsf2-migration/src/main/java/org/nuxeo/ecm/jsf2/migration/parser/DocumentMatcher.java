@@ -0,0 +1,310 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.dom4j.Attribute;
+import org.dom4j.Document;
+import org.dom4j.Element;
+import org.dom4j.Node;
+
+/**
+ * Evaluate several {@link RulePattern} in a single walk of a document. The
+ * patterns are indexed by the name of the elements and attributes they
+ * select, so each node of the document is only checked against the patterns
+ * which may select it.
+ * <p>
+ * The matcher is immutable and can be used by several threads. The patterns
+ * can also be evaluated on a document read as a stream, see
+ * {@link StreamingMatcher}. The patterns which can not select any node of a
+ * document (see {@link RulePlan}) can be left out of the walk.
+ *
+ * @since 6.0
+ */
+public class DocumentMatcher {
+
+    private final RulePattern[] patterns;
+
+    // The patterns selecting elements, by local name
+    private final Map<String, int[]> elementPatterns = new HashMap<String, int[]>();
+
+    // The patterns selecting any element with a given attribute, by name of
+    // the attribute
+    private final Map<String, int[]> elementPatternsByAttribute = new HashMap<String, int[]>();
+
+    // The patterns selecting any element, or any element of a namespace, to
+    // check on every element
+    private final int[] anyElementPatterns;
+
+    // The patterns selecting attributes, by name of the attribute
+    private final Map<String, int[]> attributePatterns = new HashMap<String, int[]>();
+
+    /**
+     * @param patterns The patterns to evaluate, the null elements are
+     *            ignored.
+     */
+    public DocumentMatcher(RulePattern[] patterns) {
+        this.patterns = patterns.clone();
+        List<Integer> anyElements = new ArrayList<Integer>();
+        for (int i = 0; i < patterns.length; i++) {
+            RulePattern pattern = patterns[i];
+            if (pattern == null) {
+                continue;
+            }
+            if (pattern.isAttribute()) {
+                addToIndex(attributePatterns, pattern.getName(), i);
+            } else if (pattern.getName() != null) {
+                addToIndex(elementPatterns, pattern.getName(), i);
+            } else if (pattern.getRequiredAttribute() != null) {
+                addToIndex(elementPatternsByAttribute,
+                        pattern.getRequiredAttribute(), i);
+            } else {
+                anyElements.add(Integer.valueOf(i));
+            }
+        }
+        anyElementPatterns = toArray(anyElements);
+    }
+
+    private static void addToIndex(Map<String, int[]> index, String key,
+            int patternIndex) {
+        int[] indexes = index.get(key);
+        if (indexes == null) {
+            index.put(key, new int[] { patternIndex });
+        } else {
+            int[] newIndexes = new int[indexes.length + 1];
+            System.arraycopy(indexes, 0, newIndexes, 0, indexes.length);
+            newIndexes[indexes.length] = patternIndex;
+            index.put(key, newIndexes);
+        }
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i).intValue();
+        }
+        return array;
+    }
+
+    /**
+     * Get the number of patterns, including the null ones.
+     */
+    public int size() {
+        return patterns.length;
+    }
+
+    RulePattern getPattern(int index) {
+        return patterns[index];
+    }
+
+    int[] getElementPatterns(String name) {
+        return elementPatterns.get(name);
+    }
+
+    int[] getElementPatternsByAttribute(String attributeName) {
+        return elementPatternsByAttribute.get(attributeName);
+    }
+
+    int[] getAnyElementPatterns() {
+        return anyElementPatterns;
+    }
+
+    int[] getAttributePatterns(String attributeName) {
+        return attributePatterns.get(attributeName);
+    }
+
+    /**
+     * Create a handler evaluating the patterns on the events of a SAX parser,
+     * to analyze a document without building its DOM.
+     */
+    public StreamingMatcher newStreamingMatcher() {
+        return new StreamingMatcher(this, null, false);
+    }
+
+    /**
+     * Create a handler evaluating some of the patterns on the events of a SAX
+     * parser.
+     *
+     * @param candidates For each pattern, true if it is evaluated, null to
+     *            evaluate all the patterns.
+     * @param measured True to measure the time spent evaluating each
+     *            pattern.
+     */
+    public StreamingMatcher newStreamingMatcher(boolean[] candidates,
+            boolean measured) {
+        return new StreamingMatcher(this, candidates, measured);
+    }
+
+    /**
+     * Select the nodes matching the patterns in a single walk of the
+     * document.
+     *
+     * @param input The document.
+     * @param fromIndex Only the patterns from this index are evaluated.
+     * @return The nodes selected by each pattern, in the order of the
+     *         document. The list is null for the patterns not evaluated.
+     */
+    public List<Node>[] match(Document input, int fromIndex) {
+        return match(input, fromIndex, null);
+    }
+
+    /**
+     * Select the nodes matching some of the patterns in a single walk of the
+     * document.
+     *
+     * @param input The document.
+     * @param fromIndex Only the patterns from this index are evaluated.
+     * @param candidates For each pattern, true if it is evaluated, null to
+     *            evaluate all the patterns from the index.
+     * @return The nodes selected by each pattern, in the order of the
+     *         document. The list is null for the patterns not evaluated.
+     */
+    public List<Node>[] match(Document input, int fromIndex,
+            boolean[] candidates) {
+        Element root = input.getRootElement();
+        // A generic array can not be created, the lists are all List<Node>
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        List<Node>[] matches = new List[patterns.length];
+        // Bind the prefixes of the patterns to the namespaces of the document,
+        // the patterns not evaluated are left unbound
+        String[] namespaceURIs = new String[patterns.length];
+        for (int i = fromIndex; i < patterns.length; i++) {
+            if (patterns[i] != null
+                    && (candidates == null || candidates[i])) {
+                matches[i] = Collections.emptyList();
+                if (!patterns[i].isAttribute()) {
+                    namespaceURIs[i] = patterns[i].getNamespaceURI(root);
+                }
+            }
+        }
+        if (root == null || !hasMatches(matches)) {
+            return matches;
+        }
+
+        // Depth-first walk, the nodes are visited in the order of the
+        // document
+        Element[] stack = new Element[16];
+        int[] childIndexes = new int[16];
+        int depth = 0;
+        stack[0] = root;
+        visit(root, namespaceURIs, matches);
+        while (depth >= 0) {
+            Element current = stack[depth];
+            if (childIndexes[depth] < current.nodeCount()) {
+                Node child = current.node(childIndexes[depth]++);
+                if (child instanceof Element) {
+                    Element element = (Element) child;
+                    visit(element, namespaceURIs, matches);
+                    depth++;
+                    if (depth == stack.length) {
+                        Element[] newStack = new Element[depth * 2];
+                        System.arraycopy(stack, 0, newStack, 0, depth);
+                        stack = newStack;
+                        int[] newIndexes = new int[depth * 2];
+                        System.arraycopy(childIndexes, 0, newIndexes, 0,
+                                depth);
+                        childIndexes = newIndexes;
+                    }
+                    stack[depth] = element;
+                    childIndexes[depth] = 0;
+                }
+            } else {
+                stack[depth] = null;
+                depth--;
+            }
+        }
+        return matches;
+    }
+
+    private static boolean hasMatches(List<Node>[] matches) {
+        for (List<Node> match : matches) {
+            if (match != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void visit(Element element, String[] namespaceURIs,
+            List<Node>[] matches) {
+        int[] indexes = elementPatterns.get(element.getName());
+        if (indexes != null) {
+            for (int index : indexes) {
+                if (matches[index] != null
+                        && namespaceURIs[index].equals(element.getNamespaceURI())
+                        && patterns[index].matchesPredicates(element)) {
+                    add(matches, index, element);
+                }
+            }
+        }
+        for (int index : anyElementPatterns) {
+            if (matches[index] != null
+                    && matchesNamespace(index, namespaceURIs, element)
+                    && patterns[index].matchesPredicates(element)) {
+                add(matches, index, element);
+            }
+        }
+        for (int i = 0, count = element.attributeCount(); i < count; i++) {
+            Attribute attribute = element.attribute(i);
+            if (!StringUtils.isEmpty(attribute.getNamespaceURI())) {
+                continue;
+            }
+            indexes = attributePatterns.get(attribute.getName());
+            if (indexes != null) {
+                for (int index : indexes) {
+                    if (matches[index] != null) {
+                        add(matches, index, attribute);
+                    }
+                }
+            }
+            indexes = elementPatternsByAttribute.get(attribute.getName());
+            if (indexes != null) {
+                for (int index : indexes) {
+                    if (matches[index] != null
+                            && matchesNamespace(index, namespaceURIs, element)
+                            && patterns[index].matchesPredicates(element)) {
+                        add(matches, index, element);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if an element is in the namespace of a pattern selecting
+     * any element (with or without a required attribute), the patterns
+     * without prefix select the elements of all the namespaces.
+     */
+    private boolean matchesNamespace(int index, String[] namespaceURIs,
+            Element element) {
+        return patterns[index].getPrefix() == null
+                || namespaceURIs[index].equals(element.getNamespaceURI());
+    }
+
+    private static void add(List<Node>[] matches, int index, Node node) {
+        if (matches[index].isEmpty()) {
+            matches[index] = new ArrayList<Node>();
+        }
+        matches[index].add(node);
+    }
+}
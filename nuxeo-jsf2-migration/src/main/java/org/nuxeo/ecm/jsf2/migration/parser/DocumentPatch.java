@@ -0,0 +1,478 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.dom4j.Element;
+
+/**
+ * Changes to apply to the source of a document to migrate it, instead of
+ * writing the DOM of the migrated document. Only the names of the tags and
+ * the attributes changed by the migration are replaced, the rest of the
+ * source is copied byte for byte: the formatting, the comments, the entity
+ * references and the encoding of the document are kept.
+ * <p>
+ * The tags are found from the positions of the {@link LocatedElement}
+ * elements. If a change can not be located exactly in the source, the patch
+ * becomes invalid and the migrated document must be written from its DOM.
+ * <p>
+ * A patch is used for one document and one thread.
+ *
+ * @since 6.0
+ */
+public class DocumentPatch {
+
+    // The literal of the declarations of entities, whose replacement text is
+    // located in the declaration and not where it is used
+    private static final String ENTITY_DECLARATION = "<!ENTITY";
+
+    // Size of the buffer receiving the encoded text, whose length is counted
+    private static final int ENCODING_BUFFER_SIZE = 1024;
+
+    private final byte[] content;
+
+    private final Charset charset;
+
+    // The encoder counting the bytes of the text before and between the
+    // changes, reset before each use
+    private final CharsetEncoder encoder;
+
+    private final ByteBuffer encodingBuffer = ByteBuffer.allocate(
+            ENCODING_BUFFER_SIZE);
+
+    // The decoded content of the document
+    private final char[] text;
+
+    // The offset in the text of the first character of each line
+    private final int[] lineStarts;
+
+    // The changes, by offset of their start in the text
+    private final TreeMap<Integer, Edit> edits = new TreeMap<Integer, Edit>();
+
+    private boolean valid = true;
+
+    /**
+     * Replacement of a range of the text.
+     */
+    private static class Edit {
+
+        final int start;
+
+        final int end;
+
+        final String replacement;
+
+        Edit(int start, int end, String replacement) {
+            this.start = start;
+            this.end = end;
+            this.replacement = replacement;
+        }
+    }
+
+    private DocumentPatch(byte[] content, Charset charset, char[] text) {
+        this.content = content;
+        this.charset = charset;
+        encoder = charset.newEncoder();
+        this.text = text;
+        List<Integer> listStarts = new ArrayList<Integer>();
+        // The byte order mark is not counted by the parser
+        listStarts.add(Integer.valueOf(text.length > 0 && text[0] == '\uFEFF' ? 1
+                : 0));
+        for (int i = 0; i < text.length; i++) {
+            char c = text[i];
+            if (c == '\r' && i + 1 < text.length && text[i + 1] == '\n') {
+                i++;
+            } else if (c != '\r' && c != '\n') {
+                continue;
+            }
+            listStarts.add(Integer.valueOf(i + 1));
+        }
+        lineStarts = new int[listStarts.size()];
+        for (int i = 0; i < lineStarts.length; i++) {
+            lineStarts[i] = listStarts.get(i).intValue();
+        }
+    }
+
+    /**
+     * Create a patch of the source of a document.
+     *
+     * @param content The content of the document.
+     * @param encoding The encoding of the document, as detected by the
+     *            parser.
+     * @return The patch or null if the source of the document can not be
+     *         patched: unknown encoding, encoding whose characters can not
+     *         be encoded separately (UTF-16 and UTF-32), malformed content or
+     *         declaration of entities.
+     */
+    public static DocumentPatch create(byte[] content, String encoding) {
+        if (encoding == null) {
+            return null;
+        }
+        Charset charset;
+        try {
+            charset = Charset.forName(encoding);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        if (!charset.canEncode() || charset.name().startsWith("UTF-16")
+                || charset.name().startsWith("UTF-32")) {
+            return null;
+        }
+        CharBuffer decoded;
+        try {
+            decoded = charset.newDecoder().onMalformedInput(
+                    CodingErrorAction.REPORT).onUnmappableCharacter(
+                    CodingErrorAction.REPORT).decode(ByteBuffer.wrap(content));
+        } catch (CharacterCodingException ex) {
+            return null;
+        }
+        char[] text = new char[decoded.remaining()];
+        decoded.get(text);
+        if (contains(text, ENTITY_DECLARATION)) {
+            return null;
+        }
+        return new DocumentPatch(content, charset, text);
+    }
+
+    /**
+     * Returns false if a change could not be located in the source.
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Mark the patch as invalid, when a migration can not be done by
+     * patching the source.
+     */
+    public void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Rename an element in its start tag and its end tag.
+     *
+     * @param element The element, as read from the source.
+     * @param qualifiedName The new name of the element.
+     */
+    public void renameElement(Element element, String qualifiedName) {
+        int start = getStartTag(element);
+        if (start < 0) {
+            return;
+        }
+        LocatedElement located = (LocatedElement) element;
+        int nameLength = located.getSourceName().length();
+        addEdit(start + 1, start + 1 + nameLength, qualifiedName);
+
+        if (located.getEndLine() == located.getStartLine()
+                && located.getEndColumn() == located.getStartColumn()) {
+            // Empty-element tag
+            return;
+        }
+        int endTagEnd = getOffset(located.getEndLine(),
+                located.getEndColumn());
+        int endTagStart = endTagEnd < 0 ? -1 : lastIndexOf('<', endTagEnd);
+        if (endTagStart < 0 || text[endTagStart + 1] != '/'
+                || !isName(endTagStart + 2, located.getSourceName())) {
+            invalidate();
+            return;
+        }
+        addEdit(endTagStart + 2, endTagStart + 2 + nameLength, qualifiedName);
+    }
+
+    /**
+     * Change the value of an attribute in the start tag of an element.
+     *
+     * @param element The element, as read from the source.
+     * @param name The qualified name of the attribute in the source.
+     * @param value The new value of the attribute.
+     */
+    public void setAttributeValue(Element element, String name, String value) {
+        replaceAttribute(element, name, name, value);
+    }
+
+    /**
+     * Replace an attribute in the start tag of an element, keeping its place
+     * among the attributes and its quotes.
+     *
+     * @param element The element, as read from the source.
+     * @param name The qualified name of the attribute in the source.
+     * @param newName The new name of the attribute.
+     * @param newValue The new value of the attribute.
+     */
+    public void replaceAttribute(Element element, String name, String newName,
+            String newValue) {
+        int start = getStartTag(element);
+        if (start < 0) {
+            return;
+        }
+        int[] attribute = findAttribute(start,
+                ((LocatedElement) element).getSourceName(), name);
+        if (attribute == null) {
+            invalidate();
+            return;
+        }
+        if (!newName.equals(name)) {
+            addEdit(attribute[0], attribute[1], newName);
+        }
+        addEdit(attribute[2], attribute[3],
+                escape(newValue, text[attribute[2] - 1]));
+    }
+
+    /**
+     * Get the content of the patched document.
+     *
+     * @return The content or null if the patch is not valid.
+     */
+    public byte[] apply() {
+        if (!valid) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length
+                + 64 * edits.size());
+        int textOffset = 0;
+        int byteOffset = 0;
+        try {
+            for (Edit edit : edits.values()) {
+                // Copy the bytes of the source up to the change
+                int length = getEncodedLength(textOffset, edit.start);
+                out.write(content, byteOffset, length);
+                byteOffset += length;
+                // Skip the bytes of the replaced range
+                byteOffset += getEncodedLength(edit.start, edit.end);
+                byte[] replacement = edit.replacement.getBytes(charset);
+                out.write(replacement, 0, replacement.length);
+                textOffset = edit.end;
+            }
+        } catch (CharacterCodingException ex) {
+            return null;
+        }
+        out.write(content, byteOffset, content.length - byteOffset);
+        return out.toByteArray();
+    }
+
+    /**
+     * Get the offset of the '&lt;' starting the start tag of an element, -1
+     * if it can not be located. The patch is then invalid.
+     */
+    private int getStartTag(Element element) {
+        if (!valid) {
+            return -1;
+        }
+        if (!(element instanceof LocatedElement)) {
+            invalidate();
+            return -1;
+        }
+        LocatedElement located = (LocatedElement) element;
+        int end = getOffset(located.getStartLine(), located.getStartColumn());
+        int start = end < 0 ? -1 : lastIndexOf('<', end);
+        if (start < 0 || !isName(start + 1, located.getSourceName())) {
+            invalidate();
+            return -1;
+        }
+        return start;
+    }
+
+    /**
+     * Get the offset just after a tag from the position given by the SAX
+     * locator, -1 if the position is not the end of a tag.
+     */
+    private int getOffset(int line, int column) {
+        if (line < 1 || line > lineStarts.length || column < 1) {
+            return -1;
+        }
+        int offset = lineStarts[line - 1] + column - 1;
+        if (offset < 1 || offset > text.length || text[offset - 1] != '>') {
+            return -1;
+        }
+        return offset;
+    }
+
+    /**
+     * Find an attribute in a start tag.
+     *
+     * @return The offsets of the start and the end of the name and of the
+     *         value, without the quotes, or null if the attribute is not
+     *         found.
+     */
+    private int[] findAttribute(int tagStart, String elementName, String name) {
+        int i = tagStart + 1 + elementName.length();
+        while (i < text.length) {
+            i = skipWhitespaces(i);
+            if (i >= text.length || text[i] == '/' || text[i] == '>') {
+                return null;
+            }
+            int nameStart = i;
+            while (i < text.length && text[i] != '=' && !isWhitespace(text[i])) {
+                i++;
+            }
+            int nameEnd = i;
+            i = skipWhitespaces(i);
+            if (i >= text.length || text[i] != '=') {
+                return null;
+            }
+            i = skipWhitespaces(i + 1);
+            if (i >= text.length || (text[i] != '"' && text[i] != '\'')) {
+                return null;
+            }
+            char quote = text[i];
+            int valueStart = i + 1;
+            int valueEnd = valueStart;
+            while (valueEnd < text.length && text[valueEnd] != quote) {
+                valueEnd++;
+            }
+            if (valueEnd >= text.length) {
+                return null;
+            }
+            if (nameEnd - nameStart == name.length()
+                    && isName(nameStart, name)) {
+                return new int[] { nameStart, nameEnd, valueStart, valueEnd };
+            }
+            i = valueEnd + 1;
+        }
+        return null;
+    }
+
+    private void addEdit(int start, int end, String replacement) {
+        Map.Entry<Integer, Edit> previous = edits.floorEntry(Integer.valueOf(start));
+        if (previous != null && previous.getValue().end > start
+                && !(previous.getKey().intValue() == start && previous.getValue().end == end)) {
+            invalidate();
+            return;
+        }
+        Map.Entry<Integer, Edit> next = edits.higherEntry(Integer.valueOf(start));
+        if (next != null && next.getKey().intValue() < end) {
+            invalidate();
+            return;
+        }
+        // A range changed twice keeps the last change
+        edits.put(Integer.valueOf(start), new Edit(start, end, replacement));
+    }
+
+    /**
+     * Returns true if the text at an offset is a name, followed by a
+     * character ending the name.
+     */
+    private boolean isName(int offset, String name) {
+        int end = offset + name.length();
+        if (end >= text.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (text[offset + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        char next = text[end];
+        return isWhitespace(next) || next == '/' || next == '>' || next == '=';
+    }
+
+    private int lastIndexOf(char c, int end) {
+        for (int i = end - 1; i >= 0; i--) {
+            if (text[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int skipWhitespaces(int offset) {
+        int i = offset;
+        while (i < text.length && isWhitespace(text[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    private int getEncodedLength(int start, int end)
+            throws CharacterCodingException {
+        if (start == end) {
+            return 0;
+        }
+        CharBuffer in = CharBuffer.wrap(text, start, end - start);
+        encoder.reset();
+        int length = 0;
+        CoderResult result;
+        do {
+            result = encoder.encode(in, encodingBuffer, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+            length += encodingBuffer.position();
+            encodingBuffer.clear();
+        } while (result.isOverflow());
+        do {
+            result = encoder.flush(encodingBuffer);
+            length += encodingBuffer.position();
+            encodingBuffer.clear();
+        } while (result.isOverflow());
+        return length;
+    }
+
+    /**
+     * Returns true if the text contains a value, without copying the text.
+     */
+    private static boolean contains(char[] text, String value) {
+        int last = text.length - value.length();
+        for (int i = 0; i <= last; i++) {
+            int j = 0;
+            while (j < value.length() && text[i + j] == value.charAt(j)) {
+                j++;
+            }
+            if (j == value.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Escape a value of an attribute written between quotes.
+     */
+    private static String escape(String value, char quote) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '&') {
+                escaped.append("&amp;");
+            } else if (c == '<') {
+                escaped.append("&lt;");
+            } else if (c == quote) {
+                escaped.append(quote == '"' ? "&quot;" : "&apos;");
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -18,8 +18,6 @@ package org.nuxeo.ecm.jsf2.migration.parser;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.commons.lang.StringUtils;
 import org.dom4j.Document;
@@ -27,89 +25,131 @@ import org.dom4j.Element;
 import org.dom4j.Namespace;
 import org.dom4j.Node;
 import org.dom4j.QName;
-import org.jaxen.SimpleNamespaceContext;
 import org.jaxen.XPath;
-import org.jaxen.dom4j.Dom4jXPath;
 import org.nuxeo.ecm.jsf2.migration.enumeration.EnumPrefixes;
 import org.nuxeo.ecm.jsf2.migration.enumeration.EnumTypeMigration;
 import org.nuxeo.ecm.jsf2.migration.report.FileReport;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRule;
 
 /**
  * A generic parser only looking if an element is present in the file. If the
  * migration is activated, it replaces the element by the JSF2 compatible one.
+ * <p>
+ * The parser does not keep any state about the files it analyzes, so the same
+ * instance can be used by several threads.
  *
  * @since 5.9.6
  */
 public class GenericParser implements RuleParser {
 
-    protected final String patternPrefix = "/[a-zAZ0-9]+:[a-zAZ0-9]+";
-
-    protected EnumTypeMigration rule;
+    protected MigrationRule rule;
 
     protected String xpath;
 
-    protected boolean doMigration;
+    protected CompiledXPath compiledXPath;
 
-    protected List<Node> listElementsToMigrate;
+    protected RulePattern pattern;
+
+    protected boolean doMigration;
 
     @Override
-    public void init(EnumTypeMigration rule, boolean doMigration) {
+    public void init(MigrationRule rule, boolean doMigration) {
         xpath = rule.getXPath();
+        compiledXPath = CompiledXPath.get(xpath);
+        pattern = RulePattern.compile(xpath);
         this.rule = rule;
         this.doMigration = doMigration;
-        listElementsToMigrate = new ArrayList<Node>();
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Get the pattern selecting the nodes of the rule, if the XPath expression
+     * of the rule is simple enough to be evaluated by a {@link DocumentMatcher}
+     * .
+     *
+     * @return The pattern or null if the XPath expression has to be
+     *         evaluated.
+     */
+    public RulePattern getPattern() {
+        return pattern;
+    }
+
     @Override
-    public void parse(Document input, FileReport report) throws Exception {
-        XPath xpathExpr = new Dom4jXPath(xpath);
+    public List<Node> parse(Document input, FileReport report)
+            throws Exception {
+        return parse(input, select(input, report), report);
+    }
+
+    /**
+     * Fill the FileReport object with the nodes matching the rule, when they
+     * have already been selected.
+     *
+     * @param input The parsed document.
+     * @param listElementsToMigrate The nodes matching the rule.
+     * @param report The FileReport file.
+     * @return The nodes of the document matching the rule.
+     */
+    public List<Node> parse(Document input, List<Node> listElementsToMigrate,
+            FileReport report) throws Exception {
+        addToReport(listElementsToMigrate.size(), report);
+        return listElementsToMigrate;
+    }
+
+    /**
+     * Fill the FileReport object with the number of nodes matching the rule,
+     * when the document is analyzed as a stream.
+     *
+     * @param nbMatches The number of nodes matching the rule.
+     * @param report The FileReport file.
+     */
+    public void addToReport(int nbMatches, FileReport report) {
+        if (nbMatches > 0) {
+            List<String> params = new ArrayList<String>();
+            params.add("" + nbMatches);
+            report.putMigration(rule, nbMatches, params);
+        }
+    }
 
+    /**
+     * Select the nodes matching the XPath expression of the rule.
+     */
+    @SuppressWarnings("unchecked")
+    protected List<Node> select(Document input, FileReport report)
+            throws Exception {
         // Check if a namespace is needed
-        List<String> prefixesInXpath = getPrefix(xpath);
-        if (prefixesInXpath.size() > 0) {
-            for (String prefixInXpath : prefixesInXpath) {
-                // Check if the prefix is in the list of prefixes
-                EnumPrefixes enumPrefix = EnumPrefixes.getPrefix(prefixInXpath);
-                if (enumPrefix != EnumPrefixes.UNKNOWN) {
-                    Namespace namespace = input.getRootElement().getNamespaceForPrefix(
-                            prefixInXpath);
-                    // If the namespace is not present in the root element, we
-                    // use the one defined in the enum to avoid errors while
-                    // executing the XPath expression.
-                    // Specific rules are used to check the validity of the
-                    // namespaces
-                    String nsURI = namespace != null ? namespace.getURI()
-                            : enumPrefix.getNamespace();
-                    SimpleNamespaceContext nsContext = new SimpleNamespaceContext();
-                    nsContext.addNamespace(prefixInXpath, nsURI);
-                    xpathExpr.setNamespaceContext(nsContext);
-                } else {
-                    // Add an error in the file report for the unknown
-                    // namespace
-                    report.getListMigrations().put(
-                            EnumTypeMigration.NAMESPACE_RULE_2,
-                            Integer.valueOf(1));
-                    List<String> params = new ArrayList<String>();
-                    params.add(prefixInXpath);
-                    report.getListParams().put(
-                            EnumTypeMigration.NAMESPACE_RULE_2, params);
-                }
+        List<String> prefixesInXpath = compiledXPath.getPrefixes();
+        String[] namespaceURIs = new String[prefixesInXpath.size()];
+        for (int i = 0; i < prefixesInXpath.size(); i++) {
+            String prefixInXpath = prefixesInXpath.get(i);
+            // Check if the prefix is in the list of prefixes
+            EnumPrefixes enumPrefix = EnumPrefixes.getPrefix(prefixInXpath);
+            if (enumPrefix != EnumPrefixes.UNKNOWN) {
+                Namespace namespace = input.getRootElement().getNamespaceForPrefix(
+                        prefixInXpath);
+                // If the namespace is not present in the root element, we
+                // use the one defined in the enum to avoid errors while
+                // executing the XPath expression.
+                // Specific rules are used to check the validity of the
+                // namespaces
+                namespaceURIs[i] = namespace != null ? namespace.getURI()
+                        : enumPrefix.getNamespace();
+            } else {
+                // Add an error in the file report for the unknown
+                // namespace
+                List<String> params = new ArrayList<String>();
+                params.add(prefixInXpath);
+                report.putMigration(EnumTypeMigration.NAMESPACE_RULE_2, 1,
+                        params);
             }
         }
 
-        listElementsToMigrate = xpathExpr.selectNodes(input);
-        if (listElementsToMigrate.size() > 0) {
-            List<String> params = new ArrayList<String>();
-            params.add("" + listElementsToMigrate.size());
-            report.getListParams().put(rule, params);
-            report.getListMigrations().put(rule,
-                    Integer.valueOf(listElementsToMigrate.size()));
-        }
+        // The expression is compiled only once for a binding of the prefixes
+        XPath xpathExpr = compiledXPath.getXPath(namespaceURIs);
+        return xpathExpr.selectNodes(input);
     }
 
     @Override
-    public void migrate(Document input) throws Exception {
+    public void migrate(Document input, List<Node> listElementsToMigrate)
+            throws Exception {
         // Migrate the elements matching the rule
         if (rule.isMigrationAuto()) {
             for (Node node : listElementsToMigrate) {
@@ -128,6 +168,25 @@ public class GenericParser implements RuleParser {
         }
     }
 
+    /**
+     * Record in the patch of the source of the document the migration which
+     * {@link #migrate(Document, List)} does in the DOM. The patch is recorded
+     * before the migration of the DOM.
+     *
+     * @param input The DOM of the file to migrate.
+     * @param listElementsToMigrate The nodes returned by the parse of the
+     *            document.
+     * @param patch The patch of the source of the document.
+     */
+    public void patch(Document input, List<Node> listElementsToMigrate,
+            DocumentPatch patch) {
+        if (rule.isMigrationAuto() && !StringUtils.isEmpty(rule.getNewValue())) {
+            for (Node node : listElementsToMigrate) {
+                patch.renameElement((Element) node, rule.getNewValue());
+            }
+        }
+    }
+
     /**
      * If a prefix is defined in the XPath expression, it is returned.
      *
@@ -135,21 +194,6 @@ public class GenericParser implements RuleParser {
      * @return The value of the prefix if present.
      */
     protected List<String> getPrefix(String xpath) {
-        List<String> listPrefixes = new ArrayList<String>();
-
-        if (!StringUtils.isEmpty(xpath)) {
-            Pattern pattern = Pattern.compile(patternPrefix);
-            Matcher matcher = pattern.matcher(xpath);
-            while (matcher.find()) {
-                String prefix = matcher.group();
-                // Get only the left part to get the prefix
-                prefix = prefix.split(":")[0];
-                // Remove the first character which is '/'
-                prefix = prefix.substring(1);
-                listPrefixes.add(prefix);
-            }
-        }
-
-        return listPrefixes;
+        return CompiledXPath.getPrefixes(xpath);
     }
 }
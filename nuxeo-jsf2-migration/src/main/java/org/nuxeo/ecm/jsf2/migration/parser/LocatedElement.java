@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.parser;
+
+import org.dom4j.QName;
+import org.dom4j.tree.DefaultElement;
+
+/**
+ * Element knowing where its tags are in the source of the document, as
+ * given by the SAX locator: the line and the column just after the end of
+ * the start tag and of the end tag. The name of the element in the source is
+ * kept, even if the element is renamed by a migration.
+ *
+ * @since 6.0
+ * @see LocatingDocumentFactory
+ */
+public class LocatedElement extends DefaultElement {
+
+    private static final long serialVersionUID = 1L;
+
+    // The qualified name of the element in the source
+    private final String sourceName;
+
+    // The positions are 0 when they are unknown
+    private int startLine;
+
+    private int startColumn;
+
+    private int endLine;
+
+    private int endColumn;
+
+    public LocatedElement(QName qname) {
+        super(qname);
+        sourceName = qname.getQualifiedName();
+    }
+
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    public int getStartLine() {
+        return startLine;
+    }
+
+    public int getStartColumn() {
+        return startColumn;
+    }
+
+    public int getEndLine() {
+        return endLine;
+    }
+
+    public int getEndColumn() {
+        return endColumn;
+    }
+
+    /**
+     * Set the position of the end of the start tag.
+     */
+    void setStart(int line, int column) {
+        startLine = line;
+        startColumn = column;
+    }
+
+    /**
+     * Set the position of the end of the end tag, the same as the position of
+     * the start tag for an empty-element tag.
+     */
+    void setEnd(int line, int column) {
+        endLine = line;
+        endColumn = column;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.dom4j.io.SAXReader;
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLFilter;
+import org.xml.sax.ext.Locator2;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Factory of the DOM of the documents read by a {@link SAXReader}, creating
+ * {@link LocatedElement} elements whose position in the source is set by the
+ * filter of the factory. The reader must use both the factory and its
+ * filter:
+ *
+ * <pre>
+ * LocatingDocumentFactory factory = new LocatingDocumentFactory();
+ * reader.setDocumentFactory(factory);
+ * reader.setXMLFilter(factory.getFilter());
+ * </pre>
+ *
+ * The factory keeps the state of the document being read, so it must only be
+ * used by one reader and one thread.
+ *
+ * @since 6.0
+ * @see DocumentPatch
+ */
+public class LocatingDocumentFactory extends DocumentFactory {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient Filter filter = new Filter();
+
+    // The last element created, to locate when its start tag is read
+    private transient LocatedElement created;
+
+    /**
+     * Filter between the parser and the handler building the DOM, setting
+     * the positions of the elements created by the handler.
+     */
+    private class Filter extends XMLFilterImpl {
+
+        private Locator locator;
+
+        private String encoding;
+
+        // The elements whose end tag is not read yet, null for the elements
+        // which were not created by the factory
+        private final List<LocatedElement> stack = new ArrayList<LocatedElement>();
+
+        @Override
+        public void setDocumentLocator(Locator locator) {
+            this.locator = locator;
+            super.setDocumentLocator(locator);
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            stack.clear();
+            encoding = null;
+            created = null;
+            super.startDocument();
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                Attributes atts) throws SAXException {
+            super.startElement(uri, localName, qName, atts);
+            LocatedElement element = created;
+            created = null;
+            if (locator != null) {
+                if (element != null) {
+                    element.setStart(locator.getLineNumber(),
+                            locator.getColumnNumber());
+                }
+                // The encoding is known once the XML declaration is read
+                if (encoding == null && locator instanceof Locator2) {
+                    encoding = ((Locator2) locator).getEncoding();
+                }
+            }
+            stack.add(element);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+            super.endElement(uri, localName, qName);
+            LocatedElement element = stack.remove(stack.size() - 1);
+            if (element != null && locator != null) {
+                element.setEnd(locator.getLineNumber(),
+                        locator.getColumnNumber());
+            }
+        }
+    }
+
+    @Override
+    public Element createElement(QName qname) {
+        LocatedElement element = new LocatedElement(qname);
+        created = element;
+        return element;
+    }
+
+    /**
+     * Get the filter to set on the reader using the factory.
+     */
+    public XMLFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Get the encoding of the last document read, as detected by the parser.
+     *
+     * @return The name of the encoding or null if it is unknown.
+     */
+    public String getEncoding() {
+        return filter.encoding;
+    }
+}
@@ -18,18 +18,19 @@ package org.nuxeo.ecm.jsf2.migration.parser;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 import org.dom4j.Document;
 import org.dom4j.Element;
 import org.dom4j.Namespace;
+import org.dom4j.Node;
 import org.dom4j.QName;
-import org.jaxen.SimpleNamespaceContext;
 import org.jaxen.XPath;
-import org.jaxen.dom4j.Dom4jXPath;
 import org.nuxeo.ecm.jsf2.migration.enumeration.EnumPrefixes;
 import org.nuxeo.ecm.jsf2.migration.enumeration.EnumTypeMigration;
 import org.nuxeo.ecm.jsf2.migration.report.FileReport;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRule;
 
 /**
  * Parser to check the namespaces
@@ -38,17 +39,19 @@ import org.nuxeo.ecm.jsf2.migration.report.FileReport;
  */
 public class NamespaceParser extends GenericParser {
 
-    protected List<String> listPrefixToMigrate;
-
     @Override
-    public void init(EnumTypeMigration rule, boolean doMigration) {
+    public void init(MigrationRule rule, boolean doMigration) {
         this.rule = rule;
         this.doMigration = doMigration;
-        listPrefixToMigrate = new ArrayList<String>();
     }
 
+    /**
+     * Returns the namespaces of the root element which have to be migrated.
+     */
     @Override
-    public void parse(Document input, FileReport report) throws Exception {
+    public List<Node> parse(Document input, FileReport report)
+            throws Exception {
+        List<Node> listNamespacesToMigrate = new ArrayList<Node>();
         Element rootElement = input.getRootElement();
         // For each prefix defined, we check, when it's present in the root
         // element, that the namespace is correct
@@ -56,23 +59,46 @@ public class NamespaceParser extends GenericParser {
             Namespace ns = rootElement.getNamespaceForPrefix(prefix.getPrefix());
             if (ns != null
                     && !StringUtils.equals(prefix.getNamespace(), ns.getURI())) {
-                listPrefixToMigrate.add(prefix.getPrefix());
+                listNamespacesToMigrate.add(ns);
                 // Add the value for the report
-                report.getListMigrations().put(
-                        EnumTypeMigration.NAMESPACE_RULE_1, Integer.valueOf(1));
                 List<String> params = new ArrayList<String>();
                 params.add(prefix.getPrefix());
                 params.add(prefix.getNamespace());
-                report.getListParams().put(EnumTypeMigration.NAMESPACE_RULE_1,
+                report.putMigration(EnumTypeMigration.NAMESPACE_RULE_1, 1,
+                        params);
+            }
+        }
+        return listNamespacesToMigrate;
+    }
+
+    /**
+     * Check the namespaces of the root element of a document analyzed as a
+     * stream.
+     *
+     * @param rootNamespaces The URI of the namespaces declared by the root
+     *            element, by prefix.
+     * @param report The FileReport file.
+     */
+    public void parse(Map<String, String> rootNamespaces, FileReport report) {
+        for (EnumPrefixes prefix : EnumPrefixes.values()) {
+            String uri = rootNamespaces.get(prefix.getPrefix());
+            if (uri != null
+                    && !StringUtils.equals(prefix.getNamespace(), uri)) {
+                List<String> params = new ArrayList<String>();
+                params.add(prefix.getPrefix());
+                params.add(prefix.getNamespace());
+                report.putMigration(EnumTypeMigration.NAMESPACE_RULE_1, 1,
                         params);
             }
         }
     }
 
     @Override
-    public void migrate(Document input) throws Exception {
+    public void migrate(Document input, List<Node> listElementsToMigrate)
+            throws Exception {
         Element root = input.getRootElement();
-        for (String prefix : listPrefixToMigrate) {
+        for (Node node : listElementsToMigrate) {
+            String prefix = ((Namespace) node).getPrefix();
             Namespace newNamespace = new Namespace(prefix,
                     EnumPrefixes.getPrefix(prefix).getNamespace());
             Namespace oldNamespace = root.getNamespaceForPrefix(prefix);
@@ -85,13 +111,10 @@ public class NamespaceParser extends GenericParser {
             StringBuilder prefixXpath = new StringBuilder("//");
             prefixXpath.append(prefix);
             prefixXpath.append(":*");
-            // Create a new XPath expression, with the old namespace in order
-            // to
-            // get the elements matching the expression
-            XPath xpath = new Dom4jXPath(prefixXpath.toString());
-            SimpleNamespaceContext nc = new SimpleNamespaceContext();
-            nc.addNamespace(prefix, oldNamespace.getURI());
-            xpath.setNamespaceContext(nc);
+            // Get the XPath expression with the old namespace in order to get
+            // the elements matching the expression
+            XPath xpath = CompiledXPath.get(prefixXpath.toString()).getXPath(
+                    oldNamespace.getURI());
 
             @SuppressWarnings("unchecked")
             List<Element> elementsToMigrate = xpath.selectNodes(input);
@@ -105,4 +128,19 @@ public class NamespaceParser extends GenericParser {
             }
         }
     }
+
+    /**
+     * Replace the URI of the namespaces declared by the root element. The
+     * elements are not changed, they keep their prefix.
+     */
+    @Override
+    public void patch(Document input, List<Node> listElementsToMigrate,
+            DocumentPatch patch) {
+        Element root = input.getRootElement();
+        for (Node node : listElementsToMigrate) {
+            String prefix = ((Namespace) node).getPrefix();
+            patch.setAttributeValue(root, "xmlns:" + prefix,
+                    EnumPrefixes.getPrefix(prefix).getNamespace());
+        }
+    }
 }
@@ -16,6 +16,7 @@
  */
 package org.nuxeo.ecm.jsf2.migration.parser;
 
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -34,8 +35,11 @@ public class ReRenderParser extends GenericParser {
 
     private static final String REGEX_EL = "(\\#|\\$)\\{([^}]+)\\}([^, ]*)|([^, ]+)";
 
+    private static final Pattern PATTERN_EL = Pattern.compile(REGEX_EL);
+
     @Override
-    public void migrate(Document input) throws Exception {
+    public void migrate(Document input, List<Node> listElementsToMigrate)
+            throws Exception {
         // Migrate the elements matching the rule
         if (rule.isMigrationAuto()) {
             for (Node node : listElementsToMigrate) {
@@ -48,6 +52,19 @@ public class ReRenderParser extends GenericParser {
         }
     }
 
+    @Override
+    public void patch(Document input, List<Node> listElementsToMigrate,
+            DocumentPatch patch) {
+        if (rule.isMigrationAuto()) {
+            for (Node node : listElementsToMigrate) {
+                Attribute attribute = (Attribute) node;
+                patch.replaceAttribute(attribute.getParent(),
+                        attribute.getQualifiedName(), rule.getNewValue(),
+                        generateNewValue(attribute.getValue()));
+            }
+        }
+    }
+
     /**
      * Create a new attribute with the new name.
      *
@@ -75,8 +92,7 @@ public class ReRenderParser extends GenericParser {
             // No value expression, the ',' are replaced by ' '
             newValue = value.replace(',', ' ');
         } else {
-            Pattern pattern = Pattern.compile(REGEX_EL);
-            Matcher matcher = pattern.matcher(value);
+            Matcher matcher = PATTERN_EL.matcher(value);
             if (matcher.groupCount() > 1) {
                 StringBuilder newValueBuilder = new StringBuilder();
                 while (matcher.find()) {
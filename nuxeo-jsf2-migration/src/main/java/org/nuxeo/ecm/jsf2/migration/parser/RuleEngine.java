@@ -0,0 +1,336 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.dom4j.Document;
+import org.dom4j.Node;
+import org.nuxeo.ecm.jsf2.migration.report.AnalysisMetrics;
+import org.nuxeo.ecm.jsf2.migration.report.AnalysisMetrics.Phase;
+import org.nuxeo.ecm.jsf2.migration.report.FileReport;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRule;
+
+/**
+ * Set of rules applied to the files of a run. The parsers of the rules are
+ * created once, when the engine is created, and are then shared by all the
+ * files analyzed, whatever the thread analyzing them.
+ * <p>
+ * The rules with a simple XPath expression (see {@link RulePattern}) are
+ * evaluated together by a {@link DocumentMatcher} in a single walk of the
+ * document, the other rules use their own XPath evaluation. Before parsing a
+ * document, a {@link RuleFilter} checks on its bytes if the patterns may
+ * select a node, so the documents which can not match any rule are only
+ * checked for their namespaces. On the other documents, only the rules whose
+ * pattern may select a node are applied (see {@link RulePlan}).
+ *
+ * @since 6.0
+ */
+public class RuleEngine {
+
+    private final List<MigrationRule> listRules;
+
+    private final List<RuleParser> listParsers;
+
+    private final boolean doMigration;
+
+    // The pattern of each rule, null if the rule is not evaluated by the
+    // matcher
+    private final RulePattern[] patterns;
+
+    private final DocumentMatcher matcher;
+
+    // Matcher without any pattern, reading only the namespaces of the root
+    // element
+    private final DocumentMatcher namespaceMatcher;
+
+    private final RuleFilter filter;
+
+    // Plan applying all the rules
+    private final RulePlan fullPlan = new RulePlan(null, true);
+
+    /**
+     * @param listRules The rules to apply, in the order of execution.
+     * @param doMigration Automatically do the migration if possible.
+     */
+    public RuleEngine(List<? extends MigrationRule> listRules,
+            boolean doMigration) {
+        this.doMigration = doMigration;
+        List<MigrationRule> rules = new ArrayList<MigrationRule>();
+        List<RuleParser> parsers = new ArrayList<RuleParser>();
+        for (MigrationRule rule : listRules) {
+            RuleParser parser = rule.newParser(doMigration);
+            if (parser != null) {
+                rules.add(rule);
+                parsers.add(parser);
+            }
+        }
+        this.listRules = Collections.unmodifiableList(rules);
+        this.listParsers = Collections.unmodifiableList(parsers);
+
+        patterns = new RulePattern[parsers.size()];
+        for (int i = 0; i < patterns.length; i++) {
+            RuleParser parser = parsers.get(i);
+            if (parser instanceof GenericParser) {
+                patterns[i] = ((GenericParser) parser).getPattern();
+            }
+        }
+        matcher = new DocumentMatcher(patterns);
+        namespaceMatcher = new DocumentMatcher(new RulePattern[patterns.length]);
+
+        // The rules without a pattern can only be skipped if they check the
+        // namespaces
+        boolean acceptAll = false;
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i] == null
+                    && !(parsers.get(i) instanceof NamespaceParser)) {
+                acceptAll = true;
+            }
+        }
+        filter = new RuleFilter(patterns, acceptAll);
+    }
+
+    public List<MigrationRule> getRules() {
+        return listRules;
+    }
+
+    public boolean isMigration() {
+        return doMigration;
+    }
+
+    /**
+     * Returns true if the rules can be applied to a document read as a
+     * stream, without building its DOM: no migration is done and every rule
+     * is either evaluated by the matcher or only checks the namespaces of the
+     * root element.
+     */
+    public boolean isStreamable() {
+        if (doMigration) {
+            return false;
+        }
+        for (int i = 0; i < listParsers.size(); i++) {
+            if (patterns[i] == null
+                    && !(listParsers.get(i) instanceof NamespaceParser)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create the SAX handler to use to read a document as a stream, the
+     * handler is then given to
+     * {@link #apply(StreamingMatcher, FileReport, AnalysisMetrics)}.
+     */
+    public StreamingMatcher newStreamingMatcher() {
+        return matcher.newStreamingMatcher();
+    }
+
+    /**
+     * Create the handler to use to read a document as a stream, evaluating
+     * only the patterns of the rules of a plan. If the document can not
+     * match any pattern, the handler only reads the namespaces of the root
+     * element.
+     *
+     * @param plan The plan of the document, see {@link #plan(byte[])}.
+     * @param metrics The metrics of the run, the time spent evaluating each
+     *            pattern is measured if they are enabled.
+     */
+    public StreamingMatcher newStreamingMatcher(RulePlan plan,
+            AnalysisMetrics metrics) {
+        return plan.mayMatch() ? matcher.newStreamingMatcher(
+                plan.getCandidates(), metrics.isEnabled())
+                : namespaceMatcher.newStreamingMatcher();
+    }
+
+    /**
+     * Plan the rules to apply to a document: the rules whose pattern can not
+     * select any node of the document, checked on its content, are left out.
+     *
+     * @param content The content of the document.
+     * @return The plan of the document.
+     */
+    public RulePlan plan(byte[] content) {
+        boolean[] candidates = filter.getCandidates(content);
+        if (candidates == null) {
+            return fullPlan;
+        }
+        boolean mayMatch = false;
+        for (int i = 0; i < candidates.length; i++) {
+            if (patterns[i] == null) {
+                candidates[i] = true;
+                if (!(listParsers.get(i) instanceof NamespaceParser)) {
+                    mayMatch = true;
+                }
+            } else if (candidates[i]) {
+                mayMatch = true;
+            }
+        }
+        return new RulePlan(candidates, mayMatch);
+    }
+
+    /**
+     * Check on the content of a document if a rule other than the check of
+     * the namespaces may report something. If not, the document only needs
+     * to be read as a stream by a handler created with
+     * {@link #newStreamingMatcher(RulePlan, AnalysisMetrics)}, whatever the
+     * rules.
+     *
+     * @param content The content of the document.
+     * @return False if the patterns can not select any node of the document.
+     */
+    public boolean mayMatch(byte[] content) {
+        return filter.mayMatch(content);
+    }
+
+    /**
+     * Apply the rules to a document read as a stream, recording the time
+     * spent by the handler evaluating each rule.
+     *
+     * @param handler The handler used to read the document.
+     * @param report The FileReport to fill.
+     * @param metrics The metrics of the run.
+     * @see #isStreamable()
+     * @see #mayMatch(byte[])
+     */
+    public void apply(StreamingMatcher handler, FileReport report,
+            AnalysisMetrics metrics) {
+        for (int i = 0; i < listParsers.size(); i++) {
+            RuleParser parser = listParsers.get(i);
+            if (patterns[i] != null) {
+                ((GenericParser) parser).addToReport(handler.getCount(i),
+                        report);
+                if (handler.isEvaluated(i)) {
+                    metrics.addStreamedRule(listRules.get(i),
+                            handler.getNanos(i));
+                }
+            } else if (parser instanceof NamespaceParser) {
+                ((NamespaceParser) parser).parse(handler.getRootNamespaces(),
+                        report);
+            } else {
+                throw new IllegalStateException("The rule " + listRules.get(i)
+                        + " can not be applied to a stream");
+            }
+        }
+    }
+
+    /**
+     * Apply the rules to the document. If the migration is activated, each
+     * rule migrates the document just after having analyzed it, so the next
+     * rules are applied on the migrated document.
+     *
+     * @param input The parsed document.
+     * @param report The FileReport to fill.
+     */
+    public void apply(Document input, FileReport report) throws Exception {
+        apply(input, report, AnalysisMetrics.DISABLED);
+    }
+
+    /**
+     * Apply the rules to the document, measuring the time spent by the
+     * matcher and by the parse and the migration of each rule.
+     *
+     * @param input The parsed document.
+     * @param report The FileReport to fill.
+     * @param metrics The metrics of the run.
+     * @see #apply(Document, FileReport)
+     */
+    public void apply(Document input, FileReport report,
+            AnalysisMetrics metrics) throws Exception {
+        apply(input, report, metrics, null);
+    }
+
+    /**
+     * Apply the rules to the document, recording the migrations in a patch of
+     * the source of the document too. The DOM is still migrated, so the next
+     * rules are applied on the migrated document as without patch.
+     *
+     * @param input The parsed document, read with a
+     *            {@link LocatingDocumentFactory}.
+     * @param report The FileReport to fill.
+     * @param metrics The metrics of the run.
+     * @param patch The patch of the source of the document, null if only the
+     *            DOM is migrated.
+     * @see #apply(Document, FileReport)
+     */
+    public void apply(Document input, FileReport report,
+            AnalysisMetrics metrics, DocumentPatch patch) throws Exception {
+        apply(input, report, metrics, patch, fullPlan);
+    }
+
+    /**
+     * Apply the rules of a plan to the document.
+     *
+     * @param input The parsed document.
+     * @param report The FileReport to fill.
+     * @param metrics The metrics of the run.
+     * @param patch The patch of the source of the document, null if only the
+     *            DOM is migrated.
+     * @param plan The plan of the document, see {@link #plan(byte[])}.
+     * @see #apply(Document, FileReport, AnalysisMetrics, DocumentPatch)
+     */
+    public void apply(Document input, FileReport report,
+            AnalysisMetrics metrics, DocumentPatch patch, RulePlan plan)
+            throws Exception {
+        // The nodes selected by the patterns, null until the document is
+        // walked
+        List<Node>[] matches = null;
+        for (int i = 0; i < listParsers.size(); i++) {
+            if (!plan.isCandidate(i)) {
+                // The rule can not select anything in the document
+                continue;
+            }
+            RuleParser parser = listParsers.get(i);
+            MigrationRule rule = listRules.get(i);
+            List<Node> listElementsToMigrate;
+            long start = metrics.time();
+            if (patterns[i] != null) {
+                if (matches == null) {
+                    matches = matcher.match(input, i, plan.getCandidates());
+                    start = metrics.addPhase(Phase.MATCH, start);
+                }
+                listElementsToMigrate = ((GenericParser) parser).parse(input,
+                        matches[i], report);
+            } else {
+                listElementsToMigrate = parser.parse(input, report);
+            }
+            start = metrics.addRule(rule, false, start);
+            if (doMigration) {
+                if (patch != null) {
+                    if (parser instanceof GenericParser) {
+                        ((GenericParser) parser).patch(input,
+                                listElementsToMigrate, patch);
+                    } else if (!listElementsToMigrate.isEmpty()) {
+                        // The migration done by the parser is unknown
+                        patch.invalidate();
+                    }
+                }
+                parser.migrate(input, listElementsToMigrate);
+                metrics.addRule(rule, true, start);
+                if (!listElementsToMigrate.isEmpty()) {
+                    // The document may have been changed, the next rules
+                    // must be matched on the migrated document, which may
+                    // contain nodes the plan did not see
+                    matches = null;
+                    plan = fullPlan;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.parser;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Check on the bytes of a document, before parsing it, if the document may
+ * contain a node selected by a {@link RulePattern}. A node can only be
+ * selected if the text of the document contains the literals of the pattern:
+ * the local name of the node, the names of the required attributes and their
+ * expected values. An element with a prefix can only be selected if the
+ * document declares the prefix or the namespace of the prefix in
+ * {@link org.nuxeo.ecm.jsf2.migration.enumeration.EnumPrefixes}, which the
+ * element would be in otherwise. All the literals are searched in a single
+ * pass over the bytes, with an Aho-Corasick automaton.
+ * <p>
+ * The filter either checks if any pattern may select a node, or which
+ * patterns may, so the others are not evaluated on the document (see
+ * {@link RulePlan}).
+ * <p>
+ * The filter never rejects a document which may contain a selected node, so
+ * it accepts the documents it can not check:
+ * <ul>
+ * <li>the documents whose encoding is not compatible with ASCII,</li>
+ * <li>the documents declaring entities or default attributes in their DTD,
+ * </li>
+ * <li>the expected values of the attributes when the document contains
+ * character references.</li>
+ * </ul>
+ * The filter is immutable and can be used by several threads.
+ *
+ * @since 6.0
+ */
+public class RuleFilter {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    // The literals accepting the document whatever the patterns
+    private static final String[] BYPASS_LITERALS = { "<!ENTITY", "<!ATTLIST" };
+
+    // The literal preventing to check the values of the attributes
+    private static final String CHARACTER_REFERENCE = "&#";
+
+    // The characters which may be written as a reference in a value
+    private static final String ESCAPED_CHARACTERS = "&<>\"'";
+
+    // The start of the declaration of a prefix
+    private static final String XMLNS_PREFIX = "xmlns:";
+
+    // True if the patterns can not all be checked
+    private final boolean acceptAll;
+
+    // The literals searched, by id
+    private final List<String> literals = new ArrayList<String>();
+
+    private final int bypassStart;
+
+    private final int characterReference;
+
+    // The number of patterns given to the filter, including the null ones
+    private final int nbPatterns;
+
+    // For each pattern checked, its index in the patterns given to the filter
+    private final int[] patternIndexes;
+
+    // For each pattern checked, true if it may select any element
+    private final boolean[] unchecked;
+
+    // For each pattern checked, the ids of its names and of its values
+    private final int[][] names;
+
+    private final int[][] values;
+
+    // For each pattern checked, the ids of the literals declaring its
+    // namespace, one of them is enough
+    private final int[][] namespaces;
+
+    // For each literal, the patterns using it
+    private final int[][] literalPatterns;
+
+    // The class of each byte, the bytes not used by the literals share the
+    // class 0
+    private final int[] classes = new int[256];
+
+    private final int nbClasses;
+
+    // The transitions of the automaton, by state and class of byte
+    private final int[] transitions;
+
+    // The literals found when reaching each state, null if there is none
+    private final int[][] outputs;
+
+    /**
+     * @param patterns The patterns to check, the null elements are ignored.
+     * @param acceptAll True if some nodes are selected by other means than
+     *            the patterns, the filter then accepts all the documents.
+     */
+    public RuleFilter(RulePattern[] patterns, boolean acceptAll) {
+        boolean anyUnchecked = acceptAll;
+        nbPatterns = patterns.length;
+        Map<String, Integer> ids = new LinkedHashMap<String, Integer>();
+        List<Integer> listIndexes = new ArrayList<Integer>();
+        List<Boolean> listUnchecked = new ArrayList<Boolean>();
+        List<int[]> listNames = new ArrayList<int[]>();
+        List<int[]> listValues = new ArrayList<int[]>();
+        List<int[]> listNamespaces = new ArrayList<int[]>();
+        for (int i = 0; i < patterns.length; i++) {
+            RulePattern pattern = patterns[i];
+            if (pattern == null) {
+                continue;
+            }
+            List<String> patternNames = new ArrayList<String>();
+            List<String> patternValues = new ArrayList<String>();
+            if (pattern.getName() != null) {
+                patternNames.add(pattern.getName());
+            }
+            for (RulePattern.Predicate predicate : pattern.getPredicates()) {
+                if (predicate.absent || predicate.children) {
+                    continue;
+                }
+                patternNames.add(predicate.attributeName);
+                if (isLiteral(predicate.value)) {
+                    patternValues.add(predicate.value);
+                }
+            }
+            List<String> patternNamespaces = new ArrayList<String>();
+            String uri = pattern.getDefaultNamespaceURI();
+            if (!pattern.isAttribute() && isLiteral(uri)) {
+                patternNamespaces.add(XMLNS_PREFIX + pattern.getPrefix());
+                patternNamespaces.add(uri);
+            }
+            boolean patternUnchecked = patternNames.isEmpty()
+                    && patternNamespaces.isEmpty();
+            if (patternUnchecked) {
+                // Any element may be selected
+                anyUnchecked = true;
+            }
+            listIndexes.add(Integer.valueOf(i));
+            listUnchecked.add(Boolean.valueOf(patternUnchecked));
+            listNames.add(getIds(ids, patternNames));
+            listValues.add(getIds(ids, patternValues));
+            listNamespaces.add(getIds(ids, patternNamespaces));
+        }
+        this.acceptAll = anyUnchecked;
+        patternIndexes = toArray(listIndexes);
+        unchecked = new boolean[listUnchecked.size()];
+        for (int i = 0; i < unchecked.length; i++) {
+            unchecked[i] = listUnchecked.get(i).booleanValue();
+        }
+        names = listNames.toArray(new int[listNames.size()][]);
+        values = listValues.toArray(new int[listValues.size()][]);
+        namespaces = listNamespaces.toArray(new int[listNamespaces.size()][]);
+
+        literals.addAll(ids.keySet());
+        bypassStart = literals.size();
+        literals.addAll(Arrays.asList(BYPASS_LITERALS));
+        characterReference = literals.size();
+        literals.add(CHARACTER_REFERENCE);
+
+        literalPatterns = new int[literals.size()][];
+        for (int id = 0; id < literalPatterns.length; id++) {
+            List<Integer> listPatterns = new ArrayList<Integer>();
+            for (int i = 0; i < names.length; i++) {
+                boolean referenced = values[i].length > 0
+                        || namespaces[i].length > 0;
+                if (contains(names[i], id) || contains(values[i], id)
+                        || contains(namespaces[i], id)
+                        || (id == characterReference && referenced)) {
+                    listPatterns.add(Integer.valueOf(i));
+                }
+            }
+            literalPatterns[id] = toArray(listPatterns);
+        }
+
+        // Build the trie of the literals
+        int nbUsed = 1;
+        for (String literal : literals) {
+            for (byte b : literal.getBytes(US_ASCII)) {
+                if (classes[b & 0xFF] == 0) {
+                    classes[b & 0xFF] = nbUsed++;
+                }
+            }
+        }
+        nbClasses = nbUsed;
+        List<int[]> trie = new ArrayList<int[]>();
+        List<List<Integer>> listOutputs = new ArrayList<List<Integer>>();
+        trie.add(newState());
+        listOutputs.add(new ArrayList<Integer>());
+        for (int id = 0; id < literals.size(); id++) {
+            int state = 0;
+            for (byte b : literals.get(id).getBytes(US_ASCII)) {
+                int c = classes[b & 0xFF];
+                if (trie.get(state)[c] < 0) {
+                    trie.get(state)[c] = trie.size();
+                    trie.add(newState());
+                    listOutputs.add(new ArrayList<Integer>());
+                }
+                state = trie.get(state)[c];
+            }
+            listOutputs.get(state).add(Integer.valueOf(id));
+        }
+
+        // Complete the transitions with the failure links, in breadth first
+        // order so the link of a state is complete before its children
+        transitions = new int[trie.size() * nbClasses];
+        int[] failures = new int[trie.size()];
+        Queue<Integer> queue = new ArrayDeque<Integer>();
+        for (int c = 0; c < nbClasses; c++) {
+            int next = trie.get(0)[c];
+            transitions[c] = next < 0 ? 0 : next;
+            if (next > 0) {
+                queue.add(Integer.valueOf(next));
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.remove().intValue();
+            listOutputs.get(state).addAll(listOutputs.get(failures[state]));
+            for (int c = 0; c < nbClasses; c++) {
+                int next = trie.get(state)[c];
+                int fallback = transitions[failures[state] * nbClasses + c];
+                if (next < 0) {
+                    transitions[state * nbClasses + c] = fallback;
+                } else {
+                    transitions[state * nbClasses + c] = next;
+                    failures[next] = fallback;
+                    queue.add(Integer.valueOf(next));
+                }
+            }
+        }
+        outputs = new int[trie.size()][];
+        for (int state = 0; state < outputs.length; state++) {
+            List<Integer> stateOutputs = listOutputs.get(state);
+            outputs[state] = stateOutputs.isEmpty() ? null
+                    : toArray(stateOutputs);
+        }
+    }
+
+    /**
+     * Returns true if the document may contain a node selected by one of the
+     * patterns, false if it can not contain any.
+     *
+     * @param content The content of the document.
+     */
+    public boolean mayMatch(byte[] content) {
+        if (acceptAll || !isAsciiCompatible(content)) {
+            return true;
+        }
+        boolean[] found = new boolean[literals.size()];
+        int state = 0;
+        for (int i = 0; i < content.length; i++) {
+            state = transitions[state * nbClasses + classes[content[i] & 0xFF]];
+            int[] ids = outputs[state];
+            if (ids == null) {
+                continue;
+            }
+            for (int id : ids) {
+                if (found[id]) {
+                    continue;
+                }
+                found[id] = true;
+                if (id >= bypassStart && id < characterReference) {
+                    return true;
+                }
+                for (int pattern : literalPatterns[id]) {
+                    if (isFound(pattern, found)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check which patterns may select a node of the document. Unlike
+     * {@link #mayMatch(byte[])}, the whole document is read.
+     *
+     * @param content The content of the document.
+     * @return For each pattern given to the filter, true if it may select a
+     *         node, false if it can not select any or if it is null. Null if
+     *         the document can not be checked, all the patterns may then
+     *         select a node.
+     */
+    public boolean[] getCandidates(byte[] content) {
+        if (!isAsciiCompatible(content)) {
+            return null;
+        }
+        boolean[] found = new boolean[literals.size()];
+        int state = 0;
+        for (int i = 0; i < content.length; i++) {
+            state = transitions[state * nbClasses + classes[content[i] & 0xFF]];
+            int[] ids = outputs[state];
+            if (ids == null) {
+                continue;
+            }
+            for (int id : ids) {
+                if (id >= bypassStart && id < characterReference) {
+                    return null;
+                }
+                found[id] = true;
+            }
+        }
+        boolean[] candidates = new boolean[nbPatterns];
+        for (int pattern = 0; pattern < names.length; pattern++) {
+            candidates[patternIndexes[pattern]] = unchecked[pattern]
+                    || isFound(pattern, found);
+        }
+        return candidates;
+    }
+
+    private boolean isFound(int pattern, boolean[] found) {
+        for (int id : names[pattern]) {
+            if (!found[id]) {
+                return false;
+            }
+        }
+        if (found[characterReference]) {
+            // The values and the namespaces may be written with references
+            return true;
+        }
+        for (int id : values[pattern]) {
+            if (!found[id]) {
+                return false;
+            }
+        }
+        if (namespaces[pattern].length == 0) {
+            return true;
+        }
+        for (int id : namespaces[pattern]) {
+            if (found[id]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the ASCII characters of the document are written with
+     * their ASCII bytes, as in UTF-8 or ISO-8859-1.
+     */
+    private static boolean isAsciiCompatible(byte[] content) {
+        if (content.length >= 2) {
+            int first = content[0] & 0xFF;
+            int second = content[1] & 0xFF;
+            // UTF-16 byte order marks
+            if ((first == 0xFE && second == 0xFF)
+                    || (first == 0xFF && second == 0xFE)) {
+                return false;
+            }
+        }
+        // "<?xm" in EBCDIC
+        if (content.length >= 4 && (content[0] & 0xFF) == 0x4C
+                && (content[1] & 0xFF) == 0x6F && (content[2] & 0xFF) == 0xA7
+                && (content[3] & 0xFF) == 0x94) {
+            return false;
+        }
+        // UTF-16 or UTF-32 without byte order mark
+        for (int i = 0; i < Math.min(4, content.length); i++) {
+            if (content[i] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if an expected value is always written as is in the
+     * document, without character references.
+     */
+    private static boolean isLiteral(String value) {
+        if (value == null || value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            // The white spaces of the values are normalized by the parser
+            if (c <= ' ' || c > '~' || ESCAPED_CHARACTERS.indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] getIds(Map<String, Integer> ids,
+            List<String> listLiterals) {
+        int[] result = new int[listLiterals.size()];
+        for (int i = 0; i < result.length; i++) {
+            String literal = listLiterals.get(i);
+            Integer id = ids.get(literal);
+            if (id == null) {
+                id = Integer.valueOf(ids.size());
+                ids.put(literal, id);
+            }
+            result[i] = id.intValue();
+        }
+        return result;
+    }
+
+    private int[] newState() {
+        int[] state = new int[nbClasses];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    private static boolean contains(int[] array, int value) {
+        for (int element : array) {
+            if (element == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i).intValue();
+        }
+        return result;
+    }
+}
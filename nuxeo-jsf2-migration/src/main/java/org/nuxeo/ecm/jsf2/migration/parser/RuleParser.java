@@ -16,13 +16,21 @@
  */
 package org.nuxeo.ecm.jsf2.migration.parser;
 
+import java.util.List;
+
 import org.dom4j.Document;
-import org.nuxeo.ecm.jsf2.migration.enumeration.EnumTypeMigration;
+import org.dom4j.Node;
 import org.nuxeo.ecm.jsf2.migration.report.FileReport;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRule;
 
 /**
  * Interface for all rule parser used to analyze a file for the migration to
  * jsf2.
+ * <p>
+ * A parser is initialized once for a rule and then used to analyze many
+ * files, possibly concurrently: the state related to a file is returned by
+ * {@link #parse(Document, FileReport)} and given back to
+ * {@link #migrate(Document, List)}.
  *
  * @since 5.9.6
  */
@@ -35,21 +43,26 @@ public interface RuleParser {
      * @param rule
      * @param doMigration
      */
-    public void init(EnumTypeMigration rule, boolean doMigration);
+    public void init(MigrationRule rule, boolean doMigration);
 
     /**
-     * Apply the rule to the file and generate a FileReport object containing
-     * the result;
+     * Apply the rule to the file and fill the FileReport object with the
+     * result.
      *
      * @param input The parsed document.
      * @param report The FileReport file.
+     * @return The nodes of the document matching the rule.
      */
-    public void parse(Document input, FileReport report) throws Exception;
+    public List<Node> parse(Document input, FileReport report)
+            throws Exception;
 
     /**
      * Do the JSF 2 migration in the DOM of the file.
      *
      * @param input The DOM of the file to migrate.
+     * @param listElementsToMigrate The nodes returned by the parse of the
+     *            document.
      */
-    public void migrate(Document input) throws Exception;
+    public void migrate(Document input, List<Node> listElementsToMigrate)
+            throws Exception;
 }
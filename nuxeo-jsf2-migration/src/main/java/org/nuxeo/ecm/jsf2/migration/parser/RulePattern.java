@@ -0,0 +1,360 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.dom4j.Attribute;
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.nuxeo.ecm.jsf2.migration.enumeration.EnumPrefixes;
+import org.xml.sax.Attributes;
+
+/**
+ * Compiled form of the simple XPath expressions used by most of the rules,
+ * which can be evaluated on each node during a single walk of the document
+ * instead of a full XPath evaluation. The supported expressions are:
+ * <ul>
+ * <li>{@code //@name} : the attributes with the given name,</li>
+ * <li>{@code //prefix:name}, {@code //name}, {@code //prefix:*} or
+ * {@code //*}, optionally followed by predicates joined by {@code and}:
+ * {@code [@name]}, {@code [not(@name)]}, {@code [@name='value']} or
+ * {@code [count(*) > 0]}.</li>
+ * </ul>
+ * The patterns can be evaluated on a DOM or on the events of a SAX parser.
+ *
+ * @since 6.0
+ */
+public final class RulePattern {
+
+    private static final String NAME = "[A-Za-z_][A-Za-z0-9_.-]*";
+
+    private static final Pattern PATTERN_ATTRIBUTE = Pattern.compile("//@("
+            + NAME + ")");
+
+    private static final Pattern PATTERN_ELEMENT = Pattern.compile(
+            "//(\\*|(?:(" + NAME + "):)?(" + NAME + "|\\*))(?:\\[(.+)\\])?");
+
+    private static final Pattern PATTERN_AND = Pattern.compile("\\s+and\\s+");
+
+    private static final Pattern PATTERN_HAS_ATTRIBUTE = Pattern.compile("@("
+            + NAME + ")");
+
+    private static final Pattern PATTERN_NOT_ATTRIBUTE = Pattern.compile("not\\(\\s*@("
+            + NAME + ")\\s*\\)");
+
+    private static final Pattern PATTERN_ATTRIBUTE_VALUE = Pattern.compile("@("
+            + NAME + ")\\s*=\\s*(?:'([^']*)'|\"([^\"]*)\")");
+
+    private static final Pattern PATTERN_HAS_CHILDREN = Pattern.compile("count\\(\\s*\\*\\s*\\)\\s*>\\s*0|\\*");
+
+    /**
+     * Condition on an attribute or on the children of the element.
+     */
+    static final class Predicate {
+
+        final String attributeName;
+
+        // The expected value, null if only the presence is checked
+        final String value;
+
+        // True if the attribute must not be present
+        final boolean absent;
+
+        // True if the condition is the presence of child elements
+        final boolean children;
+
+        Predicate(String attributeName, String value, boolean absent,
+                boolean children) {
+            this.attributeName = attributeName;
+            this.value = value;
+            this.absent = absent;
+            this.children = children;
+        }
+
+        boolean matches(Element element) {
+            if (children) {
+                return hasChildElement(element);
+            }
+            Attribute attribute = getAttribute(element, attributeName);
+            if (absent) {
+                return attribute == null;
+            }
+            return attribute != null
+                    && (value == null || value.equals(attribute.getValue()));
+        }
+
+        boolean matches(Attributes attributes) {
+            if (children) {
+                // Checked at the end of the element
+                return true;
+            }
+            int index = attributes.getIndex("", attributeName);
+            if (absent) {
+                return index < 0;
+            }
+            return index >= 0
+                    && (value == null || value.equals(attributes.getValue(index)));
+        }
+    }
+
+    private final String xpath;
+
+    private final boolean attribute;
+
+    private final String prefix;
+
+    private final EnumPrefixes enumPrefix;
+
+    private final String name;
+
+    private final List<Predicate> listPredicates;
+
+    private RulePattern(String xpath, boolean attribute, String prefix,
+            String name, List<Predicate> listPredicates) {
+        this.xpath = xpath;
+        this.attribute = attribute;
+        this.prefix = prefix;
+        enumPrefix = prefix != null ? EnumPrefixes.getPrefix(prefix) : null;
+        this.name = name;
+        this.listPredicates = Collections.unmodifiableList(listPredicates);
+    }
+
+    /**
+     * Compile an XPath expression.
+     *
+     * @param xpath The XPath expression of the rule.
+     * @return The compiled pattern or null if the expression is not
+     *         supported and must be evaluated as an XPath expression.
+     */
+    public static RulePattern compile(String xpath) {
+        if (StringUtils.isEmpty(xpath)) {
+            return null;
+        }
+        String expr = xpath.trim();
+        Matcher matcher = PATTERN_ATTRIBUTE.matcher(expr);
+        if (matcher.matches()) {
+            return new RulePattern(xpath, true, null, matcher.group(1),
+                    new ArrayList<Predicate>());
+        }
+        matcher = PATTERN_ELEMENT.matcher(expr);
+        if (!matcher.matches()) {
+            return null;
+        }
+        String prefix = matcher.group(2);
+        // The unknown prefixes are reported by the XPath evaluation
+        if (prefix != null
+                && EnumPrefixes.getPrefix(prefix) == EnumPrefixes.UNKNOWN) {
+            return null;
+        }
+        String name = "*".equals(matcher.group(1))
+                || "*".equals(matcher.group(3)) ? null : matcher.group(3);
+        List<Predicate> listPredicates = new ArrayList<Predicate>();
+        if (matcher.group(4) != null) {
+            for (String condition : PATTERN_AND.split(matcher.group(4).trim())) {
+                Predicate predicate = compilePredicate(condition.trim());
+                if (predicate == null) {
+                    return null;
+                }
+                listPredicates.add(predicate);
+            }
+        }
+        return new RulePattern(xpath, false, prefix, name, listPredicates);
+    }
+
+    private static Predicate compilePredicate(String condition) {
+        Matcher matcher = PATTERN_HAS_ATTRIBUTE.matcher(condition);
+        if (matcher.matches()) {
+            return new Predicate(matcher.group(1), null, false, false);
+        }
+        matcher = PATTERN_NOT_ATTRIBUTE.matcher(condition);
+        if (matcher.matches()) {
+            return new Predicate(matcher.group(1), null, true, false);
+        }
+        if (PATTERN_HAS_CHILDREN.matcher(condition).matches()) {
+            return new Predicate(null, null, false, true);
+        }
+        matcher = PATTERN_ATTRIBUTE_VALUE.matcher(condition);
+        if (matcher.matches()) {
+            String value = matcher.group(2) != null ? matcher.group(2)
+                    : matcher.group(3);
+            return new Predicate(matcher.group(1), value, false, false);
+        }
+        return null;
+    }
+
+    public String getXPath() {
+        return xpath;
+    }
+
+    /**
+     * Returns true if the pattern selects attributes, false if it selects
+     * elements.
+     */
+    public boolean isAttribute() {
+        return attribute;
+    }
+
+    /**
+     * Get the prefix of the elements selected, null if the elements are not
+     * in a namespace or for any element.
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Get the URI of the namespace of the elements selected when the prefix
+     * is not declared by the root element, null if the pattern has no prefix.
+     *
+     * @see #getNamespaceURI(Element)
+     */
+    public String getDefaultNamespaceURI() {
+        return enumPrefix != null ? enumPrefix.getNamespace() : null;
+    }
+
+    /**
+     * Get the local name of the elements or attributes selected, null for any
+     * element.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the name of an attribute which must be present on the elements
+     * selected, null if there is none.
+     */
+    public String getRequiredAttribute() {
+        for (Predicate predicate : listPredicates) {
+            if (!predicate.absent && !predicate.children) {
+                return predicate.attributeName;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the conditions on the attributes and the children of the elements
+     * selected.
+     */
+    List<Predicate> getPredicates() {
+        return listPredicates;
+    }
+
+    /**
+     * Returns true if the elements selected must have child elements. When
+     * the document is read as a stream, this condition is only known at the
+     * end of the element.
+     */
+    public boolean isChildrenRequired() {
+        for (Predicate predicate : listPredicates) {
+            if (predicate.children) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the URI of the namespace of the elements selected in a document,
+     * the empty string if the elements are not in a namespace. As for the
+     * XPath evaluation, if the prefix is not declared by the root element, the
+     * namespace defined in {@link EnumPrefixes} is used.
+     *
+     * @param root The root element of the document.
+     */
+    public String getNamespaceURI(Element root) {
+        if (enumPrefix == null) {
+            return "";
+        }
+        Namespace namespace = root.getNamespaceForPrefix(prefix);
+        return namespace != null ? namespace.getURI()
+                : enumPrefix.getNamespace();
+    }
+
+    /**
+     * Get the URI of the namespace of the elements selected in a document
+     * read as a stream.
+     *
+     * @param rootNamespaces The URI of the namespaces declared by the root
+     *            element, by prefix.
+     * @see #getNamespaceURI(Element)
+     */
+    public String getNamespaceURI(Map<String, String> rootNamespaces) {
+        if (enumPrefix == null) {
+            return "";
+        }
+        String uri = rootNamespaces.get(prefix);
+        return uri != null ? uri : enumPrefix.getNamespace();
+    }
+
+    /**
+     * Check the predicates of the pattern on an element.
+     */
+    public boolean matchesPredicates(Element element) {
+        for (Predicate predicate : listPredicates) {
+            if (!predicate.matches(element)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check the predicates of the pattern on the attributes of an element
+     * read as a stream. The presence of child elements is not checked.
+     */
+    public boolean matchesPredicates(Attributes attributes) {
+        for (Predicate predicate : listPredicates) {
+            if (!predicate.matches(attributes)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasChildElement(Element element) {
+        for (int i = 0, count = element.nodeCount(); i < count; i++) {
+            if (element.node(i) instanceof Element) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the attribute of an element with the given name and no namespace,
+     * as selected by {@code @name} in an XPath expression.
+     */
+    static Attribute getAttribute(Element element, String name) {
+        for (int i = 0, count = element.attributeCount(); i < count; i++) {
+            Attribute attribute = element.attribute(i);
+            if (name.equals(attribute.getName())
+                    && StringUtils.isEmpty(attribute.getNamespaceURI())) {
+                return attribute;
+            }
+        }
+        return null;
+    }
+}
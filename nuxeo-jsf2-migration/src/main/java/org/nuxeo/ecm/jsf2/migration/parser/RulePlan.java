@@ -0,0 +1,85 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.parser;
+
+/**
+ * The rules of a {@link RuleEngine} worth applying to a document. Before the
+ * document is parsed, the {@link RuleFilter} checks on its bytes which
+ * patterns may select a node: the rules whose pattern can not, for instance
+ * because the document declares neither the prefix nor the namespace of the
+ * elements of the rule, are left out of the walk of the document and are
+ * not called at all.
+ * <p>
+ * The rules evaluated as XPath expressions and the checks of the namespaces
+ * are always applied. A plan is created for each document by
+ * {@link RuleEngine#plan(byte[])} and is immutable.
+ *
+ * @since 6.0
+ */
+public final class RulePlan {
+
+    // For each rule, true if it is applied, null if all the rules are applied
+    private final boolean[] candidates;
+
+    // True if a rule other than the check of the namespaces may report
+    // something
+    private final boolean mayMatch;
+
+    RulePlan(boolean[] candidates, boolean mayMatch) {
+        this.candidates = candidates;
+        this.mayMatch = mayMatch;
+    }
+
+    /**
+     * Returns true if a rule is applied to the document.
+     *
+     * @param index The index of the rule in {@link RuleEngine#getRules()}.
+     */
+    public boolean isCandidate(int index) {
+        return candidates == null || candidates[index];
+    }
+
+    /**
+     * Returns true if a rule other than the check of the namespaces may
+     * report something on the document.
+     */
+    public boolean mayMatch() {
+        return mayMatch;
+    }
+
+    /**
+     * Get the number of rules left out for the document.
+     */
+    public int getNbSkipped() {
+        int nbSkipped = 0;
+        if (candidates != null) {
+            for (boolean candidate : candidates) {
+                if (!candidate) {
+                    nbSkipped++;
+                }
+            }
+        }
+        return nbSkipped;
+    }
+
+    /**
+     * Get the rules applied, null if all the rules are applied.
+     */
+    boolean[] getCandidates() {
+        return candidates;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.parser;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * SAX handler counting the nodes selected by the patterns of a
+ * {@link DocumentMatcher}, to analyze a document without building its DOM.
+ * The memory used does not depend on the size of the document, only on the
+ * depth of its elements.
+ * <p>
+ * The handler can measure the time spent evaluating each pattern. The time
+ * between two evaluations, walking the attributes of an element, is added
+ * to the next pattern evaluated.
+ * <p>
+ * A new handler must be used for each document.
+ *
+ * @since 6.0
+ */
+public class StreamingMatcher extends DefaultHandler {
+
+    private final DocumentMatcher matcher;
+
+    // For each pattern, true if it is evaluated, null if all the patterns
+    // are evaluated
+    private final boolean[] candidates;
+
+    // The number of nodes selected by each pattern
+    private final int[] counts;
+
+    // The time spent evaluating each pattern, in nanoseconds, null if the
+    // time is not measured
+    private final long[] nanos;
+
+    // The namespaces declared by the root element, by prefix
+    private final Map<String, String> rootNamespaces = new HashMap<String, String>();
+
+    // The namespaces of the patterns, bound when the root element starts
+    private String[] namespaceURIs;
+
+    // Depth of the current element, -1 outside of the root element
+    private int depth = -1;
+
+    // For each element of the current path, true if it has child elements
+    private boolean[] hasChildren = new boolean[16];
+
+    // For each element of the current path, the index in 'pendings' of its
+    // first pattern waiting for the end of the element
+    private int[] pendingStarts = new int[16];
+
+    // The patterns only selecting the elements with children, waiting for the
+    // end of the elements of the current path
+    private int[] pendings = new int[16];
+
+    private int nbPendings;
+
+    StreamingMatcher(DocumentMatcher matcher, boolean[] candidates,
+            boolean measured) {
+        this.matcher = matcher;
+        this.candidates = candidates;
+        counts = new int[matcher.size()];
+        nanos = measured ? new long[matcher.size()] : null;
+    }
+
+    /**
+     * Get the number of nodes selected by a pattern.
+     *
+     * @param index The index of the pattern in the matcher.
+     */
+    public int getCount(int index) {
+        return counts[index];
+    }
+
+    /**
+     * Returns true if a pattern is evaluated on the document.
+     *
+     * @param index The index of the pattern in the matcher.
+     */
+    public boolean isEvaluated(int index) {
+        return matcher.getPattern(index) != null && isCandidate(index);
+    }
+
+    /**
+     * Get the time spent evaluating a pattern, in nanoseconds.
+     *
+     * @param index The index of the pattern in the matcher.
+     * @return The time or 0 if the time is not measured.
+     */
+    public long getNanos(int index) {
+        return nanos != null ? nanos[index] : 0;
+    }
+
+    /**
+     * Get the namespaces declared by the root element of the document.
+     *
+     * @return The URI of the namespaces, by prefix.
+     */
+    public Map<String, String> getRootNamespaces() {
+        return Collections.unmodifiableMap(rootNamespaces);
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) {
+        if (namespaceURIs == null) {
+            rootNamespaces.put(prefix, uri);
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName,
+            Attributes attributes) {
+        if (namespaceURIs == null) {
+            bindNamespaces();
+        }
+        if (depth >= 0) {
+            hasChildren[depth] = true;
+        }
+        depth++;
+        if (depth == hasChildren.length) {
+            hasChildren = grow(hasChildren);
+            pendingStarts = grow(pendingStarts);
+        }
+        hasChildren[depth] = false;
+        pendingStarts[depth] = nbPendings;
+
+        long start = time();
+        int[] indexes = matcher.getElementPatterns(localName);
+        if (indexes != null) {
+            for (int index : indexes) {
+                if (isCandidate(index) && namespaceURIs[index].equals(uri)) {
+                    matchElement(index, attributes);
+                    start = measure(index, start);
+                }
+            }
+        }
+        for (int index : matcher.getAnyElementPatterns()) {
+            if (isCandidate(index) && matchesNamespace(index, uri)) {
+                matchElement(index, attributes);
+                start = measure(index, start);
+            }
+        }
+        for (int i = 0, count = attributes.getLength(); i < count; i++) {
+            if (attributes.getURI(i).length() > 0) {
+                continue;
+            }
+            String attributeName = attributes.getLocalName(i);
+            indexes = matcher.getAttributePatterns(attributeName);
+            if (indexes != null) {
+                for (int index : indexes) {
+                    if (isCandidate(index)) {
+                        counts[index]++;
+                        start = measure(index, start);
+                    }
+                }
+            }
+            indexes = matcher.getElementPatternsByAttribute(attributeName);
+            if (indexes != null) {
+                for (int index : indexes) {
+                    if (isCandidate(index) && matchesNamespace(index, uri)) {
+                        matchElement(index, attributes);
+                        start = measure(index, start);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        // The patterns waiting for the end of the element are matching if the
+        // element has children
+        if (hasChildren[depth]) {
+            long start = time();
+            for (int i = pendingStarts[depth]; i < nbPendings; i++) {
+                counts[pendings[i]]++;
+                start = measure(pendings[i], start);
+            }
+        }
+        nbPendings = pendingStarts[depth];
+        depth--;
+    }
+
+    private long time() {
+        return nanos != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Add the time spent since the start of a measure to a pattern.
+     *
+     * @return The start of the next measure.
+     */
+    private long measure(int index, long start) {
+        if (nanos == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        nanos[index] += now - start;
+        return now;
+    }
+
+    private boolean isCandidate(int index) {
+        return candidates == null || candidates[index];
+    }
+
+    /**
+     * Returns true if an element is in the namespace of a pattern selecting
+     * any element, the patterns without prefix select the elements of all
+     * the namespaces.
+     */
+    private boolean matchesNamespace(int index, String uri) {
+        return matcher.getPattern(index).getPrefix() == null
+                || namespaceURIs[index].equals(uri);
+    }
+
+    private void matchElement(int index, Attributes attributes) {
+        RulePattern pattern = matcher.getPattern(index);
+        if (!pattern.matchesPredicates(attributes)) {
+            return;
+        }
+        if (pattern.isChildrenRequired()) {
+            if (nbPendings == pendings.length) {
+                pendings = grow(pendings);
+            }
+            pendings[nbPendings++] = index;
+        } else {
+            counts[index]++;
+        }
+    }
+
+    private void bindNamespaces() {
+        namespaceURIs = new String[matcher.size()];
+        for (int i = 0; i < namespaceURIs.length; i++) {
+            RulePattern pattern = matcher.getPattern(i);
+            if (pattern != null && !pattern.isAttribute()) {
+                namespaceURIs[i] = pattern.getNamespaceURI(rootNamespaces);
+            }
+        }
+    }
+
+    private static boolean[] grow(boolean[] array) {
+        boolean[] newArray = new boolean[array.length * 2];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] newArray = new int[array.length * 2];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.report;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.jsf2.migration.rules.CustomRule;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRule;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRules;
+
+/**
+ * Results of the analyze of the files, stored on disk to be reused by the
+ * next analyze of the project. A result is reused if the content of the file
+ * did not change, and the whole cache is ignored if the version of the tool
+ * or the rules applied changed.
+ * <p>
+ * The cache can be used by several threads. Only the results of the files
+ * analyzed during the run are saved, so the deleted files do not stay in the
+ * cache.
+ *
+ * @since 6.0
+ */
+public class AnalysisCache {
+
+    private static Log logger = LogFactory.getLog(AnalysisCache.class);
+
+    // Version of the format of the file
+    private static final int FORMAT_VERSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File cacheFile;
+
+    private final String version;
+
+    // The rules of the results
+    private final MigrationRules rules;
+
+    // The results read from the cache file, by path of the file
+    private final Map<String, Entry> previousEntries;
+
+    // The results of the files of the current run, by path of the file
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Result of the analyze of a file.
+     */
+    private static class Entry {
+
+        final String hash;
+
+        final FileReport fileReport;
+
+        Entry(String hash, FileReport fileReport) {
+            this.hash = hash;
+            this.fileReport = fileReport;
+        }
+    }
+
+    private AnalysisCache(File cacheFile, String version,
+            MigrationRules rules, Map<String, Entry> previousEntries) {
+        this.cacheFile = cacheFile;
+        this.version = version;
+        this.rules = rules;
+        this.previousEntries = previousEntries;
+    }
+
+    /**
+     * Load the cache from a file. If the file does not exist, can not be
+     * read or was written for another version, the cache is empty.
+     *
+     * @param cacheFile The file of the cache.
+     * @param version The version of the tool and of the rules, the results
+     *            of another version are not reused.
+     * @param rules The rules of the results.
+     * @return The cache.
+     */
+    public static AnalysisCache load(File cacheFile, String version,
+            MigrationRules rules) {
+        Map<String, Entry> previousEntries = Collections.emptyMap();
+        if (cacheFile.exists()) {
+            try {
+                previousEntries = read(cacheFile, version, rules);
+            } catch (IOException ex) {
+                logger.warn(String.format(
+                        "The cache '%s' can not be read, all the files are analyzed : %s",
+                        cacheFile.getName(), ex.getMessage()));
+            }
+        }
+        return new AnalysisCache(cacheFile, version, rules, previousEntries);
+    }
+
+    private static Map<String, Entry> read(File cacheFile, String version,
+            MigrationRules rules) throws IOException {
+        Map<String, Entry> result = new LinkedHashMap<String, Entry>();
+        long maxLength = cacheFile.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(cacheFile)));
+        try {
+            if (in.readInt() != FORMAT_VERSION
+                    || !version.equals(readString(in, maxLength))) {
+                return result;
+            }
+            int nbEntries = in.readInt();
+            for (int i = 0; i < nbEntries; i++) {
+                String path = readString(in, maxLength);
+                String hash = readString(in, maxLength);
+                FileReport fileReport = new FileReport(new File(path), rules);
+                int nbMigrations = in.readInt();
+                for (int j = 0; j < nbMigrations; j++) {
+                    String name = readString(in, maxLength);
+                    MigrationRule type = rules.valueOf(name);
+                    if (type == null) {
+                        // The rule pack of the rule is not loaded
+                        throw new IOException("Unknown rule in the cache : "
+                                + name);
+                    }
+                    int nbOccurrences = in.readInt();
+                    List<String> params = null;
+                    int nbParams = in.readInt();
+                    if (nbParams >= 0) {
+                        params = new ArrayList<String>(nbParams);
+                        for (int k = 0; k < nbParams; k++) {
+                            params.add(readString(in, maxLength));
+                        }
+                    }
+                    fileReport.putMigration(type, nbOccurrences, params);
+                }
+                result.put(path, new Entry(hash, fileReport));
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Invalid result in the cache", ex);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return result;
+    }
+
+    /**
+     * Read a string written by {@link #writeString(DataOutputStream, String)}.
+     *
+     * @param maxLength The length of the file, a longer string is invalid.
+     */
+    private static String readString(DataInputStream in, long maxLength)
+            throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid length of string in the cache : "
+                    + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Write a string as its length followed by its UTF-8 bytes, the length
+     * is -1 for null. Unlike {@link DataOutputStream#writeUTF(String)}, the
+     * length of the string is not limited to 64 KB.
+     */
+    private static void writeString(DataOutputStream out, String value)
+            throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Get the result of the previous analyze of a file.
+     *
+     * @param file The file to analyze.
+     * @param hash The hash of the content of the file, see
+     *            {@link #hash(byte[])}.
+     * @return A new report of the file or null if the file was not analyzed
+     *         or changed since the previous analyze.
+     */
+    public FileReport get(File file, String hash) {
+        String path = file.getAbsolutePath();
+        Entry entry = previousEntries.get(path);
+        if (entry == null || !entry.hash.equals(hash)) {
+            return null;
+        }
+        entries.put(path, entry);
+        return new FileReport(file, entry.fileReport);
+    }
+
+    /**
+     * Store the result of the analyze of a file.
+     *
+     * @param file The file analyzed.
+     * @param hash The hash of the content of the file, see
+     *            {@link #hash(byte[])}.
+     * @param fileReport The report of the file.
+     */
+    public void put(File file, String hash, FileReport fileReport) {
+        entries.put(file.getAbsolutePath(), new Entry(hash, new FileReport(
+                file, fileReport)));
+    }
+
+    /**
+     * Write the results of the files analyzed during the run in the cache
+     * file. The file is replaced only once completely written, and is
+     * unchanged if an error occurs.
+     */
+    public void save() throws IOException {
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                write(out);
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), cacheFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            // Nothing is left if the file was not moved
+            FileUtils.deleteQuietly(tmpFile);
+        }
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        writeString(out, version);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            writeString(out, mapEntry.getKey());
+            writeString(out, entry.hash);
+            out.writeInt(entry.fileReport.getNbMigrations());
+            for (MigrationRule type : rules.getRules()) {
+                int nbOccurrences = entry.fileReport.getNbOccurrences(type);
+                if (nbOccurrences == 0) {
+                    continue;
+                }
+                writeString(out, type.name());
+                out.writeInt(nbOccurrences);
+                List<String> params = entry.fileReport.getParams(type);
+                if (params == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(params.size());
+                    for (String param : params) {
+                        writeString(out, param);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the hash of the content of a file.
+     */
+    public static String hash(byte[] content) {
+        return toHex(newDigest().digest(content));
+    }
+
+    /**
+     * Compute the version of the cache, which changes with the version of the
+     * tool or when the definition of a rule changes.
+     *
+     * @param toolVersion The version of the tool.
+     * @param listRules The rules applied.
+     */
+    public static String getVersion(String toolVersion,
+            List<? extends MigrationRule> listRules) {
+        MessageDigest digest = newDigest();
+        for (MigrationRule rule : listRules) {
+            StringBuilder definition = new StringBuilder();
+            definition.append(rule.name()).append('\n');
+            definition.append(rule.getXPath()).append('\n');
+            definition.append(rule.isMigrationAuto()).append('\n');
+            definition.append(rule.getNewValue()).append('\n');
+            if (rule instanceof CustomRule) {
+                // The parser of the rules of the tool changes with the tool
+                definition.append(((CustomRule) rule).getParser().getName()).append(
+                        '\n');
+            }
+            digest.update(definition.toString().getBytes(UTF_8));
+        }
+        return toolVersion + "/" + toHex(digest.digest());
+    }
+
+    /**
+     * Compute the hash of the classes of the tool, used as its version when
+     * the tool has no version, as in a development build. The hash is the
+     * one of the jar or of the directory of classes containing a class.
+     *
+     * @param type A class of the tool.
+     * @return The hash or null if the classes can not be read.
+     */
+    public static String hashClasses(Class<?> type) {
+        CodeSource source = type.getProtectionDomain().getCodeSource();
+        if (source == null || source.getLocation() == null) {
+            return null;
+        }
+        try {
+            File location = new File(source.getLocation().toURI());
+            MessageDigest digest = newDigest();
+            if (location.isDirectory()) {
+                // The classes are sorted, the digest does not depend on the
+                // order of the files in the directories
+                List<File> listFiles = new ArrayList<File>(FileUtils.listFiles(
+                        location, new String[] { "class" }, true));
+                Collections.sort(listFiles);
+                for (File file : listFiles) {
+                    digest.update(file.getPath().substring(
+                            location.getPath().length()).getBytes(UTF_8));
+                    update(digest, file);
+                }
+            } else {
+                update(digest, location);
+            }
+            return toHex(digest.digest());
+        } catch (URISyntaxException | IllegalArgumentException
+                | IOException ex) {
+            logger.warn(String.format(
+                    "The classes of the tool can not be read : %s",
+                    ex.getMessage()));
+            return null;
+        }
+    }
+
+    private static void update(MessageDigest digest, File file)
+            throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.report;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRule;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRules;
+
+/**
+ * Time spent in each phase of the analyze of a run, in each rule, and by the
+ * slowest files. The durations are measured with {@link System#nanoTime()}
+ * and the distribution of the durations of each phase is kept in a
+ * {@link Histogram}.
+ * <p>
+ * When the metrics are disabled, the clock is not read and nothing is
+ * recorded, so the instrumented code can always use them. The durations are
+ * recorded by giving the start of the measure:
+ *
+ * <pre>
+ * long start = metrics.time();
+ * ...
+ * metrics.addPhase(Phase.PARSE, start);
+ * </pre>
+ *
+ * The metrics can be recorded by several threads, the durations of the
+ * phases are then the total of the threads.
+ *
+ * @since 6.0
+ */
+public class AnalysisMetrics {
+
+    // Number of slowest files kept
+    private static final int NB_SLOWEST_FILES = 10;
+
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private static final double BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    /**
+     * Metrics recording nothing, for the analyzes which are not measured.
+     */
+    public static final AnalysisMetrics DISABLED = new AnalysisMetrics(false,
+            MigrationRules.getDefault());
+
+    /**
+     * Phases of the analyze of a file.
+     */
+    public enum Phase {
+        // Reading of the content of the file
+        READ("read"),
+        // Check of the content before the parsing, see RuleFilter
+        FILTER("filter"),
+        // Parsing of the file, including the evaluation of the rules when the
+        // file is read as a stream
+        PARSE("parse"),
+        // Single walk of the DOM evaluating the simple rules
+        MATCH("match"),
+        // Analyze of the DOM by the parsers of the rules
+        RULES("rules"),
+        // Migration of the DOM by the parsers of the rules
+        MIGRATION("migration"),
+        // Writing of the migrated files
+        SERIALIZATION("serialization");
+
+        private final String label;
+
+        private Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * Duration of the analyze of a file.
+     */
+    public static class FileTime implements Comparable<FileTime> {
+
+        private final String path;
+
+        private final long nanos;
+
+        FileTime(String path, long nanos) {
+            this.path = path;
+            this.nanos = nanos;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Get the duration of the analyze of the file, in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public int compareTo(FileTime other) {
+            return nanos < other.nanos ? -1 : (nanos == other.nanos ? 0 : 1);
+        }
+    }
+
+    private final boolean enabled;
+
+    private final long start;
+
+    private volatile long end;
+
+    private final Histogram[] phases = new Histogram[Phase.values().length];
+
+    private final Histogram files = new Histogram();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    // The rules measured
+    private final MigrationRules rules;
+
+    // The duration and the number of calls of the parse and the migration of
+    // each rule, by ordinal
+    private final AtomicLongArray ruleParseNanos;
+
+    private final AtomicLongArray ruleParseCounts;
+
+    private final AtomicLongArray ruleMigrationNanos;
+
+    private final AtomicLongArray ruleMigrationCounts;
+
+    // The slowest files, the fastest first
+    private final PriorityQueue<FileTime> slowestFiles = new PriorityQueue<FileTime>();
+
+    // The duration of the fastest of the slowest files, to avoid locking for
+    // the faster files
+    private volatile long slowestThreshold;
+
+    /**
+     * @param enabled False if nothing is measured.
+     * @param rules The rules measured.
+     */
+    public AnalysisMetrics(boolean enabled, MigrationRules rules) {
+        this.enabled = enabled;
+        this.rules = rules;
+        ruleParseNanos = new AtomicLongArray(rules.size());
+        ruleParseCounts = new AtomicLongArray(rules.size());
+        ruleMigrationNanos = new AtomicLongArray(rules.size());
+        ruleMigrationCounts = new AtomicLongArray(rules.size());
+        start = enabled ? System.nanoTime() : 0;
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new Histogram();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Get the start of a measure.
+     *
+     * @return The current value of the clock, 0 if the metrics are disabled.
+     */
+    public long time() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the duration of a phase for a file.
+     *
+     * @param phase The phase.
+     * @param start The start of the measure, see {@link #time()}.
+     * @return The end of the measure, which can be the start of the next one.
+     */
+    public long addPhase(Phase phase, long start) {
+        if (!enabled) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        phases[phase.ordinal()].record(now - start);
+        return now;
+    }
+
+    /**
+     * Record the duration of the parse or of the migration of a file by a
+     * rule. The duration is added to the phase of the rules or of the
+     * migration.
+     *
+     * @param rule The rule.
+     * @param migration True for the migration, false for the parse.
+     * @param start The start of the measure, see {@link #time()}.
+     * @return The end of the measure, which can be the start of the next one.
+     */
+    public long addRule(MigrationRule rule, boolean migration, long start) {
+        if (!enabled) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long nanos = now - start;
+        // A rule of another set is only measured in its phase
+        int ordinal = rule.ordinal();
+        boolean known = rules.contains(rule);
+        if (migration) {
+            if (known) {
+                ruleMigrationNanos.addAndGet(ordinal, nanos);
+                ruleMigrationCounts.incrementAndGet(ordinal);
+            }
+            phases[Phase.MIGRATION.ordinal()].record(nanos);
+        } else {
+            if (known) {
+                ruleParseNanos.addAndGet(ordinal, nanos);
+                ruleParseCounts.incrementAndGet(ordinal);
+            }
+            phases[Phase.RULES.ordinal()].record(nanos);
+        }
+        return now;
+    }
+
+    /**
+     * Record the duration of the evaluation of a rule on a file read as a
+     * stream. The rule is evaluated while the file is parsed, so the
+     * duration is already in the phase of the parse.
+     *
+     * @param rule The rule.
+     * @param nanos The duration, in nanoseconds.
+     */
+    public void addStreamedRule(MigrationRule rule, long nanos) {
+        if (!enabled || !rules.contains(rule)) {
+            return;
+        }
+        ruleParseNanos.addAndGet(rule.ordinal(), nanos);
+        ruleParseCounts.incrementAndGet(rule.ordinal());
+    }
+
+    /**
+     * Record the whole duration of the processing of a file.
+     *
+     * @param file The file.
+     * @param size The size of the file, in bytes.
+     * @param nanos The duration, in nanoseconds.
+     */
+    public void addFile(File file, long size, long nanos) {
+        if (!enabled) {
+            return;
+        }
+        files.record(nanos);
+        bytes.addAndGet(size);
+        if (nanos <= slowestThreshold) {
+            return;
+        }
+        synchronized (slowestFiles) {
+            slowestFiles.add(new FileTime(file.getPath(), nanos));
+            if (slowestFiles.size() > NB_SLOWEST_FILES) {
+                slowestFiles.remove();
+                slowestThreshold = slowestFiles.peek().nanos;
+            }
+        }
+    }
+
+    /**
+     * Mark the end of the run, the throughput is computed until the end.
+     */
+    public void stop() {
+        if (enabled) {
+            end = System.nanoTime();
+        }
+    }
+
+    /**
+     * Get the distribution of the durations of a phase, in nanoseconds.
+     */
+    public Histogram getPhase(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    /**
+     * Get the distribution of the durations of the files, in nanoseconds.
+     */
+    public Histogram getFiles() {
+        return files;
+    }
+
+    /**
+     * Get the total number of bytes of the files.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Get the total duration of the parse of the files by a rule, in
+     * nanoseconds.
+     */
+    public long getRuleParseNanos(MigrationRule rule) {
+        return rules.contains(rule) ? ruleParseNanos.get(rule.ordinal())
+                : 0;
+    }
+
+    /**
+     * Get the total duration of the migration of the files by a rule, in
+     * nanoseconds.
+     */
+    public long getRuleMigrationNanos(MigrationRule rule) {
+        return rules.contains(rule) ? ruleMigrationNanos.get(rule.ordinal())
+                : 0;
+    }
+
+    /**
+     * Get the duration of the run, until the end or until now if the run is
+     * not ended, in nanoseconds.
+     */
+    public long getElapsedNanos() {
+        long stop = end != 0 ? end : System.nanoTime();
+        return enabled ? stop - start : 0;
+    }
+
+    /**
+     * Get the slowest files and their durations, the slowest first.
+     */
+    public List<FileTime> getSlowestFiles() {
+        List<FileTime> listFiles;
+        synchronized (slowestFiles) {
+            listFiles = new ArrayList<FileTime>(slowestFiles);
+        }
+        Collections.sort(listFiles, Collections.reverseOrder());
+        return listFiles;
+    }
+
+    /**
+     * Write the metrics section of the report.
+     *
+     * @param report The text output stream of the report to complete.
+     */
+    public void writeReport(PrintWriter report) {
+        double seconds = getElapsedNanos() / 1e9;
+        report.append("Metrics\n");
+        report.append("#######\n");
+        report.append(format(
+                "Files analyzed : %d (%.1f MB) in %.0f ms, %.1f files/s, %.2f MB/s\n",
+                files.getCount(), bytes.get() / BYTES_PER_MEGABYTE,
+                getElapsedNanos() / NANOS_PER_MILLI,
+                seconds > 0 ? files.getCount() / seconds : 0,
+                seconds > 0 ? bytes.get() / BYTES_PER_MEGABYTE / seconds : 0));
+        report.append("Phases (total of the threads) :\n");
+        for (Phase phase : Phase.values()) {
+            writeHistogram(report, phase.getLabel(), phases[phase.ordinal()]);
+        }
+        writeHistogram(report, "file", files);
+        report.append("Rules (parse / migration) :\n");
+        if (phases[Phase.RULES.ordinal()].getCount() == 0) {
+            // Without DOM, the rules are evaluated while the files are parsed
+            report.append(" * evaluated in the parse, included in its time\n");
+        }
+        for (MigrationRule type : rules.getRules()) {
+            long parseCount = ruleParseCounts.get(type.ordinal());
+            long migrationCount = ruleMigrationCounts.get(type.ordinal());
+            if (parseCount == 0 && migrationCount == 0) {
+                continue;
+            }
+            report.append(format(" * %s : %.1f ms / %.1f ms\n", type.name(),
+                    ruleParseNanos.get(type.ordinal()) / NANOS_PER_MILLI,
+                    ruleMigrationNanos.get(type.ordinal()) / NANOS_PER_MILLI));
+        }
+        report.append("Slowest files :\n");
+        for (FileTime fileTime : getSlowestFiles()) {
+            report.append(format(" * %.1f ms : %s\n", fileTime.getNanos()
+                    / NANOS_PER_MILLI, fileTime.getPath()));
+        }
+    }
+
+    private void writeHistogram(PrintWriter report, String label,
+            Histogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        report.append(format(
+                " * %s : %d in %.1f ms (p50 %.3f ms, p99 %.3f ms, max %.3f ms)\n",
+                label, histogram.getCount(), histogram.getTotal()
+                        / NANOS_PER_MILLI,
+                histogram.getValueAtPercentile(50) / NANOS_PER_MILLI,
+                histogram.getValueAtPercentile(99) / NANOS_PER_MILLI,
+                histogram.getMax() / NANOS_PER_MILLI));
+    }
+
+    /**
+     * Write the metrics as a JSON document. The durations are in
+     * nanoseconds.
+     *
+     * @param file The JSON file.
+     */
+    public void writeJson(File file) throws IOException {
+        long elapsed = getElapsedNanos();
+        double seconds = elapsed / 1e9;
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"files\": ").append(files.getCount()).append(",\n");
+        json.append("  \"bytes\": ").append(bytes.get()).append(",\n");
+        json.append("  \"elapsedNanos\": ").append(elapsed).append(",\n");
+        json.append(format("  \"filesPerSecond\": %.3f,\n",
+                seconds > 0 ? files.getCount() / seconds : 0));
+        json.append(format("  \"megabytesPerSecond\": %.3f,\n",
+                seconds > 0 ? bytes.get() / BYTES_PER_MEGABYTE / seconds : 0));
+        json.append("  \"phases\": {");
+        String separator = "\n";
+        for (Phase phase : Phase.values()) {
+            json.append(separator);
+            appendHistogram(json, phase.getLabel(), phases[phase.ordinal()]);
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+        json.append("  \"file\": ");
+        appendHistogramValues(json, files);
+        json.append(",\n");
+        json.append("  \"rules\": {");
+        separator = "\n";
+        for (MigrationRule type : rules.getRules()) {
+            int i = type.ordinal();
+            if (ruleParseCounts.get(i) == 0 && ruleMigrationCounts.get(i) == 0) {
+                continue;
+            }
+            json.append(separator);
+            json.append("    \"").append(type.name()).append("\": {");
+            json.append("\"parseCount\": ").append(ruleParseCounts.get(i));
+            json.append(", \"parseNanos\": ").append(ruleParseNanos.get(i));
+            json.append(", \"migrationCount\": ").append(
+                    ruleMigrationCounts.get(i));
+            json.append(", \"migrationNanos\": ").append(
+                    ruleMigrationNanos.get(i));
+            json.append('}');
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+        json.append("  \"slowestFiles\": [");
+        separator = "\n";
+        for (FileTime fileTime : getSlowestFiles()) {
+            json.append(separator);
+            json.append("    {\"path\": ");
+            appendString(json, fileTime.getPath());
+            json.append(", \"nanos\": ").append(fileTime.getNanos()).append(
+                    '}');
+            separator = ",\n";
+        }
+        json.append("\n  ]\n");
+        json.append("}\n");
+
+        PrintWriter writer = new PrintWriter(file, "UTF-8");
+        try {
+            writer.append(json);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void appendHistogram(StringBuilder json, String label,
+            Histogram histogram) {
+        json.append("    \"").append(label).append("\": ");
+        appendHistogramValues(json, histogram);
+    }
+
+    private static void appendHistogramValues(StringBuilder json,
+            Histogram histogram) {
+        json.append("{\"count\": ").append(histogram.getCount());
+        json.append(", \"totalNanos\": ").append(histogram.getTotal());
+        json.append(", \"p50Nanos\": ").append(
+                histogram.getValueAtPercentile(50));
+        json.append(", \"p90Nanos\": ").append(
+                histogram.getValueAtPercentile(90));
+        json.append(", \"p99Nanos\": ").append(
+                histogram.getValueAtPercentile(99));
+        json.append(", \"maxNanos\": ").append(histogram.getMax());
+        json.append('}');
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < ' ') {
+                json.append(String.format("\\u%04x", Integer.valueOf(c)));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    // The numbers are written in the same format whatever the locale
+    private static String format(String format, Object... args) {
+        return String.format(Locale.ROOT, format, args);
+    }
+}
@@ -17,14 +17,21 @@
 package org.nuxeo.ecm.jsf2.migration.report;
 
 import java.io.File;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.nuxeo.ecm.jsf2.migration.enumeration.EnumTypeMigration;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRule;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRules;
 
 /**
  * Object containing the data for the report after analyzing a file.
+ * <p>
+ * The number of occurrences and the parameters are stored in arrays indexed
+ * by the ordinal of the type of migration in the rules of the report (see
+ * {@link MigrationRules}), allocated only when something is reported. Most
+ * of the files have nothing to migrate, their report is only this object.
  *
  * @since 5.9.6
  */
@@ -32,14 +39,47 @@ public class FileReport {
 
     private File attachedFile;
 
-    private Map<EnumTypeMigration, Integer> listMigrations;
+    // The rules which can be reported
+    private final MigrationRules rules;
 
-    private Map<EnumTypeMigration, List<String>> listParams;
+    // Number of occurrences by ordinal of the type, null if nothing reported
+    private int[] occurrences;
 
+    // Parameters of the messages by ordinal of the type, null if nothing
+    // reported
+    private List<String>[] params;
+
+    // Number of types reported
+    private int nbMigrations;
+
+    /**
+     * Create a report for the rules of the tool and of the rule packs of the
+     * classpath.
+     */
     public FileReport(File attachedFile) {
+        this(attachedFile, MigrationRules.getDefault());
+    }
+
+    /**
+     * @param attachedFile The file analyzed.
+     * @param rules The rules which can be reported.
+     */
+    public FileReport(File attachedFile, MigrationRules rules) {
         this.attachedFile = attachedFile;
-        listMigrations = new HashMap<EnumTypeMigration, Integer>();
-        listParams = new HashMap<EnumTypeMigration, List<String>>();
+        this.rules = rules;
+    }
+
+    /**
+     * Create a report for a file with the result of another report.
+     */
+    FileReport(File attachedFile, FileReport source) {
+        this.attachedFile = attachedFile;
+        rules = source.rules;
+        if (source.nbMigrations > 0) {
+            occurrences = source.occurrences.clone();
+            params = source.params.clone();
+            nbMigrations = source.nbMigrations;
+        }
     }
 
     public File getAttachedFile() {
@@ -50,11 +90,101 @@ public class FileReport {
         this.attachedFile = attachedFile;
     }
 
-    public Map<EnumTypeMigration, Integer> getListMigrations() {
-        return listMigrations;
+    /**
+     * Report a type of migration for the file. A type already reported is
+     * replaced.
+     *
+     * @param type The type of migration, one of the rules of the report.
+     * @param nbOccurrences The number of occurrences found, greater than 0.
+     * @param listParams The parameters of the message of the report.
+     */
+    public void putMigration(MigrationRule type, int nbOccurrences,
+            List<String> listParams) {
+        if (nbOccurrences <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid number of occurrences for %s : %d", type,
+                    Integer.valueOf(nbOccurrences)));
+        }
+        if (!rules.contains(type)) {
+            throw new IllegalArgumentException(String.format(
+                    "The rule %s is not a rule of the report", type));
+        }
+        int ordinal = type.ordinal();
+        if (occurrences == null) {
+            occurrences = new int[rules.size()];
+            params = newParams(rules.size());
+        }
+        if (occurrences[ordinal] == 0) {
+            nbMigrations++;
+        }
+        occurrences[ordinal] = nbOccurrences;
+        params[ordinal] = listParams;
+    }
+
+    // A generic array can not be created, the lists are all List<String>
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static List<String>[] newParams(int length) {
+        return new List[length];
+    }
+
+    /**
+     * Get the number of occurrences of a type of migration, 0 if the type is
+     * not reported.
+     */
+    public int getNbOccurrences(MigrationRule type) {
+        return occurrences != null && rules.contains(type) ? occurrences[type.ordinal()]
+                : 0;
+    }
+
+    /**
+     * Get the parameters of the message of a type of migration, null if the
+     * type is not reported.
+     */
+    public List<String> getParams(MigrationRule type) {
+        return params != null && rules.contains(type) ? params[type.ordinal()]
+                : null;
+    }
+
+    /**
+     * Get the number of types of migration reported.
+     */
+    public int getNbMigrations() {
+        return nbMigrations;
+    }
+
+    /**
+     * Get the number of occurrences of the types of migration reported, in
+     * the order of the rules. The map is a read-only copy, the report is
+     * filled with {@link #putMigration(MigrationRule, int, List)}.
+     */
+    public Map<MigrationRule, Integer> getListMigrations() {
+        if (nbMigrations == 0) {
+            return Collections.emptyMap();
+        }
+        Map<MigrationRule, Integer> listMigrations = new LinkedHashMap<MigrationRule, Integer>();
+        for (int i = 0; i < occurrences.length; i++) {
+            if (occurrences[i] > 0) {
+                listMigrations.put(rules.get(i),
+                        Integer.valueOf(occurrences[i]));
+            }
+        }
+        return Collections.unmodifiableMap(listMigrations);
     }
 
-    public Map<EnumTypeMigration, List<String>> getListParams() {
-        return listParams;
+    /**
+     * Get the parameters of the types of migration reported, in the order of
+     * the rules. The map is a read-only copy.
+     */
+    public Map<MigrationRule, List<String>> getListParams() {
+        if (nbMigrations == 0) {
+            return Collections.emptyMap();
+        }
+        Map<MigrationRule, List<String>> listParams = new LinkedHashMap<MigrationRule, List<String>>();
+        for (int i = 0; i < occurrences.length; i++) {
+            if (occurrences[i] > 0 && params[i] != null) {
+                listParams.put(rules.get(i), params[i]);
+            }
+        }
+        return Collections.unmodifiableMap(listParams);
     }
 }
@@ -0,0 +1,128 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.report;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with a fixed relative precision, as done by
+ * HdrHistogram: the values are counted in buckets whose width doubles with
+ * each power of two, each power of two being divided in the same number of
+ * sub-buckets. The memory used does not depend on the number of values.
+ * <p>
+ * The values can be recorded by several threads without locking.
+ *
+ * @since 6.0
+ */
+public class Histogram {
+
+    // Number of bits of the sub-buckets, the precision is 1/2^(SUB_BITS-1)
+    private static final int SUB_BITS = 6;
+
+    private static final int HALF_SUB_BUCKETS = 1 << (SUB_BITS - 1);
+
+    private static final int NB_BUCKETS = (64 - SUB_BITS + 1)
+            * HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NB_BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value.
+     *
+     * @param value The value, the negative values are recorded as 0.
+     */
+    public void record(long value) {
+        long positive = Math.max(0, value);
+        counts.incrementAndGet(getIndex(positive));
+        count.incrementAndGet();
+        total.addAndGet(positive);
+        long currentMax = max.get();
+        while (positive > currentMax
+                && !max.compareAndSet(currentMax, positive)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Get the number of values recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the sum of the values recorded.
+     */
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * Get the highest value recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the value below which a percentage of the values are.
+     *
+     * @param percentile The percentage, between 0 and 100.
+     * @return The highest value of the bucket of the percentile, or 0 if no
+     *         value was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long nbValues = count.get();
+        if (nbValues == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * nbValues));
+        long seen = 0;
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(getHighestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int getIndex(long value) {
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        if (shift <= 0) {
+            return (int) value;
+        }
+        // The value is in [2^(SUB_BITS-1), 2^SUB_BITS) once shifted
+        return (shift << (SUB_BITS - 1)) + (int) (value >>> shift);
+    }
+
+    private static long getHighestValue(int index) {
+        if (index < 2 * HALF_SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >> (SUB_BITS - 1)) - 1;
+        long subBucket = index - (shift << (SUB_BITS - 1));
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
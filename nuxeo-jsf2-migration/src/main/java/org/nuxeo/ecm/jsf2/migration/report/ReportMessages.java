@@ -0,0 +1,143 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.report;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.MessageFormat;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.nuxeo.ecm.jsf2.migration.enumeration.EnumTypeMigration;
+
+/**
+ * Messages of the report, read from the file report.properties. The file is
+ * loaded once and the messages of each type of migration are parsed once.
+ * The messages of the rules of the rule packs are formatted by the rules
+ * themselves.
+ * <p>
+ * The messages can be formatted by several threads.
+ *
+ * @since 6.0
+ */
+public class ReportMessages {
+
+    private static final String NOTHING_MESSAGE = "file.migration.nothing.message";
+
+    private static final String SUFFIX_DETAILED_MESSAGE = ".detailed";
+
+    private static final String SUFFIX_SUMMARIZED_MESSAGE = ".summarized";
+
+    private final String nothingMessage;
+
+    // The messages by ordinal of the type of migration, null if missing
+    private final MessageFormat[] summarizedMessages;
+
+    private final MessageFormat[] detailedMessages;
+
+    /**
+     * Holder of the messages, loaded on the first use.
+     */
+    private static class Holder {
+
+        static final ReportMessages INSTANCE = load();
+    }
+
+    private ReportMessages(Properties reportProp) {
+        nothingMessage = reportProp.getProperty(NOTHING_MESSAGE);
+        EnumTypeMigration[] types = EnumTypeMigration.values();
+        summarizedMessages = new MessageFormat[types.length];
+        detailedMessages = new MessageFormat[types.length];
+        for (EnumTypeMigration type : types) {
+            String summarized = reportProp.getProperty(type.getKeyMessage()
+                    + SUFFIX_SUMMARIZED_MESSAGE);
+            String detailed = reportProp.getProperty(type.getKeyMessage()
+                    + SUFFIX_DETAILED_MESSAGE);
+            if (summarized != null) {
+                summarizedMessages[type.ordinal()] = new MessageFormat(
+                        summarized);
+            }
+            // The summarized message is used when there is no detailed one
+            detailedMessages[type.ordinal()] = detailed != null ? new MessageFormat(
+                    detailed) : summarizedMessages[type.ordinal()];
+        }
+    }
+
+    /**
+     * Get the messages of the report.
+     */
+    public static ReportMessages getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private static ReportMessages load() {
+        // Load the file containing the messages to display in the report
+        Properties reportProp = new Properties();
+        InputStream is = ReportMessages.class.getClassLoader().getResourceAsStream(
+                "report.properties");
+        try {
+            reportProp.load(is);
+        } catch (IOException ex) {
+            throw new IllegalStateException(
+                    "Can not read the messages of the report", ex);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        return new ReportMessages(reportProp);
+    }
+
+    /**
+     * Get the message displayed for a file with nothing to migrate.
+     */
+    public String getNothingMessage() {
+        return nothingMessage;
+    }
+
+    /**
+     * Format the message of the summary for a type of migration.
+     *
+     * @param type The type of migration.
+     * @param arguments The arguments of the message.
+     */
+    public String formatSummarized(EnumTypeMigration type,
+            Object... arguments) {
+        return format(summarizedMessages[type.ordinal()], type, arguments);
+    }
+
+    /**
+     * Format the message of the details of a file for a type of migration.
+     *
+     * @param type The type of migration.
+     * @param arguments The arguments of the message.
+     */
+    public String formatDetailed(EnumTypeMigration type, Object... arguments) {
+        return format(detailedMessages[type.ordinal()], type, arguments);
+    }
+
+    private static String format(MessageFormat message,
+            EnumTypeMigration type, Object[] arguments) {
+        if (message == null) {
+            throw new IllegalStateException(String.format(
+                    "No message in the report for %s", type));
+        }
+        // A MessageFormat can not be used by several threads at the same
+        // time
+        synchronized (message) {
+            return message.format(arguments);
+        }
+    }
+}
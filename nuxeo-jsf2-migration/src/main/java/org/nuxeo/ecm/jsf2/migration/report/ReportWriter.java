@@ -0,0 +1,385 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.report;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FilenameUtils;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRule;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRules;
+
+/**
+ * Write the report of the analyze of a project while the files are
+ * analyzed. The detailed section of each file is written to a temporary file
+ * as soon as the file is analyzed, and only the counters of the summary and
+ * the position of the sections are kept in memory. The report itself is
+ * written at the end, with the summary followed by the detailed sections in
+ * the order of the files.
+ * <p>
+ * The report of several projects only contains the summary of all the files
+ * and the summary of each project, the details being in the reports of the
+ * projects.
+ * <p>
+ * The methods can be called by several threads.
+ *
+ * @since 6.0
+ */
+public class ReportWriter implements Closeable {
+
+    // The report is written with the default encoding of the platform
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private final File report;
+
+    private final ReportMessages messages = ReportMessages.getInstance();
+
+    // The rules of the files reported, by ordinal
+    private final List<MigrationRule> rules;
+
+    // The number of occurrences of each type of migration, by ordinal
+    private final int[] occurrences;
+
+    private int nbFiles;
+
+    // The detailed sections of the files, in the order they are analyzed,
+    // null if the report has no details
+    private final File detailsFile;
+
+    private final OutputStream details;
+
+    private long detailsLength;
+
+    private final List<Section> listSections = new ArrayList<Section>();
+
+    // The reports of the projects, by name, for a report of several projects
+    private final Map<String, ReportWriter> projects = new LinkedHashMap<String, ReportWriter>();
+
+    // The metrics of the run, written after the summary if they are enabled
+    private AnalysisMetrics metrics = AnalysisMetrics.DISABLED;
+
+    /**
+     * Position of the detailed section of a file in the temporary file.
+     */
+    private static class Section implements Comparable<Section> {
+
+        final int index;
+
+        final String path;
+
+        final long offset;
+
+        final int length;
+
+        Section(int index, String path, long offset, int length) {
+            this.index = index;
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int compareTo(Section other) {
+            if (index != other.index) {
+                return index < other.index ? -1 : 1;
+            }
+            return path.compareTo(other.path);
+        }
+    }
+
+    /**
+     * @param report The report file which will contain the report.
+     * @param rules The rules of the reports of the files.
+     */
+    public ReportWriter(File report, MigrationRules rules) throws IOException {
+        this(report, rules, true);
+    }
+
+    /**
+     * @param report The report file which will contain the report.
+     * @param rules The rules of the reports of the files.
+     * @param withDetails True if the report contains the detailed section of
+     *            each file, false for the report of several projects.
+     */
+    public ReportWriter(File report, MigrationRules rules, boolean withDetails)
+            throws IOException {
+        this.report = report;
+        this.rules = rules.getRules();
+        occurrences = new int[this.rules.size()];
+        if (withDetails) {
+            File directory = report.getAbsoluteFile().getParentFile();
+            detailsFile = File.createTempFile(report.getName(), ".details",
+                    directory);
+            details = new BufferedOutputStream(new FileOutputStream(
+                    detailsFile));
+        } else {
+            detailsFile = null;
+            details = null;
+        }
+    }
+
+    /**
+     * Add a project to the report of several projects. The summary of the
+     * project is written after the summary of all the files.
+     *
+     * @param name The name of the project.
+     * @param projectWriter The writer of the report of the project.
+     */
+    public synchronized void addProject(String name,
+            ReportWriter projectWriter) {
+        projects.put(name, projectWriter);
+    }
+
+    /**
+     * Add the result of the analyze of a file to the report.
+     *
+     * @param index The position of the file in the report. The files with the
+     *            same position are sorted by path.
+     * @param fileReport The report of the file.
+     */
+    public synchronized void addFileReport(int index, FileReport fileReport)
+            throws IOException {
+        nbFiles++;
+        for (MigrationRule type : rules) {
+            occurrences[type.ordinal()] += fileReport.getNbOccurrences(type);
+        }
+
+        if (details == null) {
+            return;
+        }
+        byte[] section = generateDetailedSection(fileReport).getBytes(CHARSET);
+        details.write(section);
+        listSections.add(new Section(index,
+                fileReport.getAttachedFile().getPath(), detailsLength,
+                section.length));
+        detailsLength += section.length;
+    }
+
+    /**
+     * Set the metrics of the run. If they are enabled, they are written after
+     * the summary of the report and in a JSON file next to the report (see
+     * {@link #getMetricsFile()}).
+     */
+    public synchronized void setMetrics(AnalysisMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public synchronized AnalysisMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the JSON file of the metrics, named after the report.
+     */
+    public File getMetricsFile() {
+        return new File(report.getAbsoluteFile().getParentFile(),
+                FilenameUtils.getBaseName(report.getName()) + "-metrics.json");
+    }
+
+    /**
+     * Get the number of occurrences of a type of migration in the files
+     * added to the report.
+     */
+    public synchronized int getOccurrences(MigrationRule type) {
+        int ordinal = type.ordinal();
+        return ordinal >= 0 && ordinal < rules.size()
+                && rules.get(ordinal) == type ? occurrences[ordinal] : 0;
+    }
+
+    /**
+     * Get the number of files added to the report.
+     */
+    public synchronized int getNumberOfFiles() {
+        return nbFiles;
+    }
+
+    /**
+     * Write the report file, with the summary and the detailed sections of
+     * all the files added.
+     */
+    public synchronized void finish() throws IOException {
+        if (details != null) {
+            details.close();
+        }
+
+        // If the file does not exist, it is created
+        if (!report.exists()) {
+            report.createNewFile();
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                report));
+        RandomAccessFile detailsIn = null;
+        try {
+            PrintWriter printWriter = new PrintWriter(new OutputStreamWriter(
+                    out, CHARSET));
+            printWriter.append("##############################\n");
+            printWriter.append("# Migration report for JSF 2 #\n");
+            printWriter.append("##############################\n\n");
+            generateSummaryReport(printWriter);
+            if (metrics.isEnabled()) {
+                metrics.writeReport(printWriter);
+                printWriter.append("\n");
+                metrics.writeJson(getMetricsFile());
+            }
+            if (details == null) {
+                generateProjectsReport(printWriter);
+                printWriter.flush();
+                return;
+            }
+            printWriter.append("Details\n");
+            printWriter.append("#######");
+            printWriter.flush();
+
+            detailsIn = new RandomAccessFile(detailsFile, "r");
+
+            // Copy the detailed sections in the order of the files
+            Collections.sort(listSections);
+            byte[] buffer = new byte[8192];
+            for (Section section : listSections) {
+                if (buffer.length < section.length) {
+                    buffer = new byte[section.length];
+                }
+                detailsIn.seek(section.offset);
+                detailsIn.readFully(buffer, 0, section.length);
+                out.write(buffer, 0, section.length);
+            }
+        } finally {
+            if (detailsIn != null) {
+                detailsIn.close();
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Delete the temporary file of the detailed sections.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (details == null) {
+            return;
+        }
+        try {
+            details.close();
+        } finally {
+            detailsFile.delete();
+        }
+    }
+
+    /**
+     * Generate the summary part of the report.
+     *
+     * @param report The text output stream of the report to complete.
+     */
+    private void generateSummaryReport(PrintWriter report) {
+        report.append("Summary\n");
+        report.append("#######\n");
+        generateCounters(report, nbFiles, occurrences);
+        report.append("\n");
+    }
+
+    /**
+     * Generate the part of the report of several projects with the summary
+     * of each project.
+     *
+     * @param report The text output stream of the report to complete.
+     */
+    private void generateProjectsReport(PrintWriter report) {
+        report.append("Projects\n");
+        report.append("########\n");
+        for (Map.Entry<String, ReportWriter> project : projects.entrySet()) {
+            ReportWriter projectWriter = project.getValue();
+            int[] projectOccurrences = new int[rules.size()];
+            for (MigrationRule type : rules) {
+                projectOccurrences[type.ordinal()] = projectWriter.getOccurrences(type);
+            }
+            report.append('\n');
+            report.append(project.getKey());
+            report.append("\n-----------------------\n");
+            report.append("Report : " + projectWriter.report.getPath() + "\n");
+            generateCounters(report, projectWriter.getNumberOfFiles(),
+                    projectOccurrences);
+        }
+    }
+
+    /**
+     * Generate the number of files and the number of occurrences of each
+     * type of migration.
+     */
+    @SuppressWarnings("boxing")
+    private void generateCounters(PrintWriter report, int nbFiles,
+            int[] occurrences) {
+        report.append("Number of files analyzed : " + nbFiles + "\n");
+
+        for (MigrationRule type : rules) {
+            int occurence = occurrences[type.ordinal()];
+
+            // If the type of migration is present, it's added to the report
+            if (occurence > 0) {
+                report.append(" * [" + type.getSeverity() + "] ");
+                report.append(type.formatSummarized(occurence));
+                report.append('\n');
+            }
+        }
+    }
+
+    /**
+     * Generate the detailed section of a file.
+     *
+     * @param result The result of the analyze of the file.
+     */
+    private String generateDetailedSection(FileReport result) {
+        StringBuilder report = new StringBuilder();
+        report.append('\n');
+        // Create a section for the file
+        report.append(result.getAttachedFile().getName());
+        report.append("\n-----------------------\n");
+
+        // If nothing was reported, display a generic message
+        if (result.getNbMigrations() == 0) {
+            report.append(messages.getNothingMessage());
+            report.append('\n');
+        }
+
+        // Get the actions to do for the migration
+        for (MigrationRule type : rules) {
+            if (result.getNbOccurrences(type) == 0) {
+                continue;
+            }
+            List<String> listParams = result.getParams(type);
+            String messageReport = type.formatDetailed(listParams.toArray());
+            report.append("[" + type.getSeverity() + "] ");
+            report.append(messageReport);
+            report.append('\n');
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.rules;
+
+import java.text.MessageFormat;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.jsf2.migration.parser.RuleParser;
+
+/**
+ * A rule loaded from a rule pack (see {@link RulePackReader}). Unlike the
+ * rules of {@link org.nuxeo.ecm.jsf2.migration.enumeration.EnumTypeMigration}
+ * , the messages of the report are defined by the rule itself.
+ * <p>
+ * The rules read from a rule pack have no ordinal, a copy of the rule with an
+ * ordinal is created for each set of {@link MigrationRules} it is added to.
+ *
+ * @since 6.0
+ */
+public class CustomRule implements MigrationRule {
+
+    private static final Log log = LogFactory.getLog(CustomRule.class);
+
+    private final String name;
+
+    // XPath used to get the elements to check
+    private final String xpath;
+
+    private final Severity severity;
+
+    // The parser used to analyze and migrate the file
+    private final Class<? extends RuleParser> parser;
+
+    // The migration can it be done by the parser?
+    private final boolean migrationAuto;
+
+    // When an auto migration is possible, newValue contains the new value for
+    // the element
+    private final String newValue;
+
+    private final MessageFormat summarizedMessage;
+
+    private final MessageFormat detailedMessage;
+
+    // The rule pack defining the rule
+    private final String source;
+
+    // The position of the rule in its set, -1 if the rule is not in a set
+    private final int ordinal;
+
+    /**
+     * @param name The unique name of the rule.
+     * @param xpath The XPath expression used to get the elements to check.
+     * @param severity The severity of the messages.
+     * @param parser The parser used to analyze and migrate the file.
+     * @param migrationAuto True if the migration can be done by the parser.
+     * @param newValue The new value of the elements migrated, null if there
+     *            is none.
+     * @param summarizedMessage The message of the summary of the report,
+     *            with the number of occurrences as argument.
+     * @param detailedMessage The message of the details of a file, with the
+     *            parameters reported by the parser as arguments, null to use
+     *            the summarized message.
+     * @param source The rule pack defining the rule.
+     */
+    public CustomRule(String name, String xpath, Severity severity,
+            Class<? extends RuleParser> parser, boolean migrationAuto,
+            String newValue, MessageFormat summarizedMessage,
+            MessageFormat detailedMessage, String source) {
+        this.name = name;
+        this.xpath = xpath;
+        this.severity = severity;
+        this.parser = parser;
+        this.migrationAuto = migrationAuto;
+        this.newValue = newValue;
+        this.summarizedMessage = summarizedMessage;
+        this.detailedMessage = detailedMessage != null ? detailedMessage
+                : summarizedMessage;
+        this.source = source;
+        ordinal = -1;
+    }
+
+    /**
+     * Create the copy of a rule added to a set of rules.
+     *
+     * @param definition The rule read from the rule pack.
+     * @param ordinal The position of the rule in the set.
+     */
+    CustomRule(CustomRule definition, int ordinal) {
+        name = definition.name;
+        xpath = definition.xpath;
+        severity = definition.severity;
+        parser = definition.parser;
+        migrationAuto = definition.migrationAuto;
+        newValue = definition.newValue;
+        summarizedMessage = definition.summarizedMessage;
+        detailedMessage = definition.detailedMessage;
+        source = definition.source;
+        this.ordinal = ordinal;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public int ordinal() {
+        return ordinal;
+    }
+
+    @Override
+    public String getXPath() {
+        return xpath;
+    }
+
+    /**
+     * The messages of a custom rule are not in the file report.properties.
+     *
+     * @return null
+     */
+    @Override
+    public String getKeyMessage() {
+        return null;
+    }
+
+    @Override
+    public Severity getSeverity() {
+        return severity;
+    }
+
+    @Override
+    public boolean isMigrationAuto() {
+        return migrationAuto;
+    }
+
+    @Override
+    public String getNewValue() {
+        return newValue;
+    }
+
+    public Class<? extends RuleParser> getParser() {
+        return parser;
+    }
+
+    public MessageFormat getSummarizedMessage() {
+        return summarizedMessage;
+    }
+
+    public MessageFormat getDetailedMessage() {
+        return detailedMessage;
+    }
+
+    @Override
+    public String formatSummarized(Object... arguments) {
+        return format(summarizedMessage, arguments);
+    }
+
+    @Override
+    public String formatDetailed(Object... arguments) {
+        return format(detailedMessage, arguments);
+    }
+
+    private static String format(MessageFormat message, Object[] arguments) {
+        // A MessageFormat can not be used by several threads at the same
+        // time
+        synchronized (message) {
+            return message.format(arguments);
+        }
+    }
+
+    /**
+     * Get the rule pack defining the rule.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    @Override
+    public RuleParser newParser(boolean doMigration) {
+        try {
+            RuleParser newInstance = parser.newInstance();
+            newInstance.init(this, doMigration);
+            return newInstance;
+        } catch (Exception ex) {
+            log.error(ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the rule has the same definition as another rule, so
+     * the same rule pack can be loaded several times.
+     */
+    public boolean isSameDefinition(CustomRule other) {
+        return name.equals(other.name)
+                && ObjectUtils.equals(xpath, other.xpath)
+                && severity == other.severity && parser == other.parser
+                && migrationAuto == other.migrationAuto
+                && ObjectUtils.equals(newValue, other.newValue)
+                && summarizedMessage.equals(other.summarizedMessage)
+                && detailedMessage.equals(other.detailedMessage);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
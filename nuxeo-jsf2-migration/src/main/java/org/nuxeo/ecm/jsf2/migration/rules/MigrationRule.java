@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.rules;
+
+import org.nuxeo.ecm.jsf2.migration.enumeration.EnumTypeMigration;
+import org.nuxeo.ecm.jsf2.migration.parser.RuleParser;
+
+/**
+ * A rule of the migration: either a rule of the tool, defined in
+ * {@link EnumTypeMigration}, or a rule loaded from a rule pack (see
+ * {@link CustomRule}).
+ * <p>
+ * As for the enumeration, each rule has a unique name and an ordinal: the
+ * ordinals of the rules of the enumeration come first, then the ordinals of
+ * the rules loaded, in the order of their loading in a set of rules (see
+ * {@link MigrationRules}). The reports store the results of the rules by
+ * ordinal.
+ *
+ * @since 6.0
+ */
+public interface MigrationRule {
+
+    /**
+     * Severity of the messages of a rule.
+     */
+    enum Severity {
+        INFO, WARNING, ERROR
+    }
+
+    /**
+     * Get the unique name of the rule.
+     */
+    String name();
+
+    /**
+     * Get the position of the rule among all the rules.
+     */
+    int ordinal();
+
+    /**
+     * Get the XPath expression used to get the elements to check, null if
+     * the rule does not use XPath.
+     */
+    String getXPath();
+
+    /**
+     * Get the key of the messages of the rule in the file report.properties,
+     * null if the rule defines its messages.
+     */
+    String getKeyMessage();
+
+    Severity getSeverity();
+
+    /**
+     * Returns true if the migration can be done by the parser of the rule.
+     */
+    boolean isMigrationAuto();
+
+    /**
+     * Get the new value of the elements migrated, null if there is none.
+     */
+    String getNewValue();
+
+    /**
+     * Format the message of the summary of the report for the rule.
+     *
+     * @param arguments The arguments of the message.
+     */
+    String formatSummarized(Object... arguments);
+
+    /**
+     * Format the message of the details of a file for the rule.
+     *
+     * @param arguments The arguments of the message.
+     */
+    String formatDetailed(Object... arguments);
+
+    /**
+     * Create a new parser for the rule. The parser does not keep any state
+     * about the files it analyzes so it can be shared by several threads.
+     *
+     * @param doMigration Automatically do the migration if possible.
+     * @return The parser initialized for the rule or null if the rule has no
+     *         parser.
+     */
+    RuleParser newParser(boolean doMigration);
+}
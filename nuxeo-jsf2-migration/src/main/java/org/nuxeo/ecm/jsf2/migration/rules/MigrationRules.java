@@ -0,0 +1,185 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.rules;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.nuxeo.ecm.jsf2.migration.enumeration.EnumTypeMigration;
+
+/**
+ * The rules known by a service: the rules of {@link EnumTypeMigration}, then
+ * the rules of the rule packs of the classpath and of the rule packs given to
+ * the service, each rule at the position of its ordinal.
+ * <p>
+ * The rules of the rule packs are bound to the set: their ordinals are only
+ * meaningful for the reports created with the set, so several services can
+ * load rule packs defining the same names. A set can not be modified and can
+ * be read by several threads.
+ *
+ * @since 6.0
+ */
+public final class MigrationRules {
+
+    // The rule packs of the classpath, read once and bound to each set
+    private static final List<CustomRule> CLASSPATH_RULES = readClasspath();
+
+    private static final MigrationRules DEFAULT = new MigrationRules(
+            Collections.<CustomRule> emptyList());
+
+    // All the rules by ordinal
+    private final List<MigrationRule> rules;
+
+    // The rules applied to the files
+    private final List<MigrationRule> appliedRules;
+
+    /**
+     * Create the set of the rules of the tool with the rules of some rule
+     * packs.
+     *
+     * @param customRules The rules of the rule packs given to the service.
+     * @throws IllegalArgumentException If a rule of the rule packs has the
+     *             name of another rule.
+     */
+    public MigrationRules(List<CustomRule> customRules) {
+        List<MigrationRule> all = new ArrayList<MigrationRule>(
+                Arrays.asList(EnumTypeMigration.values()));
+        List<MigrationRule> applied = new ArrayList<MigrationRule>(
+                EnumTypeMigration.getTypesMigration());
+        for (MigrationRule rule : bind(all, CLASSPATH_RULES)) {
+            if (!applied.contains(rule)) {
+                applied.add(rule);
+            }
+        }
+        for (MigrationRule rule : bind(all, customRules)) {
+            if (!applied.contains(rule)) {
+                applied.add(rule);
+            }
+        }
+        rules = Collections.unmodifiableList(all);
+        appliedRules = Collections.unmodifiableList(applied);
+    }
+
+    /**
+     * Get the set of the rules of the tool and of the rule packs of the
+     * classpath.
+     */
+    public static MigrationRules getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Get all the rules of the set, in the order of their ordinal.
+     */
+    public List<MigrationRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Get the number of rules of the set.
+     */
+    public int size() {
+        return rules.size();
+    }
+
+    /**
+     * Get the rule with an ordinal.
+     */
+    public MigrationRule get(int ordinal) {
+        return rules.get(ordinal);
+    }
+
+    /**
+     * Returns true if a rule belongs to the set.
+     */
+    public boolean contains(MigrationRule rule) {
+        int ordinal = rule.ordinal();
+        return ordinal >= 0 && ordinal < rules.size()
+                && rules.get(ordinal) == rule;
+    }
+
+    /**
+     * Get a rule by name.
+     *
+     * @return The rule or null if no rule of the set has the name.
+     */
+    public MigrationRule valueOf(String name) {
+        for (MigrationRule rule : rules) {
+            if (rule.name().equals(name)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the rules applied to the files: the rules of
+     * {@link EnumTypeMigration} with a parser and the rules of the rule
+     * packs.
+     */
+    public List<MigrationRule> getAppliedRules() {
+        return appliedRules;
+    }
+
+    /**
+     * Add the rules of a rule pack to the rules of a set. A rule already
+     * added with the same definition is not added again, the added one is
+     * returned instead.
+     *
+     * @param all The rules of the set, by ordinal.
+     * @param newRules The rules to add.
+     * @return The rules of the set, in the order of the new rules.
+     */
+    private static List<MigrationRule> bind(List<MigrationRule> all,
+            List<CustomRule> newRules) {
+        List<MigrationRule> result = new ArrayList<MigrationRule>();
+        for (CustomRule rule : newRules) {
+            MigrationRule existing = null;
+            for (MigrationRule added : all) {
+                if (added.name().equals(rule.name())) {
+                    existing = added;
+                    break;
+                }
+            }
+            if (existing == null) {
+                CustomRule bound = new CustomRule(rule, all.size());
+                all.add(bound);
+                result.add(bound);
+            } else if (existing instanceof CustomRule
+                    && ((CustomRule) existing).isSameDefinition(rule)) {
+                result.add(existing);
+            } else {
+                throw new IllegalArgumentException(String.format(
+                        "The rule %s of '%s' is already defined", rule.name(),
+                        rule.getSource()));
+            }
+        }
+        return result;
+    }
+
+    private static List<CustomRule> readClasspath() {
+        try {
+            return RulePackReader.readClasspath(MigrationRules.class.getClassLoader());
+        } catch (IOException ex) {
+            throw new IllegalStateException(
+                    "Can not read the rule packs of the classpath", ex);
+        }
+    }
+}
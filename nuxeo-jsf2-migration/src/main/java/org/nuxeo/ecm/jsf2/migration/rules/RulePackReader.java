@@ -0,0 +1,271 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     <a href="mailto:glefevre@nuxeo.com">Gildas</a>
+ */
+package org.nuxeo.ecm.jsf2.migration.rules;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+import org.jaxen.JaxenException;
+import org.nuxeo.ecm.jsf2.migration.enumeration.EnumPrefixes;
+import org.nuxeo.ecm.jsf2.migration.impl.ReaderFactory;
+import org.nuxeo.ecm.jsf2.migration.parser.CompiledXPath;
+import org.nuxeo.ecm.jsf2.migration.parser.GenericParser;
+import org.nuxeo.ecm.jsf2.migration.parser.RuleParser;
+import org.nuxeo.ecm.jsf2.migration.parser.RulePattern;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRule.Severity;
+import org.xml.sax.SAXException;
+
+/**
+ * Reader of the rule packs, XML files defining rules in addition to the rules
+ * of {@link org.nuxeo.ecm.jsf2.migration.enumeration.EnumTypeMigration}:
+ *
+ * <pre>
+ * &lt;rules&gt;
+ *   &lt;rule name="H_COMMANDLINK_IMMEDIATE_RULE"
+ *       xpath="//h:commandLink[@immediate='true']" severity="WARNING"
+ *       parser="GenericParser" migrationAuto="false"&gt;
+ *     &lt;summarized&gt;{0} immediate links to check&lt;/summarized&gt;
+ *     &lt;detailed&gt;{0} immediate links to check&lt;/detailed&gt;
+ *   &lt;/rule&gt;
+ * &lt;/rules&gt;
+ * </pre>
+ *
+ * The parser is the name of a class implementing {@link RuleParser}, the
+ * simple name of the parsers of the tool is enough, and defaults to
+ * {@link GenericParser}. The severity defaults to WARNING, the detailed
+ * message to the summarized one.
+ * <p>
+ * The rules are checked when they are read: the XPath expression is
+ * compiled, the parser is created and the messages are parsed, so an invalid
+ * rule fails the startup instead of the analyze. Once added to the rules of a
+ * service (see {@link MigrationRules}), a rule is applied as a rule of the
+ * enumeration: its XPath expression is evaluated by the
+ * {@link org.nuxeo.ecm.jsf2.migration.parser.DocumentMatcher} when
+ * {@link RulePattern} supports it.
+ *
+ * @since 6.0
+ */
+public class RulePackReader {
+
+    private static final Log log = LogFactory.getLog(RulePackReader.class);
+
+    /**
+     * Name of the rule packs loaded from the classpath.
+     */
+    public static final String RESOURCE_NAME = "jsf2-migration-rules.xml";
+
+    private static final String EXTENSION = ".xml";
+
+    private static final String PARSER_PACKAGE = GenericParser.class.getPackage().getName();
+
+    private RulePackReader() {
+    }
+
+    /**
+     * Read the rule packs found in the classpath under the name
+     * {@link #RESOURCE_NAME}.
+     *
+     * @param classLoader The class loader of the classpath.
+     * @return The rules of all the rule packs, not added to a set of rules.
+     */
+    public static List<CustomRule> readClasspath(ClassLoader classLoader)
+            throws IOException {
+        List<CustomRule> result = new ArrayList<CustomRule>();
+        Enumeration<URL> resources = classLoader.getResources(RESOURCE_NAME);
+        while (resources.hasMoreElements()) {
+            result.addAll(read(resources.nextElement()));
+        }
+        return result;
+    }
+
+    /**
+     * Read a rule pack, or all the rule packs of a directory.
+     *
+     * @param file The rule pack or a directory of files '.xml'.
+     * @return The rules of the rule packs, not added to a set of rules.
+     */
+    public static List<CustomRule> read(File file) throws IOException {
+        if (!file.exists()) {
+            throw new IOException(String.format(
+                    "The rule pack '%s' does not exist", file.getPath()));
+        }
+        if (!file.isDirectory()) {
+            return read(file.toURI().toURL());
+        }
+        File[] files = file.listFiles();
+        if (files == null) {
+            throw new IOException(String.format(
+                    "The directory '%s' can not be read", file.getPath()));
+        }
+        // The rules are added in the same order at each run
+        Arrays.sort(files);
+        List<CustomRule> result = new ArrayList<CustomRule>();
+        for (File child : files) {
+            if (child.isFile() && child.getName().endsWith(EXTENSION)) {
+                result.addAll(read(child.toURI().toURL()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read a rule pack.
+     *
+     * @param url The location of the rule pack.
+     * @return The rules of the rule pack, not added to a set of rules.
+     * @throws IllegalArgumentException If a rule is invalid.
+     */
+    public static List<CustomRule> read(URL url) throws IOException {
+        String source = url.toString();
+        Document document;
+        InputStream in = url.openStream();
+        try {
+            document = ReaderFactory.newSAXReader().read(in, source);
+        } catch (SAXException | DocumentException ex) {
+            throw new IOException(String.format(
+                    "The rule pack '%s' can not be read : %s", source,
+                    ex.getMessage()), ex);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        Element root = document.getRootElement();
+        if (!"rules".equals(root.getName())) {
+            throw new IllegalArgumentException(String.format(
+                    "The root element of the rule pack '%s' must be <rules>",
+                    source));
+        }
+        List<CustomRule> result = new ArrayList<CustomRule>();
+        for (Object child : root.elements("rule")) {
+            result.add(readRule((Element) child, source));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static CustomRule readRule(Element element, String source) {
+        String name = element.attributeValue("name");
+        if (StringUtils.isBlank(name)) {
+            throw new IllegalArgumentException(String.format(
+                    "A rule of '%s' has no name", source));
+        }
+        try {
+            String xpath = getRequired(element, "xpath", true);
+            checkXPath(name, xpath);
+            Severity severity = Severity.valueOf(StringUtils.defaultIfEmpty(
+                    element.attributeValue("severity"),
+                    Severity.WARNING.name()).toUpperCase());
+            Class<? extends RuleParser> parser = getParser(element.attributeValue("parser"));
+            boolean migrationAuto = Boolean.parseBoolean(element.attributeValue("migrationAuto"));
+            String newValue = StringUtils.defaultIfEmpty(
+                    element.attributeValue("newValue"), null);
+            if (migrationAuto && newValue == null) {
+                throw new IllegalArgumentException(
+                        "the automatic migration needs a new value");
+            }
+            MessageFormat summarized = new MessageFormat(getRequired(element,
+                    "summarized", false));
+            String detailed = element.elementText("detailed");
+            CustomRule rule = new CustomRule(name, xpath, severity, parser,
+                    migrationAuto, newValue, summarized,
+                    StringUtils.isBlank(detailed) ? null : new MessageFormat(
+                            detailed.trim()), source);
+            // Check the parser accepts the rule
+            parser.newInstance().init(rule, migrationAuto);
+            return rule;
+        } catch (InstantiationException | IllegalAccessException
+                | ClassCastException | IllegalArgumentException ex) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid rule %s in '%s' : %s", name, source,
+                    ex.getMessage()), ex);
+        }
+    }
+
+    /**
+     * Get the value of an attribute, or the text of a child element, which
+     * must be defined.
+     */
+    private static String getRequired(Element element, String name,
+            boolean attribute) {
+        String value = attribute ? element.attributeValue(name)
+                : element.elementText(name);
+        if (StringUtils.isBlank(value)) {
+            throw new IllegalArgumentException(String.format(
+                    "the %s is missing", name));
+        }
+        return value.trim();
+    }
+
+    private static void checkXPath(String name, String xpath) {
+        CompiledXPath compiledXPath = CompiledXPath.get(xpath);
+        try {
+            compiledXPath.getXPath(new String[compiledXPath.getPrefixes().size()]);
+        } catch (JaxenException ex) {
+            throw new IllegalArgumentException(String.format(
+                    "the XPath expression '%s' is invalid : %s", xpath,
+                    ex.getMessage()));
+        }
+        for (String prefix : compiledXPath.getPrefixes()) {
+            if (EnumPrefixes.getPrefix(prefix) == EnumPrefixes.UNKNOWN) {
+                log.warn(String.format(
+                        "The prefix '%s' of the rule %s is unknown, the rule will report NAMESPACE_RULE_2",
+                        prefix, name));
+            }
+        }
+        if (RulePattern.compile(xpath) == null) {
+            log.info(String.format(
+                    "The XPath expression of the rule %s is evaluated on each document : %s",
+                    name, xpath));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends RuleParser> getParser(String name) {
+        if (StringUtils.isBlank(name)) {
+            return GenericParser.class;
+        }
+        String className = name.contains(".") ? name : PARSER_PACKAGE + "."
+                + name;
+        Class<?> parser;
+        try {
+            parser = Class.forName(className, true,
+                    RulePackReader.class.getClassLoader());
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalArgumentException(String.format(
+                    "the parser '%s' is unknown", name));
+        }
+        if (!RuleParser.class.isAssignableFrom(parser)) {
+            throw new IllegalArgumentException(String.format(
+                    "the parser '%s' is not a RuleParser", name));
+        }
+        return (Class<? extends RuleParser>) parser;
+    }
+}
@@ -17,21 +17,70 @@
 package org.nuxeo.ecm.jsf2.migration.api;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.dom4j.Document;
 import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.SAXReader;
+import org.dom4j.io.XMLWriter;
 import org.jaxen.JaxenException;
+import org.jaxen.SimpleNamespaceContext;
+import org.jaxen.XPath;
+import org.jaxen.dom4j.Dom4jXPath;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nuxeo.ecm.jsf2.migration.enumeration.EnumOutputMode;
 import org.nuxeo.ecm.jsf2.migration.enumeration.EnumTypeMigration;
+import org.nuxeo.ecm.jsf2.migration.impl.MigrationOptions;
 import org.nuxeo.ecm.jsf2.migration.impl.MigrationServiceImpl;
+import org.nuxeo.ecm.jsf2.migration.impl.OutputDocument;
+import org.nuxeo.ecm.jsf2.migration.impl.OutputFileWriter;
+import org.nuxeo.ecm.jsf2.migration.impl.ReaderFactory;
+import org.nuxeo.ecm.jsf2.migration.impl.TemplateCatalog;
+import org.nuxeo.ecm.jsf2.migration.impl.TemplateIndex;
+import org.nuxeo.ecm.jsf2.migration.parser.CompiledXPath;
+import org.nuxeo.ecm.jsf2.migration.parser.DocumentMatcher;
+import org.nuxeo.ecm.jsf2.migration.parser.RuleEngine;
+import org.nuxeo.ecm.jsf2.migration.parser.RulePattern;
+import org.nuxeo.ecm.jsf2.migration.parser.RulePlan;
+import org.nuxeo.ecm.jsf2.migration.parser.StreamingMatcher;
+import org.nuxeo.ecm.jsf2.migration.report.AnalysisCache;
+import org.nuxeo.ecm.jsf2.migration.report.AnalysisMetrics;
 import org.nuxeo.ecm.jsf2.migration.report.FileReport;
+import org.nuxeo.ecm.jsf2.migration.rules.CustomRule;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRule;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRule.Severity;
+import org.nuxeo.ecm.jsf2.migration.rules.MigrationRules;
+import org.nuxeo.ecm.jsf2.migration.rules.RulePackReader;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
 
 /**
  * Test case of the migration to JSF2.
@@ -60,6 +109,10 @@ public class TestMigrationService {
 
     private MigrationService migrationService = new MigrationServiceImpl();
 
+    // Directory of the files written by a test, deleted after the test
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testAnalyzeWithNoMigration() throws JaxenException,
             DocumentException {
@@ -134,6 +187,35 @@ public class TestMigrationService {
         assertNull(urlFileNotPresent);
     }
 
+    @Test
+    public void testAutoMigrationWithFormat() throws Exception {
+        File template = copyTemplate(TEMPLATE_WITH_MIGRATIONS,
+                TEMPLATE_WITH_MIGRATIONS);
+        File migrated = new File(folder.getRoot(), TEMPLATE_WITH_MIGRATIONS
+                + ".migrated");
+        // Expected content of the formatted input file
+        SAXReader reader = new SAXReader();
+        reader.setFeature(
+                "http://apache.org/xml/features/nonvalidating/load-external-dtd",
+                false);
+        Document original = reader.read(template);
+        StringWriter formatted = new StringWriter();
+        OutputFormat format = new OutputFormat();
+        format.setIndentSize(2);
+        format.setNewlines(true);
+        format.setTrimText(true);
+        new XMLWriter(formatted, format).write(original);
+
+        migrationService.analyzeFile(template, false, true, true);
+
+        // The input file is formatted but not migrated
+        assertEquals(formatted.toString(), deserializeString(template));
+        assertEquals(
+                deserializeString(getTemplate("expectedFiles/"
+                        + TEMPLATE_WITH_MIGRATIONS + ".expected")),
+                deserializeString(migrated));
+    }
+
     @Test
     public void testSelectActions() throws Exception {
         FileReport report = loadTemplateAndAnalyzeFile(TEMPLATE_SELECTACTIONS,
@@ -203,12 +285,927 @@ public class TestMigrationService {
                 EnumTypeMigration.A4J_SUPPORT_RULE));
     }
 
+    @Test
+    public void testAnalyzeProjectInParallel() throws Exception {
+        List<File> listFiles = new ArrayList<File>();
+        for (String templateName : new String[] { TEMPLATE_WITH_MIGRATIONS,
+                TEMPLATE_PREFIX_UNBOUND, TEMPLATE_WRONG_NAMESPACE,
+                TEMPLATE_NOTHING_TO_MIGRATE, TEMPLATE_SELECTACTIONS,
+                TEMPLATE_WITH_OUTPUT_TEXT_MIGRATIONS, TEMPLATE_OVERRIDDEN,
+                COMPAT_TEMPLATE_OVERRIDDEN, TREE_TEMPLATE }) {
+            listFiles.add(getTemplate(templateName));
+        }
+        File sequentialReport = folder.newFile("sequential.txt");
+        File parallelReport = folder.newFile("parallel.txt");
+        migrationService.analyzeProject(sequentialReport, listFiles, false,
+                false);
+        migrationService.analyzeProject(parallelReport, listFiles, false,
+                false, 4);
+        // The report must not depend on the number of threads
+        assertEquals(deserializeString(sequentialReport),
+                deserializeString(parallelReport));
+    }
+
+    @Test
+    public void testMigrateProjectInParallel() throws Exception {
+        File dir = folder.getRoot();
+        List<File> listFiles = copyTemplates(TEMPLATE_WITH_MIGRATIONS,
+                TEMPLATE_WRONG_NAMESPACE, TEMPLATE_NOTHING_TO_MIGRATE);
+        migrationService.analyzeProject(new File(dir, "report.txt"),
+                listFiles, true, false, 4);
+
+        // The migrated files are written by the pipeline
+        for (String templateName : new String[] {
+                TEMPLATE_WITH_MIGRATIONS, TEMPLATE_WRONG_NAMESPACE }) {
+            assertEquals(
+                    deserializeString(getTemplate("expectedFiles/"
+                            + templateName + ".expected")),
+                    deserializeString(new File(dir, templateName
+                            + ".migrated")));
+        }
+        assertTrue(!new File(dir, TEMPLATE_NOTHING_TO_MIGRATE
+                + ".migrated").exists());
+    }
+
+    @Test
+    public void testOverriddenTemplateInProject() throws Exception {
+        File dir = folder.getRoot();
+        TemplateIndex index = TemplateCatalog.get(
+                TemplateCatalog.DEFAULT_VERSION).getTemplates();
+        Set<String> templates = index.getTemplatesCompletePath();
+        for (String path : templates) {
+            File file = new File(new File(dir, "project"), path);
+            file.getParentFile().mkdirs();
+            assertTrue(path, index.containsPath(file));
+            assertTrue(path, migrationService.checkOverriddenTemplate(
+                    file, templates, true));
+        }
+
+        // The same file in another directory is not an override
+        File other = new File(dir, "project/nuxeo.war/other/"
+                + TEMPLATE_OVERRIDDEN);
+        other.getParentFile().mkdirs();
+        assertFalse(index.containsPath(other));
+        assertFalse(migrationService.checkOverriddenTemplate(other,
+                templates, true));
+        assertTrue(index.containsName(other));
+
+        // Nor the same file outside of a directory nuxeo.war
+        File outside = new File(dir, "other/" + TEMPLATE_OVERRIDDEN);
+        outside.getParentFile().mkdirs();
+        assertFalse(index.containsPath(outside));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownNuxeoVersion() {
+        MigrationOptions options = new MigrationOptions();
+        options.setNuxeoVersion("0.0");
+        new MigrationServiceImpl(options);
+    }
+
+    @Test
+    public void testFileReport() {
+        FileReport report = new FileReport(getTemplate(TREE_TEMPLATE));
+        assertEquals(0, report.getNbMigrations());
+        assertEquals(0,
+                report.getNbOccurrences(EnumTypeMigration.A4J_FORM_RULE));
+        assertNull(report.getParams(EnumTypeMigration.A4J_FORM_RULE));
+        assertTrue(report.getListMigrations().isEmpty());
+
+        // A type reported again replaces the previous occurrences
+        report.putMigration(EnumTypeMigration.A4J_FORM_RULE, 1,
+                Collections.singletonList("1"));
+        report.putMigration(EnumTypeMigration.A4J_FORM_RULE, 3,
+                Collections.singletonList("3"));
+        report.putMigration(EnumTypeMigration.NAMESPACE_RULE_2, 1,
+                Collections.singletonList("foo"));
+        assertEquals(2, report.getNbMigrations());
+        assertEquals(3,
+                report.getNbOccurrences(EnumTypeMigration.A4J_FORM_RULE));
+        assertEquals(Collections.singletonList("3"),
+                report.getParams(EnumTypeMigration.A4J_FORM_RULE));
+        assertEquals(2, report.getListMigrations().size());
+        assertEquals(Integer.valueOf(3), report.getListMigrations().get(
+                EnumTypeMigration.A4J_FORM_RULE));
+        assertEquals(2, report.getListParams().size());
+    }
+
+    @Test
+    public void testReport() throws Exception {
+        File dir = folder.getRoot();
+        List<File> listFiles = new ArrayList<File>();
+        listFiles.add(getTemplate(TEMPLATE_WITH_MIGRATIONS));
+        listFiles.add(getTemplate(TEMPLATE_NOTHING_TO_MIGRATE));
+        listFiles.add(getTemplate(TEMPLATE_WRONG_NAMESPACE));
+        File report = new File(dir, "report.txt");
+        migrationService.analyzeProject(report, listFiles, false, false,
+                2);
+
+        String content = deserializeString(report);
+        assertTrue(content.contains("Number of files analyzed : 3"));
+        // The details are in the order of the files
+        int first = content.indexOf(TEMPLATE_WITH_MIGRATIONS + "\n---");
+        int second = content.indexOf(TEMPLATE_NOTHING_TO_MIGRATE
+                + "\n---");
+        int third = content.indexOf(TEMPLATE_WRONG_NAMESPACE + "\n---");
+        assertTrue(content.indexOf("Summary") < content.indexOf("Details"));
+        assertTrue(content.indexOf("Details") < first);
+        assertTrue(first < second);
+        assertTrue(second < third);
+        // The messages are formatted with their parameters
+        assertTrue(content.contains("Namespaces needing replacement : 2 occurrence(s) have been found."));
+        assertTrue(content.contains("Nothing to do for the migration to JSF2."));
+        assertTrue(content.contains("must be replaced by xmlns:"));
+        // Only the report is left in the directory
+        assertEquals(1, dir.list().length);
+    }
+
+    @Test
+    public void testAnalyzeDirectories() throws Exception {
+        File dir = folder.getRoot();
+        File root1 = new File(dir, "project1/nuxeo.war");
+        File root2 = new File(dir, "project2/nuxeo.war");
+        copyTemplate(TEMPLATE_WITH_MIGRATIONS, "project1/nuxeo.war/"
+                + TEMPLATE_WITH_MIGRATIONS);
+        copyTemplate(TEMPLATE_WRONG_NAMESPACE, "project1/nuxeo.war/incl/"
+                + TEMPLATE_WRONG_NAMESPACE);
+        copyTemplate(TEMPLATE_NOTHING_TO_MIGRATE, "project2/nuxeo.war/"
+                + TEMPLATE_NOTHING_TO_MIGRATE);
+
+        Map<File, File> projects = new LinkedHashMap<File, File>();
+        projects.put(root1, new File(dir, "project1/report.txt"));
+        projects.put(root2, new File(dir, "project2/report.txt"));
+        File report = new File(dir, "report-all.txt");
+        migrationService.analyzeDirectories(report, projects, false, false,
+                4, false);
+
+        // The report of each project is the report of its directory
+        for (Map.Entry<File, File> project : projects.entrySet()) {
+            File expectedReport = new File(dir, "expected.txt");
+            migrationService.analyzeDirectory(expectedReport,
+                    project.getKey(), false, false, 1, false);
+            assertEquals(deserializeString(expectedReport),
+                    deserializeString(project.getValue()));
+        }
+
+        // The report of all the projects has the summary of each project
+        String content = deserializeString(report);
+        assertTrue(content.contains("Number of files analyzed : 3"));
+        int first = content.indexOf(root1.getPath() + "\n---");
+        int second = content.indexOf(root2.getPath() + "\n---");
+        assertTrue(content.indexOf("Projects") < first);
+        assertTrue(first < second);
+        assertTrue(content.contains("Number of files analyzed : 2"));
+        assertTrue(content.contains("Number of files analyzed : 1"));
+        assertFalse(content.contains("Details"));
+    }
+
+    @Test
+    public void testAnalyzeDirectory() throws Exception {
+        File dir = folder.getRoot();
+        File root = new File(dir, "nuxeo.war");
+        copyTemplate(TEMPLATE_WITH_MIGRATIONS, "nuxeo.war/"
+                + TEMPLATE_WITH_MIGRATIONS);
+        copyTemplate(TEMPLATE_WRONG_NAMESPACE, "nuxeo.war/incl/"
+                + TEMPLATE_WRONG_NAMESPACE);
+        copyTemplate(TREE_TEMPLATE, "nuxeo.war/incl/sub/" + TREE_TEMPLATE);
+        copyTemplate(TREE_TEMPLATE, "nuxeo.war/incl/sub/" + TREE_TEMPLATE
+                + ".txt");
+
+        List<File> listFiles = migrationService.getAllXhtmlFiles(root);
+        assertEquals(3, listFiles.size());
+        List<File> sortedFiles = new ArrayList<File>(listFiles);
+        Collections.sort(sortedFiles);
+        assertEquals(sortedFiles, listFiles);
+
+        // The files found while walking the directories give the same
+        // report as the list of files
+        File expectedReport = new File(dir, "expected.txt");
+        File report = new File(dir, "report.txt");
+        migrationService.analyzeProject(expectedReport, listFiles, false,
+                false);
+        migrationService.analyzeDirectory(report, root, false, false, 4,
+                false);
+        assertEquals(deserializeString(expectedReport),
+                deserializeString(report));
+    }
+
+    @Test
+    public void testAnalyzeProjectWithCache() throws Exception {
+        File dir = folder.getRoot();
+        List<File> listFiles = copyTemplates(TEMPLATE_WITH_MIGRATIONS,
+                TEMPLATE_WRONG_NAMESPACE, TEMPLATE_NOTHING_TO_MIGRATE);
+        File report = new File(dir, "report.txt");
+        File cacheFile = new File(dir, "report.cache");
+        migrationService.analyzeProject(report, listFiles, false, false,
+                1, true);
+        assertTrue(cacheFile.exists());
+        String firstReport = deserializeString(report);
+
+        // The report built from the cache is the same
+        migrationService.analyzeProject(report, listFiles, false, false,
+                1, true);
+        assertEquals(firstReport, deserializeString(report));
+
+        // A modified file is analyzed again
+        FileUtils.copyFile(getTemplate(TEMPLATE_NOTHING_TO_MIGRATE),
+                listFiles.get(0));
+        File expectedReport = new File(dir, "expected.txt");
+        migrationService.analyzeProject(expectedReport, listFiles, false,
+                false);
+        migrationService.analyzeProject(report, listFiles, false, false,
+                1, true);
+        assertEquals(deserializeString(expectedReport),
+                deserializeString(report));
+    }
+
+    @Test
+    public void testAnalysisCache() throws Exception {
+        File dir = folder.getRoot();
+        File file = new File(dir, "file.xhtml");
+        File cacheFile = new File(dir, "report.cache");
+        MigrationRules rules = MigrationRules.getDefault();
+        FileReport fileReport = new FileReport(file, rules);
+        StringBuilder longParam = new StringBuilder();
+        while (longParam.length() <= 70000) {
+            longParam.append("été ");
+        }
+        fileReport.putMigration(EnumTypeMigration.A4J_FORM_RULE, 2,
+                Arrays.asList(longParam.toString(), null));
+        AnalysisCache cache = AnalysisCache.load(cacheFile, "1.0", rules);
+        cache.put(file, "hash", fileReport);
+        cache.save();
+        assertEquals(1, dir.list().length);
+
+        // The parameters are read as they were written, whatever their
+        // length, and the null parameters stay null
+        cache = AnalysisCache.load(cacheFile, "1.0", rules);
+        List<String> params = cache.get(file, "hash").getParams(
+                EnumTypeMigration.A4J_FORM_RULE);
+        assertEquals(longParam.toString(), params.get(0));
+        assertNull(params.get(1));
+
+        // The results of another version are not reused
+        assertNull(AnalysisCache.load(cacheFile, "2.0", rules).get(file,
+                "hash"));
+    }
+
+    @Test(timeout = 60000)
+    public void testAnalyzeProjectWithErrors() throws Exception {
+        List<File> listFiles = copyTemplates(TEMPLATE_WITH_MIGRATIONS,
+                TEMPLATE_NOTHING_TO_MIGRATE);
+        final File failing = listFiles.get(0);
+        final Throwable[] thrown = new Throwable[1];
+        MigrationServiceImpl service = new MigrationServiceImpl() {
+            @Override
+            protected List<OutputDocument> analyzeContentForRules(File file,
+                    byte[] content, FileReport fileReport,
+                    List<? extends MigrationRule> listRules,
+                    boolean doMigration, boolean format,
+                    AnalysisMetrics metrics) {
+                if (file.equals(failing)) {
+                    if (thrown[0] instanceof Error) {
+                        throw (Error) thrown[0];
+                    }
+                    throw (RuntimeException) thrown[0];
+                }
+                return super.analyzeContentForRules(file, content,
+                        fileReport, listRules, doMigration, format, metrics);
+            }
+        };
+        File report = new File(folder.getRoot(), "report.txt");
+
+        // A file whose analyze fails is reported with the error
+        thrown[0] = new IllegalStateException("Broken rule");
+        service.analyzeProject(report, listFiles, false, false, 2);
+        String content = deserializeString(report);
+        assertTrue(content.contains("Number of files analyzed : 2"));
+        assertTrue(content.contains("Error while parsing file : Broken rule."));
+
+        // An Error fails the run instead of blocking it
+        thrown[0] = new StackOverflowError();
+        try {
+            service.analyzeProject(report, listFiles, false, false, 2);
+            fail("The analyze must fail");
+        } catch (IOException ex) {
+            assertTrue(ex.getCause() instanceof StackOverflowError);
+        }
+    }
+
+    @Test
+    public void testAnalyzeAsStream() throws Exception {
+        List<EnumTypeMigration> listRules = EnumTypeMigration.getTypesMigration();
+        RuleEngine ruleEngine = new RuleEngine(listRules, false);
+        assertTrue(ruleEngine.isStreamable());
+        for (String templateName : new String[] { TEMPLATE_WITH_MIGRATIONS,
+                TEMPLATE_PREFIX_UNBOUND, TEMPLATE_WRONG_NAMESPACE,
+                TEMPLATE_NOTHING_TO_MIGRATE, TEMPLATE_SELECTACTIONS,
+                TEMPLATE_WITH_OUTPUT_TEXT_MIGRATIONS, TEMPLATE_OVERRIDDEN,
+                COMPAT_TEMPLATE_OVERRIDDEN, TREE_TEMPLATE }) {
+            File template = getTemplate(templateName);
+            // Report of the analyze done on the DOM
+            FileReport expected = new FileReport(template);
+            SAXReader reader = new SAXReader();
+            reader.setFeature(
+                    "http://apache.org/xml/features/nonvalidating/load-external-dtd",
+                    false);
+            try {
+                ruleEngine.apply(reader.read(template), expected);
+            } catch (DocumentException e) {
+                expected.putMigration(
+                        EnumTypeMigration.ERROR_READING_DOCUMENT, 1,
+                        Collections.singletonList(e.getMessage()));
+            }
+
+            FileReport report = migrationService.analyzeFileForRules(template,
+                    new FileReport(template), listRules, false, false);
+            assertEquals(templateName, expected.getListMigrations(),
+                    report.getListMigrations());
+            assertEquals(templateName, expected.getListParams(),
+                    report.getListParams());
+        }
+    }
+
+    @Test
+    public void testMatcherAgainstXPath() throws Exception {
+        // Each form of pattern supported by the matcher
+        String[] expressions = new String[] { "//h:outputText", "//td",
+                "//*", "//rich:*", "//@reRender", "//*[@var]",
+                "//rich:*[@var]", "//h:*[@value]",
+                "//h:outputText[@styleClass]",
+                "//h:outputText[not(@styleClass)]",
+                "//a4j:commandButton[@immediate='true']",
+                "//h:panelGroup[count(*) > 0]", "//h:column[*]",
+                "//*[@var and @value]", "//h:outputText[@value and not(@id)]" };
+        RulePattern[] patterns = new RulePattern[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            patterns[i] = RulePattern.compile(expressions[i]);
+            assertTrue(expressions[i], patterns[i] != null);
+        }
+        // The other expressions are evaluated with Jaxen
+        assertNull(RulePattern.compile("//h:outputText[contains(@value, 'label')]"));
+        assertNull(RulePattern.compile("//a4j:form//h:column"));
+        // The prefixes of the expressions evaluated with Jaxen are bound
+        // whatever their case
+        assertEquals(Arrays.asList("myNs", "h"), CompiledXPath.get(
+                "//myNs:Panel//h:outputText").getPrefixes());
+
+        DocumentMatcher matcher = new DocumentMatcher(patterns);
+        int[] totals = new int[expressions.length];
+        Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+        for (String templateName : new String[] { TEMPLATE_WITH_MIGRATIONS,
+                TEMPLATE_WRONG_NAMESPACE, TEMPLATE_NOTHING_TO_MIGRATE,
+                TEMPLATE_SELECTACTIONS, TEMPLATE_WITH_OUTPUT_TEXT_MIGRATIONS,
+                TEMPLATE_OVERRIDDEN, COMPAT_TEMPLATE_OVERRIDDEN, TREE_TEMPLATE }) {
+            contents.put(templateName, readTemplate(templateName));
+        }
+        // The elements without prefix are in no namespace
+        contents.put("no default namespace", ("<table xmlns:h=\"http://java.sun.com/jsf/html\">\n"
+                + "  <tr><td><h:outputText value=\"a\"/></td><td/></tr>\n"
+                + "</table>\n").getBytes("UTF-8"));
+        for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            String templateName = entry.getKey();
+            byte[] content = entry.getValue();
+            Document document = ReaderFactory.newSAXReader().read(
+                    new InputSource(new ByteArrayInputStream(content)));
+            List<Node>[] matches = matcher.match(document, 0);
+            StreamingMatcher handler = matchStream(matcher, content);
+            for (int i = 0; i < expressions.length; i++) {
+                // The prefix is bound as for the rules evaluated with Jaxen
+                SimpleNamespaceContext nsContext = new SimpleNamespaceContext();
+                if (patterns[i].getPrefix() != null) {
+                    nsContext.addNamespace(patterns[i].getPrefix(),
+                            patterns[i].getNamespaceURI(document.getRootElement()));
+                }
+                XPath xpath = new Dom4jXPath(expressions[i]);
+                xpath.setNamespaceContext(nsContext);
+                List<?> expected = xpath.selectNodes(document);
+                String message = templateName + " " + expressions[i];
+                assertEquals(message, expected, matches[i]);
+                assertEquals(message, expected.size(), handler.getCount(i));
+                totals[i] += expected.size();
+            }
+        }
+        // Each pattern is checked on nodes of the fixtures
+        for (int i = 0; i < expressions.length; i++) {
+            assertTrue(expressions[i], totals[i] > 0);
+        }
+    }
+
+    @Test
+    public void testRuleFilter() throws Exception {
+        List<EnumTypeMigration> listRules = EnumTypeMigration.getTypesMigration();
+        RuleEngine ruleEngine = new RuleEngine(listRules, false);
+        assertFalse(ruleEngine.mayMatch(readTemplate(TEMPLATE_NOTHING_TO_MIGRATE)));
+        assertFalse(ruleEngine.mayMatch(readTemplate(TEMPLATE_WRONG_NAMESPACE)));
+        assertTrue(ruleEngine.mayMatch(readTemplate(TEMPLATE_WITH_MIGRATIONS)));
+        assertTrue(ruleEngine.mayMatch(readTemplate(TEMPLATE_SELECTACTIONS)));
+
+        // The values of the attributes may be written with references
+        String template = "<div xmlns=\"http://www.w3.org/1999/xhtml\" event=\"%s\"/>";
+        assertFalse(ruleEngine.mayMatch(String.format(template, "onchange").getBytes(
+                "UTF-8")));
+        assertTrue(ruleEngine.mayMatch(String.format(template, "onclick").getBytes(
+                "UTF-8")));
+        assertTrue(ruleEngine.mayMatch(String.format(template, "&#111;nclick").getBytes(
+                "UTF-8")));
+        // The bytes of UTF-16 are not checked
+        assertTrue(ruleEngine.mayMatch(String.format(template, "onchange").getBytes(
+                "UTF-16")));
+
+        // The namespaces are still checked and migrated
+        FileReport report = loadTemplateAndAnalyzeFile(
+                TEMPLATE_WRONG_NAMESPACE, false, true);
+        assertTrue(report.getListMigrations().containsKey(
+                EnumTypeMigration.NAMESPACE_RULE_1));
+        File migrated = new File(getTemplate(TEMPLATE_WRONG_NAMESPACE).getPath()
+                + ".migrated");
+        assertTrue(migrated.exists());
+        migrated.delete();
+    }
+
+    @Test
+    public void testRulePlan() throws Exception {
+        List<EnumTypeMigration> listRules = EnumTypeMigration.getTypesMigration();
+        RuleEngine ruleEngine = new RuleEngine(listRules, false);
+        int modalPanel = listRules.indexOf(EnumTypeMigration.RICH_MODAL_PANEL_RULE);
+        int a4jForm = listRules.indexOf(EnumTypeMigration.A4J_FORM_RULE);
+
+        // The names of the elements of a rule are not enough, the namespace
+        // of the rule must be declared
+        String template = "<div xmlns=\"http://www.w3.org/1999/xhtml\"%s>\n"
+                + "  <span>modalPanel</span>\n" + "  <a4j:form/>\n"
+                + "</div>\n";
+        RulePlan plan = ruleEngine.plan(String.format(template,
+                " xmlns:a4j=\"http://richfaces.org/a4j\"").getBytes("UTF-8"));
+        assertTrue(plan.mayMatch());
+        assertFalse(plan.isCandidate(modalPanel));
+        assertTrue(plan.isCandidate(a4jForm));
+        assertTrue(plan.getNbSkipped() > 0);
+        // The rules which are not patterns are always applied
+        assertTrue(plan.isCandidate(listRules.indexOf(EnumTypeMigration.NAMESPACE_RULE_1)));
+        plan = ruleEngine.plan(String.format(template, "").getBytes("UTF-8"));
+        assertFalse(plan.isCandidate(a4jForm));
+        // The content which is not checked keeps all the rules
+        plan = ruleEngine.plan(String.format(template, "").getBytes("UTF-16"));
+        assertTrue(plan.isCandidate(modalPanel));
+        assertEquals(0, plan.getNbSkipped());
+
+        // The elements of a namespace only match in this namespace, with or
+        // without predicates
+        RulePattern pattern = RulePattern.compile("//rich:*");
+        assertEquals("rich", pattern.getPrefix());
+        assertNull(pattern.getName());
+        RulePattern varPattern = RulePattern.compile("//rich:*[@var]");
+        assertEquals("var", varPattern.getRequiredAttribute());
+        DocumentMatcher matcher = new DocumentMatcher(new RulePattern[] {
+                pattern, varPattern });
+        String source = "<div xmlns:rich=\"http://richfaces.org/rich\"\n"
+                + "    xmlns:a4j=\"http://richfaces.org/a4j\"\n"
+                + "    xmlns:h=\"http://java.sun.com/jsf/html\">\n"
+                + "  <rich:modalPanel/><a4j:form/><rich:suggestionbox/>\n"
+                + "  <h:dataTable var=\"row\"><h:column var=\"c\"/></h:dataTable>\n"
+                + "  <rich:tree var=\"node\"/>\n" + "</div>\n";
+        List<Node>[] matches = matcher.match(DocumentHelper.parseText(source), 0);
+        assertEquals(3, matches[0].size());
+        assertEquals(1, matches[1].size());
+        assertEquals("tree", ((Element) matches[1].get(0)).getName());
+        StreamingMatcher handler = matchStream(matcher, source.getBytes("UTF-8"));
+        assertEquals(3, handler.getCount(0));
+        assertEquals(1, handler.getCount(1));
+
+        // The rules left out do not change the reports nor the migrations
+        for (String templateName : new String[] { TEMPLATE_WITH_MIGRATIONS,
+                TEMPLATE_WRONG_NAMESPACE, TEMPLATE_NOTHING_TO_MIGRATE,
+                TEMPLATE_SELECTACTIONS, TEMPLATE_WITH_OUTPUT_TEXT_MIGRATIONS,
+                TREE_TEMPLATE }) {
+            byte[] content = readTemplate(templateName);
+            for (boolean doMigration : new boolean[] { false, true }) {
+                RuleEngine engine = new RuleEngine(listRules, doMigration);
+                SAXReader reader = new SAXReader();
+                reader.setFeature(
+                        "http://apache.org/xml/features/nonvalidating/load-external-dtd",
+                        false);
+                File file = getTemplate(templateName);
+                Document expectedDoc = reader.read(file);
+                FileReport expected = new FileReport(file);
+                engine.apply(expectedDoc, expected);
+                Document planned = reader.read(file);
+                FileReport report = new FileReport(file);
+                engine.apply(planned, report, AnalysisMetrics.DISABLED, null,
+                        engine.plan(content));
+                assertEquals(templateName, expected.getListMigrations(),
+                        report.getListMigrations());
+                assertEquals(templateName, expected.getListParams(),
+                        report.getListParams());
+                assertEquals(templateName, expectedDoc.asXML(),
+                        planned.asXML());
+            }
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        File dir = folder.getRoot();
+        List<File> listFiles = copyTemplates(TEMPLATE_WITH_MIGRATIONS,
+                TEMPLATE_NOTHING_TO_MIGRATE);
+        File report = new File(dir, "report.txt");
+        MigrationOptions options = new MigrationOptions();
+        options.setMetrics(true);
+        new MigrationServiceImpl(options).analyzeProject(report,
+                listFiles, true, false, 2);
+
+        // The metrics are written after the summary
+        String content = deserializeString(report);
+        assertTrue(content.indexOf("Summary") < content.indexOf("Metrics"));
+        assertTrue(content.indexOf("Metrics") < content.indexOf("Details"));
+        assertTrue(content.contains("Files analyzed : 2"));
+        assertTrue(content.contains(" * parse : "));
+        assertTrue(content.contains(" * "
+                + EnumTypeMigration.A4J_FORM_RULE.name() + " : "));
+        assertTrue(content.contains(listFiles.get(0).getPath()));
+
+        String json = deserializeString(new File(dir, "report-metrics.json"));
+        assertTrue(json.contains("\"files\": 2,"));
+        assertTrue(json.contains("\"serialization\": {\"count\": 1,"));
+
+        // The rules evaluated on the stream are measured too
+        new MigrationServiceImpl(options).analyzeProject(report, listFiles,
+                false, false, 2);
+        content = deserializeString(report);
+        assertTrue(content.contains(" * "
+                + EnumTypeMigration.A4J_FORM_RULE.name() + " : "));
+        assertFalse(content.contains(" * serialization : "));
+
+        // Without the metrics, the report is unchanged
+        migrationService.analyzeProject(report, listFiles, false, false, 2);
+        assertFalse(deserializeString(report).contains("Metrics"));
+    }
+
+    @Test
+    public void testOutputFileWriter() throws Exception {
+        File dir = folder.getRoot();
+        File first = new File(dir, "first.xhtml");
+        File second = new File(dir, "second.xhtml");
+        FileUtils.writeStringToFile(first, "original", "UTF-8");
+        Document document = DocumentHelper.parseText("<div>été</div>");
+
+        // The files are replaced when the batch is full
+        OutputFileWriter writer = new OutputFileWriter(2);
+        writer.write(document, first);
+        assertEquals("original",
+                FileUtils.readFileToString(first, "UTF-8"));
+        writer.write(document, second);
+        String content = FileUtils.readFileToString(first, "UTF-8");
+        assertTrue(content.contains("encoding=\"UTF-8\""));
+        assertTrue(content.contains("<div>été</div>"));
+        assertEquals(content, FileUtils.readFileToString(second, "UTF-8"));
+
+        // Or when the writer is flushed
+        writer.write(DocumentHelper.parseText("<p/>"), first);
+        writer.flush();
+        assertTrue(FileUtils.readFileToString(first, "UTF-8").contains(
+                "<p/>"));
+
+        // No temporary file is left
+        assertEquals(2, dir.list().length);
+    }
+
+    @Test
+    public void testPatchSource() throws Exception {
+        File dir = folder.getRoot();
+        String source = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\r\n"
+                + "<!-- <rich:modalPanel> été -->\r\n"
+                + "<div xmlns=\"http://www.w3.org/1999/xhtml\"\r\n"
+                + "     xmlns:a4j='https://ajax4jsf.dev.java.net/ajax'\r\n"
+                + "     xmlns:rich=\"http://richfaces.org/rich\">\r\n"
+                + "  <a4j:commandButton   reRender = 'a,b'\r\n"
+                + "      ajaxSingle=\"true\" value=\"&gt;é\"/>\r\n"
+                + "  <div event='onclick'/>\r\n"
+                + "  <rich:modalPanel id=\"panel\">\r\n"
+                + "    <a4j:actionparam name=\"x\"/>\r\n"
+                + "  </rich:modalPanel\r\n"
+                + "  >\r\n"
+                + "</div>\r\n";
+        String expected = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\r\n"
+                + "<!-- <rich:modalPanel> été -->\r\n"
+                + "<div xmlns=\"http://www.w3.org/1999/xhtml\"\r\n"
+                + "     xmlns:a4j='http://richfaces.org/a4j'\r\n"
+                + "     xmlns:rich=\"http://richfaces.org/rich\">\r\n"
+                + "  <a4j:commandButton   render = 'a b'\r\n"
+                + "      execute=\"@this\" value=\"&gt;é\"/>\r\n"
+                + "  <div event='click'/>\r\n"
+                + "  <rich:popupPanel id=\"panel\">\r\n"
+                + "    <a4j:param name=\"x\"/>\r\n"
+                + "  </rich:popupPanel\r\n"
+                + "  >\r\n"
+                + "</div>\r\n";
+        File template = new File(dir, "template.xhtml");
+        FileUtils.writeByteArrayToFile(template,
+                source.getBytes("ISO-8859-1"));
+
+        MigrationOptions options = new MigrationOptions();
+        options.setPatchSource(true);
+        MigrationService patchService = new MigrationServiceImpl(options);
+        FileReport report = patchService.analyzeFile(template, false,
+                true, true);
+
+        // The same migrations are reported as without patch
+        FileReport domReport = migrationService.analyzeFile(template,
+                false, false, false);
+        assertEquals(domReport.getListMigrations(),
+                report.getListMigrations());
+        // Only the migrated parts are changed, the original file is kept
+        assertEquals(expected, new String(
+                FileUtils.readFileToByteArray(new File(dir,
+                        "template.xhtml.migrated")), "ISO-8859-1"));
+        assertEquals(source, new String(
+                FileUtils.readFileToByteArray(template), "ISO-8859-1"));
+
+        // The changes are located after a long text of multi-byte characters
+        StringBuilder comment = new StringBuilder("<!-- ");
+        while (comment.length() < 3000) {
+            comment.append("été ");
+        }
+        comment.append("-->\n");
+        String element = "<div xmlns:rich=\"http://richfaces.org/rich\">"
+                + "<rich:modalPanel/></div>";
+        FileUtils.writeStringToFile(template, comment + element, "UTF-8");
+        patchService.analyzeFile(template, false, true, false);
+        assertEquals(comment + element.replace("modalPanel", "popupPanel"),
+                FileUtils.readFileToString(new File(dir,
+                        "template.xhtml.migrated"), "UTF-8"));
+
+        // The files declaring entities are written from the DOM
+        FileUtils.writeStringToFile(template, "<!DOCTYPE div [\n"
+                + "<!ENTITY panel \"<rich:modalPanel/>\">]>\n"
+                + "<div xmlns:rich=\"http://richfaces.org/rich\">\n"
+                + "&panel;</div>", "UTF-8");
+        patchService.analyzeFile(template, false, true, false);
+        assertTrue(deserializeString(
+                new File(dir, "template.xhtml.migrated")).contains(
+                "<rich:popupPanel/>"));
+    }
+
+    @Test
+    public void testOutputModes() throws Exception {
+        File dir = folder.getRoot();
+        StringBuilder source = new StringBuilder();
+        StringBuilder migrated = new StringBuilder();
+        source.append("<div xmlns:a4j=\"http://richfaces.org/a4j\">\n");
+        source.append("  <a4j:actionparam name=\"x\"/>\n");
+        migrated.append(source.substring(0, source.indexOf("\n") + 1));
+        migrated.append("  <a4j:param name=\"x\"/>\n");
+        for (int i = 1; i <= 9; i++) {
+            source.append("  <p>" + i + "</p>\n");
+            migrated.append("  <p>" + i + "</p>\n");
+        }
+        source.append("  <span ajaxSingle=\"true\"/>\n</div>");
+        migrated.append("  <span execute=\"@this\"/>\n</div>");
+        File template = new File(dir, "sub/a.xhtml");
+        FileUtils.writeStringToFile(template, source.toString(), "UTF-8");
+        File unchanged = new File(dir, "b.xhtml");
+        FileUtils.writeStringToFile(unchanged, "<div/>", "UTF-8");
+        List<File> listFiles = new ArrayList<File>();
+        listFiles.add(template);
+        listFiles.add(unchanged);
+        File report = new File(dir, "report.txt");
+
+        // The changes are written as a single unified diff, relative to
+        // the directory of the report, with the source of the files patched
+        MigrationOptions options = new MigrationOptions();
+        options.setOutputMode(EnumOutputMode.DIFF);
+        new MigrationServiceImpl(options).analyzeProject(report,
+                listFiles, true, true, 2);
+        String expected = "--- a/sub/a.xhtml\n" //
+                + "+++ b/sub/a.xhtml\n" //
+                + "@@ -1,5 +1,5 @@\n" //
+                + " <div xmlns:a4j=\"http://richfaces.org/a4j\">\n" //
+                + "-  <a4j:actionparam name=\"x\"/>\n" //
+                + "+  <a4j:param name=\"x\"/>\n" //
+                + "   <p>1</p>\n   <p>2</p>\n   <p>3</p>\n" //
+                + "@@ -9,5 +9,5 @@\n" //
+                + "   <p>7</p>\n   <p>8</p>\n   <p>9</p>\n" //
+                + "-  <span ajaxSingle=\"true\"/>\n" //
+                + "+  <span execute=\"@this\"/>\n" //
+                + " </div>\n" //
+                + "\\ No newline at end of file\n";
+        assertEquals(expected, FileUtils.readFileToString(new File(dir,
+                "report.patch"), "UTF-8"));
+        // Neither the migrated files nor the original files are written
+        assertFalse(new File(dir, "sub/a.xhtml.migrated").exists());
+        assertEquals(source.toString(),
+                FileUtils.readFileToString(template, "UTF-8"));
+        String[] names = dir.list();
+        Arrays.sort(names);
+        assertEquals(Arrays.asList("b.xhtml", "report.patch",
+                "report.txt", "sub"), Arrays.asList(names));
+
+        // The migrated files are written in a single zip
+        options.setOutputMode(EnumOutputMode.ZIP);
+        new MigrationServiceImpl(options).analyzeProject(report,
+                listFiles, true, false, 2);
+        ZipInputStream zip = new ZipInputStream(FileUtils.openInputStream(
+                new File(dir, "report.zip")));
+        try {
+            ZipEntry entry = zip.getNextEntry();
+            assertEquals("sub/a.xhtml", entry.getName());
+            assertEquals(migrated.toString(),
+                    IOUtils.toString(zip, "UTF-8"));
+            assertNull(zip.getNextEntry());
+        } finally {
+            zip.close();
+        }
+        assertFalse(new File(dir, "sub/a.xhtml.migrated").exists());
+
+        // The files outside of the directory of the report are written next
+        // to the original files
+        File otherReport = new File(folder.newFolder("reports"), "report.txt");
+        new MigrationServiceImpl(options).analyzeProject(otherReport,
+                listFiles, true, false, 2);
+        zip = new ZipInputStream(FileUtils.openInputStream(new File(dir,
+                "reports/report.zip")));
+        try {
+            assertNull(zip.getNextEntry());
+        } finally {
+            zip.close();
+        }
+        assertEquals(migrated.toString(), FileUtils.readFileToString(
+                new File(dir, "sub/a.xhtml.migrated"), "UTF-8"));
+    }
+
+    @Test
+    public void testRulePack() throws Exception {
+        File dir = folder.getRoot();
+        File pack = new File(dir, "rules/pack.xml");
+        FileUtils.writeStringToFile(pack, "<rules>\n"
+                + "  <rule name=\"TEST_IMMEDIATE_LINK_RULE\"\n"
+                + "      xpath=\"//h:commandLink[@immediate='true']\">\n"
+                + "    <summarized>{0} immediate links</summarized>\n"
+                + "    <detailed>{0} immediate links to check</detailed>\n"
+                + "  </rule>\n"
+                + "  <rule name=\"TEST_TOGGLE_PANEL_RULE\"\n"
+                + "      xpath=\"//rich:simpleTogglePanel\" severity=\"error\"\n"
+                + "      migrationAuto=\"true\" newValue=\"rich:collapsiblePanel\">\n"
+                + "    <summarized>{0} toggle panels</summarized>\n"
+                + "  </rule>\n" + "</rules>\n", "UTF-8");
+        List<CustomRule> customRules = RulePackReader.read(pack.getParentFile());
+        assertEquals(2, customRules.size());
+        MigrationOptions options = new MigrationOptions();
+        options.setPatchSource(true);
+        options.setCustomRules(customRules);
+        MigrationServiceImpl service = new MigrationServiceImpl(options);
+        assertEquals(EnumTypeMigration.getTypesMigration().size() + 2,
+                service.getRules().size());
+        // The rule packs can be loaded twice
+        List<CustomRule> twice = new ArrayList<CustomRule>(customRules);
+        twice.addAll(RulePackReader.read(pack));
+        assertEquals(service.getMigrationRules().size(),
+                new MigrationRules(twice).size());
+        MigrationRule immediateRule = service.getMigrationRules().valueOf(
+                "TEST_IMMEDIATE_LINK_RULE");
+        MigrationRule panelRule = service.getMigrationRules().valueOf(
+                "TEST_TOGGLE_PANEL_RULE");
+        assertNull(MigrationRules.getDefault().valueOf(
+                "TEST_IMMEDIATE_LINK_RULE"));
+        assertEquals(Severity.WARNING, immediateRule.getSeverity());
+        assertEquals(Severity.ERROR, panelRule.getSeverity());
+
+        // The rules are evaluated by the matcher as the rules of the
+        // enumeration
+        assertTrue(new RuleEngine(service.getRules(), false).isStreamable());
+
+        File template = new File(dir, "a.xhtml");
+        String source = "<div xmlns:h=\"http://java.sun.com/jsf/html\"\n"
+                + "    xmlns:rich=\"http://richfaces.org/rich\">\n"
+                + "  <h:commandLink immediate=\"true\"/>\n"
+                + "  <rich:simpleTogglePanel>\n"
+                + "    <h:commandLink immediate=\"true\"/>\n"
+                + "  </rich:simpleTogglePanel>\n" + "</div>\n";
+        FileUtils.writeStringToFile(template, source, "UTF-8");
+        FileReport fileReport = service.analyzeFile(template, false,
+                false, false);
+        assertEquals(2, fileReport.getNbMigrations());
+        assertEquals(2, fileReport.getNbOccurrences(immediateRule));
+        assertEquals(1, fileReport.getNbOccurrences(panelRule));
+
+        File report = new File(dir, "report.txt");
+        service.analyzeProject(report, Arrays.asList(template), true,
+                false, 1);
+        String reportContent = FileUtils.readFileToString(report);
+        assertTrue(reportContent.contains(" * [WARNING] 2 immediate links\n"));
+        assertTrue(reportContent.contains(" * [ERROR] 1 toggle panels\n"));
+        assertTrue(reportContent.contains("[WARNING] 2 immediate links to check\n"));
+        assertEquals(source.replace("rich:simpleTogglePanel",
+                "rich:collapsiblePanel"), FileUtils.readFileToString(
+                new File(dir, "a.xhtml.migrated"), "UTF-8"));
+
+        // Another service can define a rule with the same name, the rules
+        // of each service are reported with their own messages
+        File otherPack = new File(dir, "other/pack.xml");
+        FileUtils.writeStringToFile(otherPack, "<rules>\n"
+                + "  <rule name=\"TEST_IMMEDIATE_LINK_RULE\"\n"
+                + "      xpath=\"//h:commandLink\">\n"
+                + "    <summarized>{0} links</summarized>\n"
+                + "  </rule>\n" + "</rules>\n", "UTF-8");
+        MigrationOptions otherOptions = new MigrationOptions();
+        otherOptions.setCustomRules(RulePackReader.read(otherPack));
+        MigrationServiceImpl otherService = new MigrationServiceImpl(
+                otherOptions);
+        FileReport otherReport = otherService.analyzeFile(template, false,
+                false, false);
+        assertEquals(1, otherReport.getNbMigrations());
+        assertEquals(0, otherReport.getNbOccurrences(immediateRule));
+        assertEquals(2, otherReport.getNbOccurrences(
+                otherService.getMigrationRules().valueOf(
+                        "TEST_IMMEDIATE_LINK_RULE")));
+        File otherFile = new File(dir, "other.txt");
+        otherService.analyzeProject(otherFile, Arrays.asList(template),
+                false, false, 1);
+        String otherContent = FileUtils.readFileToString(otherFile);
+        assertTrue(otherContent.contains(" * [WARNING] 2 links\n"));
+        assertFalse(otherContent.contains("toggle panels"));
+        assertEquals(2, service.analyzeFile(template, false, false, false)
+                .getNbOccurrences(immediateRule));
+
+        // An invalid rule pack is rejected when it is loaded
+        FileUtils.writeStringToFile(pack, "<rules>\n"
+                + "  <rule name=\"TEST_INVALID_RULE\" xpath=\"//h:[\">\n"
+                + "    <summarized>{0} invalid</summarized>\n"
+                + "  </rule>\n" + "</rules>\n", "UTF-8");
+        try {
+            RulePackReader.read(pack);
+            fail("The XPath expression is invalid");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().contains("TEST_INVALID_RULE"));
+        }
+        // The name of a rule is unique
+        FileUtils.writeStringToFile(pack, "<rules>\n"
+                + "  <rule name=\"A4J_FORM_RULE\" xpath=\"//a4j:form\">\n"
+                + "    <summarized>{0} forms</summarized>\n"
+                + "  </rule>\n" + "</rules>\n", "UTF-8");
+        try {
+            new MigrationRules(RulePackReader.read(pack));
+            fail("The rule A4J_FORM_RULE is already defined");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().contains("A4J_FORM_RULE"));
+        }
+    }
+
+    private File getTemplate(String templateName) {
+        URL url = Thread.currentThread().getContextClassLoader().getResource(
+                templateName);
+        return new File(url.getPath());
+    }
+
+    private byte[] readTemplate(String templateName) throws IOException {
+        return FileUtils.readFileToByteArray(getTemplate(templateName));
+    }
+
+    /**
+     * Copy a template in the temporary folder of the test.
+     *
+     * @param templateName The name of the template.
+     * @param path The path of the copy, relative to the temporary folder.
+     * @return The copy of the template.
+     */
+    private File copyTemplate(String templateName, String path)
+            throws IOException {
+        File file = new File(folder.getRoot(), path);
+        FileUtils.copyFile(getTemplate(templateName), file);
+        return file;
+    }
+
+    /**
+     * Copy templates at the root of the temporary folder of the test.
+     *
+     * @return The copies of the templates, in the same order.
+     */
+    private List<File> copyTemplates(String... templateNames)
+            throws IOException {
+        List<File> listFiles = new ArrayList<File>();
+        for (String templateName : templateNames) {
+            listFiles.add(copyTemplate(templateName, templateName));
+        }
+        return listFiles;
+    }
+
+    /**
+     * Evaluate the patterns of a matcher on a document read as a stream.
+     */
+    private StreamingMatcher matchStream(DocumentMatcher matcher,
+            byte[] content) throws Exception {
+        StreamingMatcher handler = matcher.newStreamingMatcher();
+        XMLReader xmlReader = ReaderFactory.newXMLReader();
+        xmlReader.setContentHandler(handler);
+        xmlReader.parse(new InputSource(new ByteArrayInputStream(content)));
+        return handler;
+    }
+
     private FileReport loadTemplateAndAnalyzeFile(String templateName,
             boolean completePath, boolean doMigration)
             throws DocumentException, JaxenException {
-        URL url = Thread.currentThread().getContextClassLoader().getResource(
-                templateName);
-        File template = new File(url.getPath());
+        File template = getTemplate(templateName);
 
         return migrationService.analyzeFile(template, completePath,
                 doMigration, false);